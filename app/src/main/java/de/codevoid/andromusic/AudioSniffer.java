@@ -0,0 +1,96 @@
+package de.codevoid.andromusic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class AudioSniffer {
+    public enum Format { UNKNOWN, MP3, FLAC, VORBIS, OPUS, MP4, WAV }
+
+    private static final int HEADER_SIZE = 64;
+
+    // One buffer per scanning thread, so sniffing a directory allocates nothing per file
+    private static final ThreadLocal<AudioSniffer> perThread = new ThreadLocal<AudioSniffer>() {
+        @Override
+        protected AudioSniffer initialValue() {
+            return new AudioSniffer();
+        }
+    };
+
+    private final byte[] buffer = new byte[HEADER_SIZE];
+
+    static AudioSniffer get() {
+        return perThread.get();
+    }
+
+    public Format sniff(File file) {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            int length = read(in, 0);
+            if (length >= 10 && startsWith(0, "ID3")) {
+                // An ID3v2 tag can precede MPEG frames and, rarely, a FLAC stream
+                long tagEnd = 10 + syncsafe(6);
+                if ((buffer[5] & 0x10) != 0) tagEnd += 10;
+                length = read(in, tagEnd);
+                if (length >= 4 && startsWith(0, "fLaC")) return Format.FLAC;
+                // Some taggers leave zero padding past the declared tag size
+                for (int i = 0; i + 4 <= length; i++) {
+                    if (isMpegFrame(i)) return Format.MP3;
+                    if (buffer[i] != 0) break;
+                }
+                return Format.UNKNOWN;
+            }
+            return classify(length);
+        } catch (IOException e) {
+            return Format.UNKNOWN;
+        }
+    }
+
+    private Format classify(int length) {
+        if (length < 4) return Format.UNKNOWN;
+        if (startsWith(0, "fLaC")) return Format.FLAC;
+        if (startsWith(0, "OggS")) {
+            // The first page carries the codec identification packet right after a one segment table
+            if (length >= 36 && startsWith(28, "OpusHead")) return Format.OPUS;
+            if (length >= 35 && buffer[28] == 1 && startsWith(29, "vorbis")) return Format.VORBIS;
+            if (length >= 33 && buffer[28] == 0x7f && startsWith(29, "FLAC")) return Format.FLAC;
+            return Format.UNKNOWN;
+        }
+        if (length >= 12 && startsWith(4, "ftyp")) return Format.MP4;
+        if (length >= 12 && startsWith(0, "RIFF") && startsWith(8, "WAVE")) return Format.WAV;
+        if (isMpegFrame(0)) return Format.MP3;
+        return Format.UNKNOWN;
+    }
+
+    private int read(RandomAccessFile in, long offset) throws IOException {
+        if (offset >= in.length()) return 0;
+        in.seek(offset);
+        int total = 0;
+        while (total < HEADER_SIZE) {
+            int n = in.read(buffer, total, HEADER_SIZE - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    private boolean startsWith(int offset, String magic) {
+        for (int i = 0; i < magic.length(); i++) {
+            if (buffer[offset + i] != (byte) magic.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private long syncsafe(int offset) {
+        return ((buffer[offset] & 0x7f) << 21) | ((buffer[offset + 1] & 0x7f) << 14)
+                | ((buffer[offset + 2] & 0x7f) << 7) | (buffer[offset + 3] & 0x7f);
+    }
+
+    // 11 sync bits, then a valid version, layer, bitrate and sample rate
+    private boolean isMpegFrame(int offset) {
+        int b1 = buffer[offset + 1] & 0xff;
+        int b2 = buffer[offset + 2] & 0xff;
+        if ((buffer[offset] & 0xff) != 0xff || (b1 & 0xe0) != 0xe0) return false;
+        if ((b1 & 0x18) == 0x08 || (b1 & 0x06) == 0) return false;
+        return (b2 & 0xf0) != 0xf0 && (b2 & 0x0c) != 0x0c;
+    }
+}
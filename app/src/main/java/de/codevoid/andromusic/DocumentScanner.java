@@ -0,0 +1,118 @@
+package de.codevoid.andromusic;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Walks a Storage Access Framework tree for roots that have no file system path (USB drives, cloud and
+// other document providers). Tracks are document URIs, which MusicService plays through the resolver.
+// Their tags are not indexed, since TrackLibrary reads files by path: search, smart playlists and the
+// library model know these tracks by file name only.
+public class DocumentScanner {
+    private static final String CONTENT_PREFIX = "content://";
+
+    // One query per folder; nothing else is needed to tell folders from tracks
+    static final String[] PROJECTION = {
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_DISPLAY_NAME,
+    };
+
+    public static boolean isDocument(String path) {
+        return path.startsWith(CONTENT_PREFIX);
+    }
+
+    // The document URIs of the tracks below the tree, in no particular order. Applies the name rules of a
+    // walk and skips entries by MIME type, so no file is opened. Stops when the visitor says so.
+    public static List<String> scan(ContentResolver resolver, Uri treeUri, ScanRules rules,
+                                    MusicScanner.Visitor visitor) {
+        List<String> tracks = new ArrayList<>();
+        Deque<Folder> pending = new ArrayDeque<>();
+        pending.push(new Folder(DocumentsContract.getTreeDocumentId(treeUri), "", 0));
+        while (!pending.isEmpty()) {
+            Folder folder = pending.pop();
+            Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, folder.documentId);
+            List<Folder> subfolders = new ArrayList<>();
+            List<String> audio = new ArrayList<>();
+            boolean hidden = false;
+            try (Cursor cursor = resolver.query(children, PROJECTION, null, null, null)) {
+                if (cursor == null) continue;
+                while (cursor.moveToNext()) {
+                    String name = cursor.getString(2);
+                    if (name == null) continue;
+                    // A .nomedia marker hides the folder and everything below it
+                    if (rules.honorsNomedia() && ".nomedia".equals(name)) {
+                        hidden = true;
+                        break;
+                    }
+                    String relativePath = folder.relativePath.isEmpty() ? name : folder.relativePath + "/" + name;
+                    if (rules.excludes(name, relativePath)) continue;
+                    String mimeType = cursor.getString(1);
+                    if (Document.MIME_TYPE_DIR.equals(mimeType)) {
+                        if (rules.allowsDirectory(name, folder.depth + 1)) {
+                            subfolders.add(new Folder(cursor.getString(0), relativePath, folder.depth + 1));
+                        }
+                    } else if (isAudio(mimeType, name)) {
+                        audio.add(cursor.getString(0));
+                    }
+                }
+            } catch (RuntimeException e) {
+                // A provider that drops the grant or loses the device mid-walk; the rest of the tree is gone too
+                throw new IllegalStateException("Failed to list " + folder.relativePath, e);
+            }
+            if (!visitor.onDirectory(new File(folder.relativePath))) break;
+            if (hidden) continue;
+            for (String documentId : audio) {
+                String track = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId).toString();
+                tracks.add(track);
+                visitor.onTrack(track);
+            }
+            for (int i = subfolders.size() - 1; i >= 0; i--) {
+                pending.push(subfolders.get(i));
+            }
+        }
+        return tracks;
+    }
+
+    // Providers report playlists and cue sheets as audio/*; those aren't playable tracks. A provider
+    // that doesn't know the type falls back to the file name.
+    static boolean isAudio(String mimeType, String name) {
+        if (mimeType == null || "application/octet-stream".equals(mimeType)) {
+            return MusicScanner.isSupportedAudio(name);
+        }
+        if (mimeType.startsWith("audio/")) {
+            return !mimeType.endsWith("mpegurl") && !mimeType.endsWith("scpls") && !mimeType.endsWith("x-cue");
+        }
+        return "application/ogg".equals(mimeType);
+    }
+
+    // What a track is called before it has been indexed: the file name, for documents the last part of the
+    // decoded document id ("primary:Music/Song.mp3")
+    public static String fileName(String path) {
+        if (!isDocument(path)) return new File(path).getName();
+        String documentId = Uri.parse(path).getLastPathSegment();
+        if (documentId == null) return path;
+        int cut = Math.max(documentId.lastIndexOf('/'), documentId.lastIndexOf(':'));
+        return documentId.substring(cut + 1);
+    }
+
+    private static final class Folder {
+        final String documentId;
+        final String relativePath;
+        final int depth;
+
+        Folder(String documentId, String relativePath, int depth) {
+            this.documentId = documentId;
+            this.relativePath = relativePath;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package de.codevoid.andromusic;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class LibraryIndexer {
+    private static final String TAG = "LibraryIndexer";
+    private static final int MAGIC = 0x414d4951; // "AMIQ"
+    private static final int BATCH_SIZE = 64;
+    private static final int MAX_WORKERS = 4;
+    // Listeners hear about progress every few batches rather than once per file
+    private static final int PUBLISH_EVERY = 8;
+    // Upper bound on a pause in case the player never reports back
+    private static final long PLAYBACK_PAUSE_MS = 3000;
+
+    private static LibraryIndexer instance;
+
+    private final TrackLibrary library;
+    private final File queueDir;
+    private final int fixedWorkers;
+    // Jobs run one after another; each one fans its batches out to the pool
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor();
+    // The queue holds at most one batch per worker; submit() blocks on the semaphore before it could overflow
+    private final ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_WORKERS));
+    private final Object pauseLock = new Object();
+    private boolean paused = false;
+    private long pausedUntil;
+    private int nextJobId;
+
+    public static synchronized LibraryIndexer get(Context context) {
+        if (instance == null) {
+            File dir = new File(context.getApplicationContext().getFilesDir(), "index_queue");
+            instance = new LibraryIndexer(TrackLibrary.get(context), dir, 0);
+            instance.resumePending();
+        }
+        return instance;
+    }
+
+    // workers == 0 picks the concurrency from the storage each job lives on
+    LibraryIndexer(TrackLibrary library, File queueDir, int workers) {
+        this.library = library;
+        this.queueDir = queueDir;
+        this.fixedWorkers = workers;
+        pool.allowCoreThreadTimeOut(true);
+        nextJobId = 0;
+        for (File job : jobFiles()) {
+            nextJobId = Math.max(nextJobId, jobId(job) + 1);
+        }
+    }
+
+    // Persists the paths before indexing starts, so a killed process picks the job up again
+    public void enqueue(Collection<String> paths) {
+        // Document tracks have no file to read tags from; they keep their file names (see DocumentScanner)
+        List<String> snapshot = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            if (!DocumentScanner.isDocument(path)) snapshot.add(path);
+        }
+        if (snapshot.isEmpty()) return;
+        File job;
+        synchronized (this) {
+            job = new File(queueDir, "job" + nextJobId++ + ".bin");
+        }
+        coordinator.execute(() -> {
+            if (writeJob(job, snapshot)) {
+                runJob(job, snapshot, 0);
+            } else {
+                // Still index now; only resumability is lost
+                runJob(null, snapshot, 0);
+            }
+        });
+    }
+
+    // Re-queues jobs left behind by a previous process, continuing from their saved cursor
+    void resumePending() {
+        for (File job : jobFiles()) {
+            coordinator.execute(() -> {
+                int[] cursor = new int[1];
+                List<String> paths = readJob(job, cursor);
+                if (paths == null) {
+                    job.delete();
+                    return;
+                }
+                runJob(job, paths, cursor[0]);
+            });
+        }
+    }
+
+    // Called when a track starts preparing so the indexer doesn't compete with the player for I/O
+    public void pauseForPlayback() {
+        synchronized (pauseLock) {
+            paused = true;
+            pausedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PLAYBACK_PAUSE_MS);
+        }
+    }
+
+    public void resumeAfterPlayback() {
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    // Blocks until the coordinator has drained every job queued so far
+    void awaitIdle() throws InterruptedException {
+        Semaphore done = new Semaphore(0);
+        coordinator.execute(done::release);
+        done.acquire();
+    }
+
+    private void runJob(File job, List<String> paths, int cursor) {
+        int workers = fixedWorkers > 0 ? fixedWorkers : workersFor(paths.get(0));
+        int batches = (paths.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        int first = cursor / BATCH_SIZE;
+        Progress progress = new Progress(job, batches, first);
+        Semaphore slots = new Semaphore(workers);
+        try {
+            for (int batch = first; batch < batches; batch++) {
+                // Backpressure: wait for a free worker instead of queueing the whole library
+                slots.acquire();
+                int from = batch * BATCH_SIZE;
+                List<String> slice = paths.subList(from, Math.min(paths.size(), from + BATCH_SIZE));
+                int index = batch;
+                pool.execute(() -> {
+                    try {
+                        indexBatch(slice);
+                        progress.completed(index);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+            // Wait for the in-flight batches of this job before starting the next one
+            slots.acquire(workers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (job != null) job.delete();
+        library.publishUpdate();
+    }
+
+    private void indexBatch(List<String> paths) throws InterruptedException {
+        List<TrackLibrary.Track> changed = new ArrayList<>();
+        for (String path : paths) {
+            awaitPlayback();
+            TrackLibrary.Track existing = library.get(path);
+            TrackLibrary.Track track = library.update(path);
+            if (track != null && track != existing) changed.add(track);
+        }
+        if (!changed.isEmpty()) library.append(changed);
+    }
+
+    private void awaitPlayback() throws InterruptedException {
+        synchronized (pauseLock) {
+            while (paused) {
+                long remaining = pausedUntil - System.nanoTime();
+                if (remaining <= 0) {
+                    paused = false;
+                    break;
+                }
+                pauseLock.wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+            }
+        }
+    }
+
+    // Removable SD cards degrade badly under parallel random reads; internal flash has deep command queues
+    static int workersFor(String path) {
+        boolean removable;
+        try {
+            removable = Environment.isExternalStorageRemovable(new File(path));
+        } catch (IllegalArgumentException e) {
+            // Not on a known volume; SD cards mount as /storage/XXXX-XXXX, internal storage under emulated/
+            removable = path.startsWith("/storage/") && !path.startsWith("/storage/emulated/");
+        }
+        if (removable) return 2;
+        return Math.max(2, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Batches finish out of order; the cursor only advances over a contiguous run of finished batches
+    private final class Progress {
+        private final File job;
+        private final boolean[] done;
+        private int watermark;
+        private int sincePublish = 0;
+
+        Progress(File job, int batches, int first) {
+            this.job = job;
+            this.done = new boolean[batches];
+            this.watermark = first;
+        }
+
+        synchronized void completed(int batch) {
+            done[batch] = true;
+            int before = watermark;
+            while (watermark < done.length && done[watermark]) watermark++;
+            if (watermark != before && job != null) writeCursor(job, watermark * BATCH_SIZE);
+            if (++sincePublish >= PUBLISH_EVERY) {
+                sincePublish = 0;
+                library.publishUpdate();
+            }
+        }
+    }
+
+    private List<File> jobFiles() {
+        File[] files = queueDir.listFiles((dir, name) -> name.startsWith("job") && name.endsWith(".bin"));
+        if (files == null) return new ArrayList<>();
+        Arrays.sort(files, (a, b) -> Integer.compare(jobId(a), jobId(b)));
+        return Arrays.asList(files);
+    }
+
+    private static int jobId(File job) {
+        String name = job.getName();
+        try {
+            return Integer.parseInt(name.substring(3, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Layout: magic, cursor, count, then the paths; the cursor is rewritten in place as batches finish
+    private boolean writeJob(File job, List<String> paths) {
+        if (!queueDir.isDirectory() && !queueDir.mkdirs()) return false;
+        File tmp = new File(job.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(0);
+            out.writeInt(paths.size());
+            for (String path : paths) {
+                out.writeUTF(path);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write index job", e);
+            tmp.delete();
+            return false;
+        }
+        return tmp.renameTo(job);
+    }
+
+    private static List<String> readJob(File job, int[] cursor) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(job)))) {
+            if (in.readInt() != MAGIC) return null;
+            cursor[0] = in.readInt();
+            int count = in.readInt();
+            List<String> paths = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                paths.add(in.readUTF());
+            }
+            return cursor[0] < count ? paths : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read index job " + job, e);
+            return null;
+        }
+    }
+
+    private static void writeCursor(File job, int cursor) {
+        try (RandomAccessFile out = new RandomAccessFile(job, "rw")) {
+            out.seek(4);
+            out.writeInt(cursor);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save index cursor", e);
+        }
+    }
+}
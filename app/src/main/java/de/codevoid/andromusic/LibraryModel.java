@@ -0,0 +1,273 @@
+package de.codevoid.andromusic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The library's tags as columns: per track an artist, album and genre id into sorted string pools, and per
+// artist and album the offsets of its tracks in one shared array. Grouping and filtering walk int arrays
+// instead of Track objects. Built once from the scan order and the indexed tags; rebuilt rather than updated.
+public class LibraryModel {
+    // Id 0 of each pool is the empty string, for tracks without that tag
+    public static final int UNKNOWN = 0;
+
+    private final List<String> paths;
+    private final int[] artistOf;
+    private final int[] albumOf;
+    private final int[] genreOf;
+    private final String[] artists;
+    private final String[] albums;
+    private final String[] genres;
+    // An album with the same name under another artist is another album
+    private final int[] albumArtist;
+    // Tracks of artist a: artistTracks[artistOffsets[a]] up to artistTracks[artistOffsets[a + 1]], in scan order
+    private final int[] artistOffsets;
+    private final int[] artistTracks;
+    // Tracks of an album, by track number and then in scan order
+    private final int[] albumOffsets;
+    private final int[] albumTracks;
+
+    // paths is the scan order; tracks the library hasn't indexed yet are grouped under UNKNOWN
+    public static LibraryModel build(List<String> paths, TrackLibrary library) {
+        int n = paths.size();
+        NaturalOrder order = new NaturalOrder();
+        Pool artists = new Pool();
+        Pool genres = new Pool();
+        Map<String, Integer> albumIds = new HashMap<>();
+        List<String> albumNames = new ArrayList<>();
+        List<Integer> albumArtists = new ArrayList<>();
+        albumNames.add("");
+        albumArtists.add(UNKNOWN);
+
+        int[] artistOf = new int[n];
+        int[] albumOf = new int[n];
+        int[] genreOf = new int[n];
+        int[] trackNumbers = new int[n];
+        for (int i = 0; i < n; i++) {
+            TrackLibrary.Track track = library.get(paths.get(i));
+            if (track == null) continue;
+            int artist = artists.id(track.getArtist());
+            artistOf[i] = artist;
+            genreOf[i] = genres.id(track.getGenre());
+            trackNumbers[i] = track.getTrackNumber();
+            String album = track.getAlbum();
+            if (album == null || album.isEmpty()) continue;
+            String key = artist + "\u0000" + album;
+            Integer id = albumIds.get(key);
+            if (id == null) {
+                id = albumNames.size();
+                albumIds.put(key, id);
+                albumNames.add(album);
+                albumArtists.add(artist);
+            }
+            albumOf[i] = id;
+        }
+
+        // Pools are renumbered so ids sort like their names; the UI can list them in id order
+        int[] artistRank = artists.sort(order);
+        int[] genreRank = genres.sort(order);
+        for (int i = 0; i < n; i++) {
+            artistOf[i] = artistRank[artistOf[i]];
+            genreOf[i] = genreRank[genreOf[i]];
+        }
+        int[] albumArtist = new int[albumNames.size()];
+        for (int a = 0; a < albumArtist.length; a++) {
+            albumArtist[a] = artistRank[albumArtists.get(a)];
+        }
+        String[] albumPool = albumNames.toArray(new String[0]);
+        int[] albumRank = rank(albumPool, (a, b) -> {
+            int result = order.compare(albumPool[a], albumPool[b]);
+            return result != 0 ? result : Integer.compare(albumArtist[a], albumArtist[b]);
+        });
+        String[] sortedAlbums = new String[albumPool.length];
+        int[] sortedAlbumArtist = new int[albumPool.length];
+        for (int a = 0; a < albumPool.length; a++) {
+            sortedAlbums[albumRank[a]] = albumPool[a];
+            sortedAlbumArtist[albumRank[a]] = albumArtist[a];
+        }
+        for (int i = 0; i < n; i++) {
+            albumOf[i] = albumRank[albumOf[i]];
+        }
+
+        int[] artistOffsets = offsets(artistOf, artists.size());
+        int[] artistTracks = group(artistOf, artistOffsets);
+        int[] albumOffsets = offsets(albumOf, sortedAlbums.length);
+        int[] albumTracks = group(albumOf, albumOffsets);
+        for (int a = 0; a < sortedAlbums.length; a++) {
+            sortByTrackNumber(albumTracks, albumOffsets[a], albumOffsets[a + 1], trackNumbers);
+        }
+        return new LibraryModel(paths, artistOf, albumOf, genreOf, artists.names(), sortedAlbums,
+                genres.names(), sortedAlbumArtist, artistOffsets, artistTracks, albumOffsets, albumTracks);
+    }
+
+    private LibraryModel(List<String> paths, int[] artistOf, int[] albumOf, int[] genreOf, String[] artists,
+                         String[] albums, String[] genres, int[] albumArtist, int[] artistOffsets,
+                         int[] artistTracks, int[] albumOffsets, int[] albumTracks) {
+        this.paths = paths;
+        this.artistOf = artistOf;
+        this.albumOf = albumOf;
+        this.genreOf = genreOf;
+        this.artists = artists;
+        this.albums = albums;
+        this.genres = genres;
+        this.albumArtist = albumArtist;
+        this.artistOffsets = artistOffsets;
+        this.artistTracks = artistTracks;
+        this.albumOffsets = albumOffsets;
+        this.albumTracks = albumTracks;
+    }
+
+    public int trackCount() { return artistOf.length; }
+    public String path(int track) { return paths.get(track); }
+    public int artistOf(int track) { return artistOf[track]; }
+    public int albumOf(int track) { return albumOf[track]; }
+    public int genreOf(int track) { return genreOf[track]; }
+
+    public int artistCount() { return artists.length; }
+    public int albumCount() { return albums.length; }
+    public int genreCount() { return genres.length; }
+    public String artistName(int artist) { return artists[artist]; }
+    public String albumName(int album) { return albums[album]; }
+    public String genreName(int genre) { return genres[genre]; }
+    public int albumArtist(int album) { return albumArtist[album]; }
+
+    public int artistId(String name) { return find(artists, name); }
+    public int genreId(String name) { return find(genres, name); }
+
+    // Track positions in the scan order
+    public int[] tracksOfArtist(int artist) {
+        return Arrays.copyOfRange(artistTracks, artistOffsets[artist], artistOffsets[artist + 1]);
+    }
+
+    public int[] tracksOfAlbum(int album) {
+        return Arrays.copyOfRange(albumTracks, albumOffsets[album], albumOffsets[album + 1]);
+    }
+
+    public int trackCountOfArtist(int artist) {
+        return artistOffsets[artist + 1] - artistOffsets[artist];
+    }
+
+    public int trackCountOfAlbum(int album) {
+        return albumOffsets[album + 1] - albumOffsets[album];
+    }
+
+    // Albums are sorted by name, so this is a scan over the album column
+    public int[] albumsOfArtist(int artist) {
+        int[] result = new int[albums.length];
+        int count = 0;
+        for (int a = 1; a < albums.length; a++) {
+            if (albumArtist[a] == artist) result[count++] = a;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    public int[] tracksOfGenre(int genre) {
+        int[] result = new int[genreOf.length];
+        int count = 0;
+        for (int i = 0; i < genreOf.length; i++) {
+            if (genreOf[i] == genre) result[count++] = i;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // Counting sort: offsets[id] is where the tracks with that id start, offsets[count] the total
+    private static int[] offsets(int[] column, int count) {
+        int[] offsets = new int[count + 1];
+        for (int id : column) {
+            offsets[id + 1]++;
+        }
+        for (int id = 0; id < count; id++) {
+            offsets[id + 1] += offsets[id];
+        }
+        return offsets;
+    }
+
+    private static int[] group(int[] column, int[] offsets) {
+        int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+        int[] tracks = new int[column.length];
+        for (int i = 0; i < column.length; i++) {
+            tracks[next[column[i]]++] = i;
+        }
+        return tracks;
+    }
+
+    // Insertion sort; albums are short and usually already in order
+    private static void sortByTrackNumber(int[] tracks, int from, int to, int[] trackNumbers) {
+        for (int i = from + 1; i < to; i++) {
+            int track = tracks[i];
+            int j = i - 1;
+            while (j >= from && trackNumbers[tracks[j]] > trackNumbers[track]) {
+                tracks[j + 1] = tracks[j];
+                j--;
+            }
+            tracks[j + 1] = track;
+        }
+    }
+
+    // rank[id] is the position of pool entry id in sorted order; entry 0 stays first
+    private static int[] rank(String[] pool, Comparator<Integer> order) {
+        Integer[] ids = new Integer[pool.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        if (ids.length > 1) Arrays.sort(ids, 1, ids.length, order);
+        int[] rank = new int[pool.length];
+        for (int i = 0; i < ids.length; i++) {
+            rank[ids[i]] = i;
+        }
+        return rank;
+    }
+
+    // Pools are short next to the track columns; a scan is enough for the occasional lookup by name
+    private static int find(String[] pool, String name) {
+        if (name == null || name.isEmpty()) return UNKNOWN;
+        for (int i = 1; i < pool.length; i++) {
+            if (pool[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // Dictionary of one tag's values; ids are handed out in order of appearance until sort()
+    private static final class Pool {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>(Collections.singletonList(""));
+        private String[] sorted;
+
+        Pool() {
+            ids.put("", UNKNOWN);
+        }
+
+        int id(String name) {
+            if (name == null) return UNKNOWN;
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+            }
+            return id;
+        }
+
+        int size() {
+            return names.size();
+        }
+
+        int[] sort(NaturalOrder order) {
+            String[] pool = names.toArray(new String[0]);
+            int[] rank = rank(pool, (a, b) -> order.compare(pool[a], pool[b]));
+            sorted = new String[pool.length];
+            for (int i = 0; i < pool.length; i++) {
+                sorted[rank[i]] = pool[i];
+            }
+            return rank;
+        }
+
+        String[] names() {
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package de.codevoid.andromusic;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the library current while the device is idle and charging, so opening the app never waits on a scan.
+// Roots are rescanned one at a time and checkpointed as they finish; a stopped pass picks up with the roots
+// it hadn't reached. Metadata extraction goes through LibraryIndexer, whose queue is resumable on its own.
+public class LibraryReindexService extends JobService {
+    private static final String TAG = "LibraryReindex";
+    private static final int JOB_ID = 0x414d4a31; // "AMJ1"
+    private static final long INTERVAL_MS = TimeUnit.HOURS.toMillis(24);
+
+    private static final ExecutorService waiter = Executors.newSingleThreadExecutor();
+
+    private PreferencesManager prefsManager;
+    private LibraryRoots libraryRoots;
+    private ScanJob scanJob;
+    private volatile boolean stopped;
+
+    // Safe to call on every start; an already scheduled job keeps its timing
+    public static void schedule(Context context) {
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        if (scheduler == null || scheduler.getPendingJob(JOB_ID) != null) return;
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, LibraryReindexService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(INTERVAL_MS)
+                .setPersisted(true)
+                .build();
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) Log.w(TAG, "Failed to schedule reindex");
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        prefsManager = new PreferencesManager(this);
+        libraryRoots = new LibraryRoots(new File(getFilesDir(), "library_roots"));
+        stopped = false;
+        List<String> roots = prefsManager.loadLibraryRoots();
+        if (roots.isEmpty()) return false;
+        for (String root : roots) {
+            // An unmounted card would look like an emptied library; wait for the next window instead
+            if (!DocumentScanner.isDocument(root) && !new File(root).isDirectory()) return false;
+        }
+        List<String> pending = prefsManager.loadReindexPending();
+        if (pending == null) {
+            pending = new ArrayList<>(roots);
+        } else {
+            // Roots removed since the pass was interrupted are dropped from it
+            pending.retainAll(roots);
+        }
+        prefsManager.saveReindexPending(pending);
+        scanNext(params, roots, pending);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopped = true;
+        if (scanJob != null) {
+            scanJob.cancel();
+            scanJob = null;
+        }
+        // Retried under the same constraints; the checkpoint skips the roots already done
+        return true;
+    }
+
+    private void scanNext(JobParameters params, List<String> roots, List<String> pending) {
+        ScanRules rules = prefsManager.loadScanRules();
+        if (prefsManager.loadUseMediaStore()) {
+            scanJob = ScanJob.startMediaStore(getContentResolver(), roots, TrackLibrary.get(this), rules,
+                    new Completion(tracks -> publish(params, tracks)));
+            return;
+        }
+        if (pending.isEmpty()) {
+            // Every root has a fresh run now, so merging them rescans nothing
+            scanJob = ScanJob.start(getContentResolver(), roots, Collections.<String>emptySet(), libraryRoots,
+                    prefsManager.loadScanParallelism(), rules, new Completion(tracks -> publish(params, tracks)));
+            return;
+        }
+        String root = pending.get(0);
+        // One root per pass step, walked with its manifest so unchanged folders aren't listed again
+        scanJob = ScanJob.start(getContentResolver(), Collections.singletonList(root),
+                Collections.singletonList(root), libraryRoots, prefsManager.loadScanParallelism(), rules,
+                new Completion(tracks -> {
+                    pending.remove(0);
+                    prefsManager.saveReindexPending(pending);
+                    scanNext(params, roots, pending);
+                }));
+    }
+
+    private void publish(JobParameters params, List<String> tracks) {
+        prefsManager.saveReindexPending(null);
+        if (tracks.isEmpty()) {
+            jobFinished(params, false);
+            return;
+        }
+        MusicService service = MusicService.running();
+        if (service != null) {
+            service.applyScan(tracks);
+        } else {
+            savePlaylist(tracks);
+        }
+        LibraryIndexer indexer = LibraryIndexer.get(this);
+        indexer.enqueue(tracks);
+        // Holds the job, and with it the wake lock, until the tags are read
+        waiter.execute(() -> {
+            try {
+                indexer.awaitIdle();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!stopped) jobFinished(params, false);
+        });
+    }
+
+    // With the service not running, the saved playlist is replaced; the saved track stays selected if present
+    private void savePlaylist(List<String> tracks) {
+        // The saved index and shuffle belong to a smart playlist's queue then, which keeps playing as it was
+        if (!prefsManager.loadQueue().isEmpty()) {
+            prefsManager.savePlaylist(tracks);
+            return;
+        }
+        List<String> saved = prefsManager.loadPlaylist();
+        int index = prefsManager.loadTrackIndex();
+        long seed = prefsManager.loadShuffleSeed();
+        int first = prefsManager.loadShuffleFirst();
+        // The saved index is a position in the shuffled order when there is one
+        if (seed != 0 && first < saved.size() && index < saved.size()) {
+            index = new ShuffleOrder(saved.size(), seed, first).libraryPosition(index);
+        }
+        String current = index < saved.size() ? saved.get(index) : null;
+        int newIndex = current != null ? tracks.indexOf(current) : -1;
+        prefsManager.savePlaylist(tracks);
+        if (seed != 0) {
+            // Drawn again for the new library from the same seed, with the saved track first
+            prefsManager.saveShuffleOrder(tracks.isEmpty() ? 0 : seed, Math.max(newIndex, 0));
+            if (newIndex > 0) newIndex = 0;
+        }
+        if (newIndex < 0) {
+            prefsManager.saveTrackIndex(0);
+            prefsManager.savePosition(0);
+        } else {
+            prefsManager.saveTrackIndex(newIndex);
+        }
+    }
+
+    private interface Done {
+        void onDone(List<String> tracks);
+    }
+
+    // Background scans show nothing; only completion matters, and never after the job was stopped
+    private final class Completion implements ScanJob.Callback {
+        private final Done done;
+
+        Completion(Done done) {
+            this.done = done;
+        }
+
+        @Override
+        public void onBatch(List<String> tracks) {
+        }
+
+        @Override
+        public void onProgress(int directories, int tracks) {
+        }
+
+        @Override
+        public void onComplete(List<String> tracks) {
+            scanJob = null;
+            if (!stopped) done.onDone(tracks);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.codevoid.andromusic;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Per-root scan state: each library root keeps its own manifest and its own sorted run of tracks,
+// so adding or removing a root only rescans that root
+public class LibraryRoots {
+    private static final String TAG = "LibraryRoots";
+    private static final int MAGIC = 0x414d5252; // "AMRR"
+    private static final int VERSION = 1;
+
+    private final File dir;
+
+    public LibraryRoots(File dir) {
+        this.dir = dir;
+    }
+
+    public ScanManifest manifest(String root) {
+        return new ScanManifest(new File(dir, key(root) + ".manifest"));
+    }
+
+    // The tracks of the last complete scan of this root, in NaturalOrder; null if it needs scanning
+    public List<String> loadRun(String root, ScanRules rules) {
+        File file = runFile(root);
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (!root.equals(in.readUTF()) || !rules.signature().equals(in.readUTF())) return null;
+            int count = in.readInt();
+            List<String> run = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                run.add(in.readUTF());
+            }
+            return run;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read scan run for " + root, e);
+            return null;
+        }
+    }
+
+    public void saveRun(String root, ScanRules rules, List<String> run) {
+        if (!dir.isDirectory()) {
+            if (!dir.mkdirs()) return;
+            // The first run saved supersedes the single scan manifest from before library roots
+            new File(dir.getParentFile(), "scan_manifest.bin").delete();
+        }
+        File file = runFile(root);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(root);
+            out.writeUTF(rules.signature());
+            out.writeInt(run.size());
+            for (String path : run) {
+                out.writeUTF(path);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write scan run for " + root, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+    }
+
+    // Folds what a watcher saw below the root into its saved run, so reusing the run later doesn't bring back
+    // deleted tracks or drop new ones. A root without a run is scanned anyway, so there is nothing to do.
+    public void updateRun(String root, ScanRules rules, Collection<String> added, Collection<String> removedFiles,
+                          Collection<String> removedDirs) {
+        List<String> run = loadRun(root, rules);
+        if (run == null) return;
+        Set<String> present = new HashSet<>(run);
+        List<String> additions = new ArrayList<>();
+        for (String path : added) {
+            if (present.add(path)) additions.add(path);
+        }
+        NaturalOrder order = new NaturalOrder();
+        order.sort(additions);
+        Set<String> removed = new HashSet<>(removedFiles);
+        List<String> merged = new ArrayList<>(run.size() + additions.size());
+        int a = 0;
+        for (String path : run) {
+            while (a < additions.size() && order.compare(additions.get(a), path) < 0) {
+                merged.add(additions.get(a++));
+            }
+            if (!removed.contains(path) && !isBelow(path, removedDirs)) merged.add(path);
+        }
+        while (a < additions.size()) {
+            merged.add(additions.get(a++));
+        }
+        if (additions.isEmpty() && merged.size() == run.size()) return;
+        saveRun(root, rules, merged);
+    }
+
+    private static boolean isBelow(String path, Collection<String> dirs) {
+        for (String dir : dirs) {
+            if (path.startsWith(dir + "/")) return true;
+        }
+        return false;
+    }
+
+    public void forget(String root) {
+        runFile(root).delete();
+        new File(dir, key(root) + ".manifest").delete();
+    }
+
+    // Adds a root unless an existing root already covers it; roots below the new one are dropped.
+    // Returns null when nothing changes.
+    public static List<String> withRoot(List<String> roots, String root) {
+        List<String> result = new ArrayList<>(roots.size() + 1);
+        for (String existing : roots) {
+            if (contains(existing, root)) return null;
+            if (!contains(root, existing)) result.add(existing);
+        }
+        result.add(root);
+        return result;
+    }
+
+    static boolean contains(String root, String path) {
+        return path.equals(root) || path.startsWith(root.endsWith("/") ? root : root + "/");
+    }
+
+    private File runFile(String root) {
+        return new File(dir, key(root) + ".run");
+    }
+
+    // The files carry the full root path in their header, so a hash collision only costs a rescan
+    private static String key(String root) {
+        return Integer.toHexString(root.hashCode());
+    }
+}
@@ -0,0 +1,235 @@
+package de.codevoid.andromusic;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class LibraryWatcher {
+    private static final long DEBOUNCE_MS = 1000;
+    private static final long MAX_DELAY_MS = 5000;
+    private static final int MASK = FileObserver.CLOSE_WRITE | FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    public interface Listener {
+        // Called on the main thread with one batch per burst of file system events
+        void onLibraryChanged(List<String> added, List<String> removedFiles, List<String> removedDirs);
+    }
+
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService walker = Executors.newSingleThreadExecutor();
+    private final Map<String, DirObserver> observers = new HashMap<>();
+    private final Set<String> added = new LinkedHashSet<>();
+    private final Set<String> removedFiles = new LinkedHashSet<>();
+    private final Set<String> removedDirs = new LinkedHashSet<>();
+    private long firstPendingAt = 0;
+    private String root;
+    private ScanRules rules = ScanRules.NONE;
+    private final Runnable flushRunnable = this::flush;
+
+    public LibraryWatcher(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void start(String rootPath, ScanRules scanRules) {
+        stop();
+        String watchedRoot = new File(rootPath).getAbsolutePath();
+        synchronized (this) {
+            root = watchedRoot;
+            rules = scanRules;
+        }
+        walker.execute(() -> watchTree(new File(watchedRoot), watchedRoot, false));
+    }
+
+    public void stop() {
+        synchronized (this) {
+            root = null;
+            for (DirObserver observer : observers.values()) {
+                observer.stopWatching();
+            }
+            observers.clear();
+            added.clear();
+            removedFiles.clear();
+            removedDirs.clear();
+            firstPendingAt = 0;
+        }
+        handler.removeCallbacks(flushRunnable);
+    }
+
+    public void release() {
+        stop();
+        walker.shutdownNow();
+    }
+
+    // Registers observers for a directory and everything below it; optionally reports existing tracks
+    private void watchTree(File dir, String expectedRoot, boolean reportTracks) {
+        final ScanRules scanRules;
+        synchronized (this) {
+            scanRules = rules;
+        }
+        // Pruned directories are not watched, so they can't bring back what the scanner left out
+        if (scanRules.honorsNomedia() && new File(dir, ".nomedia").exists()) return;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        String path = dir.getAbsolutePath();
+        synchronized (this) {
+            if (!expectedRoot.equals(root)) return;
+            if (!observers.containsKey(path)) {
+                DirObserver observer = new DirObserver(path);
+                observers.put(path, observer);
+                observer.startWatching();
+            }
+        }
+        int depth = depthOf(path, expectedRoot);
+        for (File file : files) {
+            String name = file.getName();
+            if (scanRules.excludes(name, relativePath(file.getAbsolutePath(), expectedRoot))) continue;
+            if (file.isDirectory()) {
+                if (scanRules.allowsDirectory(name, depth + 1)) watchTree(file, expectedRoot, reportTracks);
+            } else if (reportTracks && MusicScanner.acceptsTrack(file, scanRules)) {
+                onAdded(file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static String relativePath(String path, String rootPath) {
+        return path.length() > rootPath.length() ? path.substring(rootPath.length() + 1) : "";
+    }
+
+    private static int depthOf(String path, String rootPath) {
+        String relative = relativePath(path, rootPath);
+        if (relative.isEmpty()) return 0;
+        int depth = 1;
+        for (int i = 0; i < relative.length(); i++) {
+            if (relative.charAt(i) == '/') depth++;
+        }
+        return depth;
+    }
+
+    private synchronized void unwatchTree(String dirPath) {
+        String prefix = dirPath + "/";
+        Iterator<Map.Entry<String, DirObserver>> it = observers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, DirObserver> entry = it.next();
+            if (entry.getKey().equals(dirPath) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void onAdded(String path) {
+        removedFiles.remove(path);
+        added.add(path);
+        schedule();
+    }
+
+    private synchronized void onRemovedFile(String path) {
+        added.remove(path);
+        removedFiles.add(path);
+        schedule();
+    }
+
+    private synchronized void onRemovedDir(String dirPath) {
+        String prefix = dirPath + "/";
+        added.removeIf(path -> path.startsWith(prefix));
+        removedDirs.add(dirPath);
+        schedule();
+    }
+
+    private void schedule() {
+        long now = SystemClock.uptimeMillis();
+        if (firstPendingAt == 0) firstPendingAt = now;
+        handler.removeCallbacks(flushRunnable);
+        // Keep extending the quiet period, but never hold changes back longer than MAX_DELAY_MS
+        long delay = Math.min(DEBOUNCE_MS, Math.max(0, firstPendingAt + MAX_DELAY_MS - now));
+        handler.postDelayed(flushRunnable, delay);
+    }
+
+    private void flush() {
+        List<String> addedBatch;
+        List<String> removedFileBatch;
+        List<String> removedDirBatch;
+        synchronized (this) {
+            if (added.isEmpty() && removedFiles.isEmpty() && removedDirs.isEmpty()) return;
+            addedBatch = new ArrayList<>(added);
+            removedFileBatch = new ArrayList<>(removedFiles);
+            removedDirBatch = new ArrayList<>(removedDirs);
+            added.clear();
+            removedFiles.clear();
+            removedDirs.clear();
+            firstPendingAt = 0;
+        }
+        listener.onLibraryChanged(addedBatch, removedFileBatch, removedDirBatch);
+    }
+
+    private class DirObserver extends FileObserver {
+        private final String dirPath;
+
+        @SuppressWarnings("deprecation")
+        DirObserver(String dirPath) {
+            // The String constructor is deprecated on API 29 but is the only one available on API 24
+            super(dirPath, MASK);
+            this.dirPath = dirPath;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            int type = event & FileObserver.ALL_EVENTS;
+            if (type == FileObserver.DELETE_SELF || type == FileObserver.MOVE_SELF) {
+                unwatchTree(dirPath);
+                return;
+            }
+            if (name == null) return;
+            String path = dirPath + "/" + name;
+            final String expectedRoot;
+            final ScanRules scanRules;
+            boolean watchedDir;
+            synchronized (LibraryWatcher.this) {
+                expectedRoot = root;
+                scanRules = rules;
+                watchedDir = observers.containsKey(path);
+            }
+            if (expectedRoot == null) return;
+            if (!watchedDir && scanRules.excludes(name, relativePath(path, expectedRoot))) return;
+            switch (type) {
+                case FileObserver.CREATE:
+                case FileObserver.MOVED_TO:
+                    File file = new File(path);
+                    if (file.isDirectory()) {
+                        if (!scanRules.allowsDirectory(name, depthOf(path, expectedRoot))) break;
+                        // Files can land in a new directory before its observer exists, so walk it once
+                        walker.execute(() -> watchTree(file, expectedRoot, true));
+                    } else if (type == FileObserver.MOVED_TO && MusicScanner.acceptsTrack(file, scanRules)) {
+                        onAdded(path);
+                    }
+                    break;
+                case FileObserver.CLOSE_WRITE:
+                    // Newly created files are only added once fully written
+                    if (MusicScanner.acceptsTrack(new File(path), scanRules)) onAdded(path);
+                    break;
+                case FileObserver.DELETE:
+                case FileObserver.MOVED_FROM:
+                    if (watchedDir) {
+                        unwatchTree(path);
+                        onRemovedDir(path);
+                    } else if (MusicScanner.isSupportedAudio(name)) {
+                        onRemovedFile(path);
+                    }
+                    break;
+            }
+        }
+    }
+}
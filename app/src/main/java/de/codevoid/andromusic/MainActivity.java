@@ -16,11 +16,14 @@ import android.os.Looper;
 import android.os.PowerManager;
 import android.provider.DocumentsContract;
 import android.provider.Settings;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.SeekBar;
@@ -30,16 +33,22 @@ import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.DividerItemDecoration;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
     private static final int PERMISSION_REQUEST_CODE = 100;
@@ -56,9 +65,21 @@ public class MainActivity extends AppCompatActivity {
     private SeekBar sbProgress;
     private TextView tvElapsedTime;
     private TextView tvRemainingTime;
+    private TextView tvScanProgress;
     private RecyclerView lvPlaylist;
     private PlaylistAdapter playlistAdapter;
-    private List<String> displayNames = new ArrayList<>();
+    // The service's playlist; names are looked up as rows are bound
+    private List<String> playlistPaths = new ArrayList<>();
+    private EditText etSearch;
+    // Built off the main thread for the first query; dropped whenever the playlist or its tags change
+    private SearchIndex searchIndex;
+    private int searchGeneration = 0;
+    private boolean indexing = false;
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+    private TrackLibrary trackLibrary;
+    private final TrackLibrary.Listener libraryListener = changed -> refreshDisplayNames();
+    private ScanJob scanJob;
+    private LibraryRoots libraryRoots;
 
     private boolean isUserSeeking = false;
     private final Handler progressHandler = new Handler(Looper.getMainLooper());
@@ -125,13 +146,9 @@ public class MainActivity extends AppCompatActivity {
                 if (uri != null) {
                     getContentResolver().takePersistableUriPermission(uri,
                             Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    // Folders with a file system path are walked directly, anything else through the provider
                     String path = getRealPathFromUri(uri);
-                    if (path != null) {
-                        prefsManager.saveDirectory(path);
-                        scanAndLoad(path);
-                    } else {
-                        Toast.makeText(this, "Could not resolve directory path", Toast.LENGTH_SHORT).show();
-                    }
+                    addRoot(path != null ? path : uri.toString());
                 }
             });
 
@@ -141,6 +158,10 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         prefsManager = new PreferencesManager(this);
+        trackLibrary = TrackLibrary.get(this);
+        trackLibrary.addListener(libraryListener);
+        libraryRoots = new LibraryRoots(new File(getFilesDir(), "library_roots"));
+        LibraryReindexService.schedule(this);
 
         ivCoverArt = findViewById(R.id.iv_cover_art);
         tvCurrentTrack = findViewById(R.id.tv_current_track);
@@ -153,6 +174,7 @@ public class MainActivity extends AppCompatActivity {
         sbProgress = findViewById(R.id.sb_progress);
         tvElapsedTime = findViewById(R.id.tv_elapsed_time);
         tvRemainingTime = findViewById(R.id.tv_remaining_time);
+        tvScanProgress = findViewById(R.id.tv_scan_progress);
 
         sbProgress.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
@@ -176,7 +198,7 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        playlistAdapter = new PlaylistAdapter(displayNames, position -> {
+        playlistAdapter = new PlaylistAdapter(trackLibrary, position -> {
             if (serviceBound) {
                 musicService.playAt(position);
             }
@@ -185,6 +207,22 @@ public class MainActivity extends AppCompatActivity {
         lvPlaylist.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
         lvPlaylist.setAdapter(playlistAdapter);
 
+        etSearch = findViewById(R.id.et_search);
+        etSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                applySearch();
+            }
+        });
+
         btnPlayPause.setOnClickListener(v -> {
             if (serviceBound) {
                 if (musicService.isPlaying()) musicService.pause();
@@ -199,6 +237,10 @@ public class MainActivity extends AppCompatActivity {
                 openDirectoryPicker();
             }
         });
+        btnPickDir.setOnLongClickListener(v -> {
+            showRootsDialog();
+            return true;
+        });
 
         btnShuffle.setOnClickListener(v -> {
             if (serviceBound) {
@@ -207,6 +249,10 @@ public class MainActivity extends AppCompatActivity {
                 updateShuffleButton(newState);
             }
         });
+        btnShuffle.setOnLongClickListener(v -> {
+            showSmartPlaylistsDialog();
+            return true;
+        });
 
         TextView btnCoffee = findViewById(R.id.btn_coffee);
         btnCoffee.setOnClickListener(v -> {
@@ -242,8 +288,14 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
+        if (scanJob != null) {
+            scanJob.cancel();
+            scanJob = null;
+        }
         progressHandler.removeCallbacks(progressRunnable);
         overlayHandler.removeCallbacksAndMessages(null);
+        trackLibrary.removeListener(libraryListener);
+        searchExecutor.shutdownNow();
         if (serviceBound) {
             unbindService(serviceConnection);
             serviceBound = false;
@@ -310,8 +362,8 @@ public class MainActivity extends AppCompatActivity {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         if (requestCode == PERMISSION_REQUEST_CODE) {
             if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                String savedDir = prefsManager.loadDirectory();
-                if (savedDir != null) scanAndLoad(savedDir);
+                List<String> roots = prefsManager.loadLibraryRoots();
+                if (!roots.isEmpty()) scanLibrary(roots, roots, false);
             }
             onAudioPermissionResolved();
         } else if (requestCode == NOTIFICATION_PERMISSION_REQUEST_CODE) {
@@ -320,14 +372,174 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void openDirectoryPicker() {
-        String savedDir = prefsManager.loadDirectory();
+        List<String> roots = prefsManager.loadLibraryRoots();
         Uri initialUri = null;
-        if (savedDir != null) {
-            initialUri = Uri.fromFile(new File(savedDir));
+        if (!roots.isEmpty()) {
+            String last = roots.get(roots.size() - 1);
+            initialUri = DocumentScanner.isDocument(last) ? Uri.parse(last) : Uri.fromFile(new File(last));
         }
         dirPickerLauncher.launch(initialUri);
     }
 
+    private void showRootsDialog() {
+        List<String> roots = prefsManager.loadLibraryRoots();
+        boolean useMediaStore = prefsManager.loadUseMediaStore();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.library_roots)
+                .setItems(roots.toArray(new String[0]), (dialog, which) -> confirmRemoveRoot(roots.get(which)))
+                .setPositiveButton(R.string.add_root, (dialog, which) -> {
+                    if (checkAndRequestPermissions()) openDirectoryPicker();
+                })
+                .setNeutralButton(useMediaStore ? R.string.use_folder_scan : R.string.use_media_store,
+                        (dialog, which) -> setUseMediaStore(!useMediaStore))
+                .show();
+    }
+
+    // Switching the source rebuilds the playlist from every root
+    private void setUseMediaStore(boolean useMediaStore) {
+        prefsManager.saveUseMediaStore(useMediaStore);
+        List<String> roots = prefsManager.loadLibraryRoots();
+        if (!roots.isEmpty() && checkAndRequestPermissions()) scanLibrary(roots, roots, false);
+    }
+
+    private void showSmartPlaylistsDialog() {
+        if (!serviceBound) return;
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.smart_playlists)
+                .setItems(smartPlaylistNames(), (dialog, which) -> {
+                    if (!musicService.playSmartPlaylist(which)) {
+                        Toast.makeText(this, "No matching tracks", Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setPositiveButton(R.string.add_smart_playlist, (dialog, which) -> showNewSmartPlaylistDialog())
+                .setNeutralButton(R.string.remove_smart_playlist, (dialog, which) -> showRemoveSmartPlaylistDialog());
+        // While one is playing, the way back to the whole library
+        if (musicService.isPlayingQueue()) {
+            builder.setNegativeButton(R.string.all_tracks, (dialog, which) -> musicService.playLibrary());
+        }
+        builder.show();
+    }
+
+    private String[] smartPlaylistNames() {
+        SmartPlaylists playlists = musicService.getSmartPlaylists();
+        String[] names = new String[playlists.size()];
+        for (int i = 0; i < names.length; i++) {
+            SmartPlaylist playlist = playlists.get(i);
+            names[i] = getString(R.string.smart_playlist_size, smartPlaylistName(playlist), playlist.size());
+        }
+        return names;
+    }
+
+    private String smartPlaylistName(SmartPlaylist playlist) {
+        switch (playlist.getRule()) {
+            case SmartPlaylist.ARTIST:
+                return getString(R.string.smart_artist, playlist.getValue());
+            case SmartPlaylist.ADDED_WITHIN_DAYS:
+                return getString(R.string.smart_added_within, Integer.parseInt(playlist.getValue()));
+            default:
+                return getString(R.string.smart_never_played);
+        }
+    }
+
+    // Offers the rules there are; the artist of the current track comes first, any other is picked from a list
+    private void showNewSmartPlaylistDialog() {
+        List<SmartPlaylist> choices = new ArrayList<>();
+        int index = musicService.getCurrentIndex();
+        TrackLibrary.Track current = index >= 0 && index < playlistPaths.size()
+                ? trackLibrary.get(playlistPaths.get(index)) : null;
+        if (current != null && current.getArtist() != null) choices.add(SmartPlaylist.byArtist(current.getArtist()));
+        choices.add(SmartPlaylist.addedWithin(30));
+        choices.add(SmartPlaylist.neverPlayed());
+        String[] names = new String[choices.size() + 1];
+        for (int i = 0; i < choices.size(); i++) {
+            names[i] = smartPlaylistName(choices.get(i));
+        }
+        names[choices.size()] = getString(R.string.smart_other_artist);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.add_smart_playlist)
+                .setItems(names, (dialog, which) -> {
+                    if (!serviceBound) return;
+                    if (which < choices.size()) {
+                        musicService.addSmartPlaylist(choices.get(which));
+                    } else {
+                        showArtistDialog();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    // The artists the indexer has found, in name order with their track counts
+    private void showArtistDialog() {
+        LibraryModel model = musicService.getLibraryModel();
+        if (model.artistCount() <= 1) {
+            Toast.makeText(this, "No artists indexed yet", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] names = new String[model.artistCount() - 1];
+        for (int i = 0; i < names.length; i++) {
+            int artist = i + 1;
+            names[i] = getString(R.string.smart_playlist_size, model.artistName(artist),
+                    model.trackCountOfArtist(artist));
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.smart_other_artist)
+                .setItems(names, (dialog, which) -> {
+                    if (serviceBound) musicService.addSmartPlaylist(SmartPlaylist.byArtist(model.artistName(which + 1)));
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void showRemoveSmartPlaylistDialog() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.remove_smart_playlist)
+                .setItems(smartPlaylistNames(), (dialog, which) -> {
+                    if (serviceBound) musicService.removeSmartPlaylist(which);
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void confirmRemoveRoot(String root) {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.remove_root)
+                .setMessage(root)
+                .setPositiveButton(R.string.remove_root, (dialog, which) -> removeRoot(root))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    // Only the new root is scanned; the others contribute the runs saved by their last scan
+    private void addRoot(String root) {
+        List<String> roots = LibraryRoots.withRoot(prefsManager.loadLibraryRoots(), root);
+        if (roots == null) {
+            Toast.makeText(this, "Folder is already in the library", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        for (String existing : prefsManager.loadLibraryRoots()) {
+            if (!roots.contains(existing)) libraryRoots.forget(existing);
+        }
+        prefsManager.saveLibraryRoots(roots);
+        scanLibrary(roots, Collections.singleton(root), true);
+    }
+
+    private void removeRoot(String root) {
+        List<String> roots = prefsManager.loadLibraryRoots();
+        if (!roots.remove(root)) return;
+        prefsManager.saveLibraryRoots(roots);
+        libraryRoots.forget(root);
+        if (DocumentScanner.isDocument(root)) {
+            try {
+                getContentResolver().releasePersistableUriPermission(Uri.parse(root),
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log.w("MainActivity", "No permission held for " + root, e);
+            }
+        }
+        scanLibrary(roots, Collections.<String>emptySet(), true);
+    }
+
     private String getRealPathFromUri(Uri uri) {
         // Try to extract path from document tree URI
         try {
@@ -354,37 +566,162 @@ public class MainActivity extends AppCompatActivity {
         return null;
     }
 
-    private void scanAndLoad(String dirPath) {
-        List<String> scanned = MusicScanner.scan(dirPath);
-        if (scanned.isEmpty()) {
-            Toast.makeText(this, "No audio files found in selected directory", Toast.LENGTH_SHORT).show();
-            return;
+    // With inPlace, a playlist the service already has is brought in line once the scan completes, keeping
+    // the current track; otherwise the scan replaces it batch by batch from the first track
+    private void scanLibrary(List<String> roots, Collection<String> rescan, boolean inPlace) {
+        // Changing the roots abandons the previous scan immediately
+        if (scanJob != null) scanJob.cancel();
+        tvScanProgress.setText(R.string.scanning);
+        tvScanProgress.setVisibility(View.VISIBLE);
+        ScanRules rules = prefsManager.loadScanRules();
+        boolean applyInPlace = inPlace && serviceBound && !musicService.getPlaylist().isEmpty();
+        ScanJob.Callback callback = new ScanJob.Callback() {
+            private final List<String> delivered = new ArrayList<>();
+            private boolean sentToService = false;
+
+            @Override
+            public void onBatch(List<String> tracks) {
+                if (applyInPlace) return;
+                int start = delivered.size();
+                delivered.addAll(tracks);
+                if (serviceBound) {
+                    if (sentToService) {
+                        musicService.appendToPlaylist(tracks);
+                    } else {
+                        musicService.setPlaylist(new ArrayList<>(delivered), 0);
+                        sentToService = true;
+                    }
+                }
+                // Shows the service's copy rather than keeping a second one
+                List<String> shown = serviceBound ? musicService.getPlaylist() : delivered;
+                // The old playlist stays visible until the first batch replaces it
+                if (start == 0) {
+                    loadPlaylistIntoUI(shown);
+                } else {
+                    appendPlaylistToUI(shown, start);
+                }
+            }
+
+            @Override
+            public void onProgress(int directories, int tracks) {
+                tvScanProgress.setText(getString(R.string.scan_progress, tracks, directories));
+            }
+
+            @Override
+            public void onComplete(List<String> tracks) {
+                scanJob = null;
+                tvScanProgress.setVisibility(View.GONE);
+                if (serviceBound) musicService.watchRoots(roots);
+                if (applyInPlace && serviceBound) {
+                    // The service merges the changes and tells the list what it ended up with
+                    musicService.applyScan(tracks);
+                    return;
+                }
+                if (tracks.isEmpty()) {
+                    if (roots.isEmpty()) {
+                        // The last root was removed
+                        loadPlaylistIntoUI(tracks);
+                        if (serviceBound) musicService.setPlaylist(tracks, 0);
+                    } else {
+                        Toast.makeText(MainActivity.this, "No audio files found in selected directory", Toast.LENGTH_SHORT).show();
+                    }
+                    return;
+                }
+                LibraryIndexer.get(MainActivity.this).enqueue(tracks);
+                if (sentToService && serviceBound) {
+                    musicService.savePlaylist();
+                } else {
+                    prefsManager.savePlaylist(tracks);
+                    prefsManager.saveShuffleOrder(0, 0);
+                    prefsManager.saveTrackIndex(0);
+                    prefsManager.savePosition(0);
+                }
+            }
+        };
+        if (prefsManager.loadUseMediaStore()) {
+            scanJob = ScanJob.startMediaStore(getContentResolver(), roots, TrackLibrary.get(this), rules, callback);
+        } else {
+            scanJob = ScanJob.start(getContentResolver(), roots, rescan, libraryRoots,
+                    prefsManager.loadScanParallelism(), rules, callback);
         }
-        prefsManager.savePlaylist(scanned);
-        prefsManager.saveTrackIndex(0);
-        prefsManager.savePosition(0);
-        loadPlaylistIntoUI(scanned);
+    }
+
+    private void loadPlaylistIntoUI(List<String> paths) {
+        playlistPaths = paths;
+        playlistAdapter.setPaths(paths);
+        // Search results point into the old playlist; they come back once the index is rebuilt
+        playlistAdapter.clearRows();
+        playlistAdapter.notifyDataSetChanged();
+        invalidateSearch();
+    }
+
+    // paths is the whole playlist, of which the entries from start on are new
+    private void appendPlaylistToUI(List<String> paths, int start) {
+        playlistPaths = paths;
+        playlistAdapter.setPaths(paths);
+        if (!playlistAdapter.isFiltered()) playlistAdapter.notifyItemRangeInserted(start, paths.size() - start);
+        invalidateSearch();
+    }
+
+    // Tags indexed in the background replace file names without rebuilding the list; only bound rows
+    // are looked up again, and the payload keeps them from cross-fading
+    private void refreshDisplayNames() {
+        playlistAdapter.notifyItemRangeChanged(0, playlistAdapter.getItemCount(), PlaylistAdapter.NAMES_CHANGED);
+        invalidateSearch();
         if (serviceBound) {
-            musicService.setPlaylist(scanned, 0);
+            int index = musicService.getCurrentIndex();
+            if (index >= 0 && index < playlistPaths.size()) {
+                tvCurrentTrack.setText(trackLibrary.displayName(playlistPaths.get(index)));
+            }
         }
     }
 
-    private void loadPlaylistIntoUI(List<String> paths) {
-        displayNames.clear();
-        for (String path : paths) {
-            String name = new File(path).getName();
-            int dot = name.lastIndexOf('.');
-            if (dot > 0) name = name.substring(0, dot);
-            displayNames.add(name);
+    // Filters the list to the tracks matching the search box, or shows all of them when it's empty
+    private void applySearch() {
+        String query = etSearch.getText().toString();
+        if (SearchIndex.normalize(query).isEmpty()) {
+            playlistAdapter.showRows(null);
+            return;
         }
-        playlistAdapter.notifyDataSetChanged();
+        if (searchIndex == null) {
+            // Called again once the index is there
+            buildSearchIndex();
+            return;
+        }
+        playlistAdapter.showRows(searchIndex.search(query));
+    }
+
+    private void invalidateSearch() {
+        searchIndex = null;
+        searchGeneration++;
+        if (etSearch.length() > 0) applySearch();
+    }
+
+    private void buildSearchIndex() {
+        if (indexing) return;
+        indexing = true;
+        int generation = searchGeneration;
+        // Copied here: a running scan grows the list in place, and the service's list decodes from a table
+        // that appends on the main thread and isn't safe to read from another
+        List<String> paths = new ArrayList<>(playlistPaths);
+        searchExecutor.execute(() -> {
+            SearchIndex index = SearchIndex.build(paths, trackLibrary);
+            runOnUiThread(() -> {
+                indexing = false;
+                if (isDestroyed()) return;
+                // A stale index is thrown away and applySearch() starts the next build
+                if (generation == searchGeneration) searchIndex = index;
+                applySearch();
+            });
+        });
     }
 
     private void updateUI(int index) {
-        if (index >= 0 && index < displayNames.size()) {
-            tvCurrentTrack.setText(displayNames.get(index));
+        if (index >= 0 && index < playlistPaths.size()) {
+            tvCurrentTrack.setText(trackLibrary.displayName(playlistPaths.get(index)));
             playlistAdapter.setSelectedIndex(index);
-            lvPlaylist.scrollToPosition(index);
+            int row = playlistAdapter.rowOf(index);
+            if (row >= 0) lvPlaylist.scrollToPosition(row);
         }
         if (serviceBound) {
             btnPlayPause.setImageResource(musicService.isPlaying() ? R.drawable.ic_pause : R.drawable.ic_play);
@@ -459,20 +796,86 @@ public class MainActivity extends AppCompatActivity {
             void onItemClick(int position);
         }
 
-        private final List<String> names;
+        static final Object NAMES_CHANGED = new Object();
+
+        // Result lists up to this size are diffed into moves and removals; longer ones are rebound
+        private static final int DIFF_LIMIT = 2000;
+
+        private final TrackLibrary library;
         private final OnItemClickListener listener;
+        private List<String> paths = new ArrayList<>();
+        // Playlist positions shown while searching, best match first; null shows the whole playlist
+        private int[] rows;
         private int selectedIndex = -1;
 
-        PlaylistAdapter(List<String> names, OnItemClickListener listener) {
-            this.names = names;
+        PlaylistAdapter(TrackLibrary library, OnItemClickListener listener) {
+            this.library = library;
             this.listener = listener;
         }
 
+        void setPaths(List<String> paths) {
+            this.paths = paths;
+        }
+
+        boolean isFiltered() {
+            return rows != null;
+        }
+
+        // Leaves notifying to the caller
+        void clearRows() {
+            rows = null;
+        }
+
+        // Each keystroke changes the results only a little, so short lists are updated in place
+        void showRows(int[] newRows) {
+            int[] oldRows = rows;
+            rows = newRows;
+            if (oldRows == null || newRows == null || oldRows.length > DIFF_LIMIT || newRows.length > DIFF_LIMIT) {
+                if (oldRows != null || newRows != null) notifyDataSetChanged();
+                return;
+            }
+            DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return oldRows.length;
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return newRows.length;
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return oldRows[oldPosition] == newRows[newPosition];
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return true;
+                }
+            }, false).dispatchUpdatesTo(this);
+        }
+
+        private int positionAt(int row) {
+            return rows == null ? row : rows[row];
+        }
+
+        // The row showing a playlist position, or -1 if the search hides it
+        int rowOf(int index) {
+            if (rows == null) return index;
+            for (int row = 0; row < rows.length; row++) {
+                if (rows[row] == index) return row;
+            }
+            return -1;
+        }
+
         void setSelectedIndex(int index) {
-            int previous = selectedIndex;
+            int previous = rowOf(selectedIndex);
             selectedIndex = index;
             if (previous >= 0) notifyItemChanged(previous);
-            if (selectedIndex >= 0) notifyItemChanged(selectedIndex);
+            int row = rowOf(selectedIndex);
+            if (row >= 0) notifyItemChanged(row);
         }
 
         @Override
@@ -484,14 +887,15 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
-            holder.textView.setText(names.get(position));
-            holder.itemView.setActivated(position == selectedIndex);
-            holder.itemView.setOnClickListener(v -> listener.onItemClick(position));
+            int index = positionAt(position);
+            holder.textView.setText(library.displayName(paths.get(index)));
+            holder.itemView.setActivated(index == selectedIndex);
+            holder.itemView.setOnClickListener(v -> listener.onItemClick(index));
         }
 
         @Override
         public int getItemCount() {
-            return names.size();
+            return rows == null ? paths.size() : rows.length;
         }
 
         static class ViewHolder extends RecyclerView.ViewHolder {
@@ -0,0 +1,116 @@
+package de.codevoid.andromusic;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.provider.MediaStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Builds the library from the system media database instead of walking the folders, for devices whose
+// media scanner has already indexed everything. Produces the same sorted paths as MusicScanner.
+public class MediaStoreScanner {
+    static final int PAGE_SIZE = 500;
+
+    static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+    };
+
+    // The rows below the roots, filtered by the same rules as a walk and sorted in NaturalOrder.
+    // Titles, artists and albums are seeded into the library when one is given. Throws
+    // OperationCanceledException once the signal is cancelled.
+    public static List<String> scan(ContentResolver resolver, List<String> roots, ScanRules rules,
+                                    TrackLibrary library, CancellationSignal signal) {
+        List<String> tracks = new ArrayList<>();
+        if (roots.isEmpty()) return tracks;
+        // DATA is deprecated for writing since Q but still holds the path, which is what the playlist keys on
+        StringBuilder selection = new StringBuilder(MediaStore.Audio.Media.IS_MUSIC + " != 0 AND (");
+        String[] args = new String[roots.size() + 1];
+        for (int i = 0; i < roots.size(); i++) {
+            if (i > 0) selection.append(" OR ");
+            selection.append(MediaStore.Audio.Media.DATA).append(" LIKE ? ESCAPE '\\'");
+            args[i] = likePrefix(roots.get(i));
+        }
+        selection.append(") AND ").append(MediaStore.Audio.Media._ID).append(" > ?");
+
+        // Pages by _ID rather than by offset, so every page is an index seek however deep the cursor goes
+        long lastId = -1;
+        while (true) {
+            args[args.length - 1] = Long.toString(lastId);
+            int rows = 0;
+            try (Cursor cursor = query(resolver, selection.toString(), args, signal)) {
+                if (cursor == null) break;
+                while (cursor.moveToNext()) {
+                    rows++;
+                    lastId = cursor.getLong(0);
+                    String path = cursor.getString(1);
+                    String root = path != null ? rootOf(roots, path) : null;
+                    if (root == null || !accepts(root, path, rules)) continue;
+                    tracks.add(path);
+                    if (library != null) {
+                        library.seed(path, cursor.getLong(6) * 1000, cursor.getString(2), cursor.getString(3),
+                                cursor.getString(4), cursor.getLong(5));
+                    }
+                }
+            }
+            // A provider that ignores the limit returns everything at once; the next page is then empty
+            if (rows < PAGE_SIZE) break;
+        }
+        new NaturalOrder().sort(tracks);
+        return tracks;
+    }
+
+    private static Cursor query(ContentResolver resolver, String selection, String[] args, CancellationSignal signal) {
+        String order = MediaStore.Audio.Media._ID + " ASC";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, args);
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, order);
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, PAGE_SIZE);
+            return resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION, queryArgs, signal);
+        }
+        // Older media providers take the limit as part of the sort order
+        return resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION, selection, args,
+                order + " LIMIT " + PAGE_SIZE, signal);
+    }
+
+    // LIKE ignores ASCII case, so the match is checked again exactly by rootOf()
+    private static String likePrefix(String root) {
+        String prefix = root.endsWith("/") ? root : root + "/";
+        return prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    private static String rootOf(List<String> roots, String path) {
+        for (String root : roots) {
+            if (!path.equals(root) && LibraryRoots.contains(root, path)) return root;
+        }
+        return null;
+    }
+
+    // Applies the walk's name rules to every folder between the root and the file. The media scanner has
+    // already skipped .nomedia folders and looked at the content, so those rules need no checking here.
+    static boolean accepts(String root, String path, ScanRules rules) {
+        String relative = path.substring(root.endsWith("/") ? root.length() : root.length() + 1);
+        int start = 0;
+        int depth = 0;
+        while (true) {
+            int slash = relative.indexOf('/', start);
+            int end = slash < 0 ? relative.length() : slash;
+            String name = relative.substring(start, end);
+            if (rules.excludes(name, relative.substring(0, end))) return false;
+            if (slash < 0) return MusicScanner.isSupportedAudio(name);
+            if (!rules.allowsDirectory(name, ++depth)) return false;
+            start = slash + 1;
+        }
+    }
+}
@@ -1,36 +1,536 @@
 package de.codevoid.andromusic;
 
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 public class MusicScanner {
 
+    // java.nio.file is only available from API 26; older devices keep the File based listing
+    static final boolean NIO_AVAILABLE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+
+    public interface Visitor {
+        // Called after each directory is listed, from pool threads when scanning in parallel.
+        // Returning false stops the walk.
+        boolean onDirectory(File dir);
+        // Called on the scanning thread, in the same order scan() returns the tracks
+        void onTrack(String path);
+    }
+
     public static List<String> scan(String directoryPath) {
+        return scan(directoryPath, 1, null);
+    }
+
+    public static List<String> scan(String directoryPath, int parallelism) {
+        return scan(directoryPath, parallelism, null);
+    }
+
+    public static List<String> scan(String directoryPath, int parallelism, ScanManifest manifest) {
+        return scan(directoryPath, parallelism, manifest, ScanRules.NONE);
+    }
+
+    // With a manifest, directories whose mtime is unchanged are not listed again.
+    // Results are in NaturalOrder, the same order scanOrdered() streams them in.
+    public static List<String> scan(String directoryPath, int parallelism, ScanManifest manifest, ScanRules rules) {
+        return scan(directoryPath, parallelism, manifest, rules, NIO_AVAILABLE);
+    }
+
+    static List<String> scan(String directoryPath, int parallelism, ScanManifest manifest, ScanRules rules,
+                             boolean nio) {
         List<String> results = new ArrayList<>();
-        File dir = new File(directoryPath);
-        if (dir.exists() && dir.isDirectory()) {
-            scanRecursive(dir, results);
+        Walk walk = new Walk(manifest, rules, nio);
+        Dir root = rootDir(directoryPath, walk);
+        if (root != null) {
+            if (parallelism > 1) {
+                results = scanParallel(root, parallelism, walk);
+            } else {
+                scanSequential(root, walk, results);
+            }
+            walk.order.sort(results);
         }
-        Collections.sort(results);
         return results;
     }
 
-    private static void scanRecursive(File dir, List<String> results) {
-        File[] files = dir.listFiles();
-        if (files == null) return;
-        for (File file : files) {
-            if (file.isDirectory()) {
-                scanRecursive(file, results);
-            } else if (isSupportedAudio(file.getName())) {
-                results.add(file.getAbsolutePath());
+    // Scans each root on its own thread and merges the sorted runs instead of re-sorting the union
+    public static List<String> scan(List<String> roots, int parallelism, ScanRules rules) {
+        if (roots.size() == 1) return scan(roots.get(0), parallelism, null, rules);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, roots.size()));
+        try {
+            List<Future<List<String>>> scans = new ArrayList<>(roots.size());
+            for (String root : roots) {
+                scans.add(executor.submit(() -> scan(root, parallelism, null, rules)));
+            }
+            List<String> results = new ArrayList<>();
+            RunMerger merger = new RunMerger(roots.size(), new NaturalOrder(), results::add);
+            for (int i = 0; i < scans.size(); i++) {
+                merger.addAll(i, scans.get(i).get());
+                merger.finish(i);
             }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void scanSequential(Dir root, Walk walk, List<String> results) {
+        Deque<Dir> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Dir dir = stack.pop();
+            Listing listing = listDirectory(dir, walk);
+            if (listing == null) continue;
+            for (String name : listing.audio) {
+                results.add(new File(dir.file, name).getPath());
+            }
+            for (Dir subdir : listing.subdirs) {
+                stack.push(subdir);
+            }
+        }
+    }
+
+    private static List<String> scanParallel(Dir root, int parallelism, Walk walk) {
+        Queue<List<String>> buffers = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ScanTask(root, walk, buffers));
+        } finally {
+            pool.shutdown();
+        }
+        // Merge the per-directory buffers once, sized up front
+        int total = 0;
+        for (List<String> buffer : buffers) total += buffer.size();
+        List<String> results = new ArrayList<>(total);
+        for (List<String> buffer : buffers) results.addAll(buffer);
+        return results;
+    }
+
+    // Streams tracks in sorted order without sorting the whole result at the end
+    public static void scanOrdered(String directoryPath, int parallelism, ScanManifest manifest, ScanRules rules,
+                                   Visitor visitor) {
+        Walk walk = new Walk(manifest, rules, NIO_AVAILABLE);
+        Dir root = rootDir(directoryPath, walk);
+        if (root == null) return;
+        if (parallelism > 1) {
+            scanOrderedParallel(root, parallelism, walk, visitor);
+        } else {
+            walkOrdered(root, walk, visitor);
+        }
+    }
+
+    private static boolean walkOrdered(Dir root, Walk walk, Visitor visitor) {
+        Listing rootListing = listDirectory(root, walk);
+        if (rootListing == null) return true;
+        if (!visitor.onDirectory(root.file)) return false;
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(root, rootListing, walk.order));
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.nextSubdir < frame.subdirs.size()) {
+                Dir subdir = frame.subdirs.get(frame.nextSubdir++);
+                frame.emitTracksBefore(subdir.sortKey, visitor);
+                Listing listing = listDirectory(subdir, walk);
+                if (listing == null) continue;
+                if (!visitor.onDirectory(subdir.file)) return false;
+                stack.push(new Frame(subdir, listing, walk.order));
+            } else {
+                frame.emitTracksBefore(null, visitor);
+                stack.pop();
+            }
+        }
+        return true;
+    }
+
+    private static void scanOrderedParallel(Dir root, int parallelism, Walk walk, Visitor visitor) {
+        Listing listing = listDirectory(root, walk);
+        if (listing == null || !visitor.onDirectory(root.file)) return;
+        Frame frame = new Frame(root, listing, walk.order);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            // Top-level subtrees are walked concurrently, then replayed in order
+            List<Future<List<String>>> subtrees = new ArrayList<>(frame.subdirs.size());
+            for (Dir subdir : frame.subdirs) {
+                subtrees.add(pool.submit(() -> {
+                    CollectingVisitor collector = new CollectingVisitor(visitor);
+                    return walkOrdered(subdir, walk, collector) ? collector.tracks : null;
+                }));
+            }
+            for (int s = 0; s < frame.subdirs.size(); s++) {
+                frame.emitTracksBefore(frame.subdirs.get(s).sortKey, visitor);
+                List<String> tracks = subtrees.get(s).get();
+                if (tracks == null) return;
+                for (String track : tracks) {
+                    visitor.onTrack(track);
+                }
+            }
+            frame.emitTracksBefore(null, visitor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Dir rootDir(String directoryPath, Walk walk) {
+        Dir root = new Dir(new File(directoryPath).getAbsoluteFile(), "", null);
+        if (walk.nio) {
+            return NioLister.readAttributes(root) && root.isDirectory ? root : null;
+        }
+        return root.file.exists() && root.file.isDirectory() ? root : null;
+    }
+
+    private static Listing listDirectory(Dir dir, Walk walk) {
+        ScanManifest manifest = walk.manifest;
+        // Subdirectories listed through NIO already carry their mtime and file key
+        if (!dir.hasAttributes && manifest != null) {
+            if (walk.nio) {
+                if (!NioLister.readAttributes(dir) || !dir.isDirectory) return null;
+            } else {
+                dir.setAttributes(true, dir.file.lastModified(), null);
+            }
+        }
+        // File has no file key, and NIO may not have one either; the resolved path stands in for it
+        if (dir.fileKey == null) dir.fileKey = canonicalPath(dir.file);
+        if (dir.isCycle()) return null;
+        String path = dir.file.getPath();
+        if (manifest != null) {
+            ScanManifest.Entry cached = manifest.lookup(path, dir.mtime);
+            if (cached != null) {
+                List<Dir> subdirs = new ArrayList<>(cached.subdirs.size());
+                for (String name : cached.subdirs) {
+                    subdirs.add(new Dir(new File(dir.file, name), dir.childPath(name), dir));
+                }
+                return new Listing(cached.audio, subdirs, cached.childCount);
+            }
+        }
+        Listing listing = listEntries(dir, walk);
+        if (listing != null && manifest != null) {
+            List<String> subdirNames = new ArrayList<>(listing.subdirs.size());
+            for (Dir subdir : listing.subdirs) {
+                subdirNames.add(subdir.file.getName());
+            }
+            manifest.record(new ScanManifest.Entry(path, dir.mtime, listing.childCount, subdirNames, listing.audio));
+        }
+        return listing;
+    }
+
+    // Names are read first so pruned entries are never stat'ed, then one attribute read per entry
+    private static Listing listEntries(Dir dir, Walk walk) {
+        ScanRules rules = walk.rules;
+        String[] names = walk.nio ? NioLister.names(dir) : dir.file.list();
+        if (names == null) return null;
+        List<Dir> subdirs = new ArrayList<>();
+        List<String> audio = new ArrayList<>();
+        if (rules.honorsNomedia()) {
+            for (String name : names) {
+                // A .nomedia marker hides the directory and everything below it
+                if (".nomedia".equals(name)) return new Listing(audio, subdirs, names.length);
+            }
+        }
+        for (String name : names) {
+            String relativePath = dir.childPath(name);
+            if (rules.excludes(name, relativePath)) continue;
+            Dir child = new Dir(new File(dir.file, name), relativePath, dir);
+            boolean isDirectory;
+            if (walk.nio) {
+                // Broken links stay candidates for tracks, like File.isDirectory() treated them
+                isDirectory = NioLister.readAttributes(child) && child.isDirectory;
+            } else {
+                isDirectory = child.file.isDirectory();
+            }
+            if (isDirectory) {
+                if (rules.allowsDirectory(name, child.depth)) subdirs.add(child);
+            } else if (isSupportedAudio(name) && (!rules.sniffsContent() || isPlayable(child.file))) {
+                audio.add(name);
+            }
+        }
+        return new Listing(audio, subdirs, names.length);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    private static class NioLister {
+
+        static String[] names(Dir dir) {
+            List<String> names = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.file.toPath())) {
+                for (Path entry : stream) {
+                    names.add(entry.getFileName().toString());
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                return null;
+            }
+            return names.toArray(new String[0]);
+        }
+
+        // One attribute read gives the type, mtime and file key together
+        static boolean readAttributes(Dir dir) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(dir.file.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                return false;
+            }
+            dir.setAttributes(attrs.isDirectory(), attrs.lastModifiedTime().toMillis(), attrs.fileKey());
+            return true;
+        }
+    }
+
+    private static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
         }
     }
 
-    private static boolean isSupportedAudio(String name) {
+    private static final class Walk {
+        final ScanManifest manifest;
+        final ScanRules rules;
+        // Whether entries are listed through java.nio.file or File
+        final boolean nio;
+        // Shared by the threads of a parallel walk so each directory name is keyed once
+        final NaturalOrder order = new NaturalOrder();
+
+        Walk(ScanManifest manifest, ScanRules rules, boolean nio) {
+            this.manifest = manifest;
+            this.rules = rules;
+            this.nio = nio;
+        }
+    }
+
+    // A directory to visit; attributes are filled in when they were read while listing the parent
+    private static final class Dir {
+        final File file;
+        final String relativePath;
+        final Dir parent;
+        final int depth;
+        // Set when the parent is ordered; a subdirectory sorts against its sibling files by the key its
+        // tracks' paths continue with, which matches full path order
+        byte[] sortKey;
+        boolean hasAttributes;
+        boolean isDirectory;
+        long mtime;
+        Object fileKey;
+
+        Dir(File file, String relativePath, Dir parent) {
+            this.file = file;
+            this.relativePath = relativePath;
+            this.parent = parent;
+            this.depth = parent != null ? parent.depth + 1 : 0;
+        }
+
+        String childPath(String name) {
+            return relativePath.isEmpty() ? name : relativePath + '/' + name;
+        }
+
+        void setAttributes(boolean isDirectory, long mtime, Object fileKey) {
+            this.hasAttributes = true;
+            this.isDirectory = isDirectory;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+        }
+
+        // A symlink back to an ancestor would otherwise be walked forever
+        boolean isCycle() {
+            if (fileKey == null) return false;
+            for (Dir ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+                if (fileKey.equals(ancestor.fileKey)) return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Listing {
+        final List<String> audio;
+        final List<Dir> subdirs;
+        final int childCount;
+
+        Listing(List<String> audio, List<Dir> subdirs, int childCount) {
+            this.audio = audio;
+            this.subdirs = subdirs;
+            this.childCount = childCount;
+        }
+    }
+
+    // Position within one directory of an ordered walk
+    private static final class Frame {
+        final Dir dir;
+        final List<String> audio;
+        final List<Dir> subdirs;
+        int nextTrack = 0;
+        int nextSubdir = 0;
+
+        private final NaturalOrder order;
+
+        Frame(Dir dir, Listing listing, NaturalOrder order) {
+            this.dir = dir;
+            this.order = order;
+            this.audio = new ArrayList<>(listing.audio);
+            this.subdirs = new ArrayList<>(listing.subdirs);
+            for (Dir subdir : subdirs) {
+                subdir.sortKey = order.directoryKey(subdir.file.getName());
+            }
+            Collections.sort(audio, (a, b) -> NaturalOrder.compareKeys(order.nameKey(a), order.nameKey(b)));
+            Collections.sort(subdirs, (a, b) -> NaturalOrder.compareKeys(a.sortKey, b.sortKey));
+        }
+
+        // Emits the remaining tracks that sort before the given key, or all of them for null
+        void emitTracksBefore(byte[] key, Visitor visitor) {
+            while (nextTrack < audio.size()
+                    && (key == null || NaturalOrder.compareKeys(order.nameKey(audio.get(nextTrack)), key) < 0)) {
+                visitor.onTrack(new File(dir.file, audio.get(nextTrack++)).getPath());
+            }
+        }
+    }
+
+    private static class ScanTask extends RecursiveAction {
+        private final Dir dir;
+        private final Walk walk;
+        private final Queue<List<String>> buffers;
+
+        ScanTask(Dir dir, Walk walk, Queue<List<String>> buffers) {
+            this.dir = dir;
+            this.walk = walk;
+            this.buffers = buffers;
+        }
+
+        @Override
+        protected void compute() {
+            Listing listing = listDirectory(dir, walk);
+            if (listing == null) return;
+            if (!listing.audio.isEmpty()) {
+                List<String> buffer = new ArrayList<>(listing.audio.size());
+                for (String name : listing.audio) {
+                    buffer.add(new File(dir.file, name).getPath());
+                }
+                buffers.add(buffer);
+            }
+            if (listing.subdirs.isEmpty()) return;
+            List<ScanTask> subtasks = new ArrayList<>(listing.subdirs.size());
+            for (Dir subdir : listing.subdirs) {
+                subtasks.add(new ScanTask(subdir, walk, buffers));
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    public interface TrackSink {
+        void onTrack(String path);
+    }
+
+    // Merges sorted runs that arrive concurrently, one per root. A head is only emitted once every
+    // unfinished run has something to compare it with. With a handful of roots, picking the smallest
+    // head linearly is cheaper than keeping a heap.
+    static final class RunMerger {
+        private final List<ArrayDeque<String>> pending;
+        private final boolean[] finished;
+        private final NaturalOrder order;
+        private final TrackSink sink;
+        private String last;
+
+        RunMerger(int runs, NaturalOrder order, TrackSink sink) {
+            this.pending = new ArrayList<>(runs);
+            for (int i = 0; i < runs; i++) {
+                pending.add(new ArrayDeque<>());
+            }
+            this.finished = new boolean[runs];
+            this.order = order;
+            this.sink = sink;
+        }
+
+        synchronized void add(int run, String path) {
+            pending.get(run).add(path);
+            drain();
+        }
+
+        synchronized void addAll(int run, List<String> paths) {
+            pending.get(run).addAll(paths);
+            drain();
+        }
+
+        synchronized void finish(int run) {
+            finished[run] = true;
+            drain();
+        }
+
+        private void drain() {
+            while (true) {
+                int smallest = -1;
+                for (int run = 0; run < pending.size(); run++) {
+                    ArrayDeque<String> queue = pending.get(run);
+                    if (queue.isEmpty()) {
+                        if (!finished[run]) return;
+                    } else if (smallest < 0 || order.compare(queue.peek(), pending.get(smallest).peek()) < 0) {
+                        smallest = run;
+                    }
+                }
+                if (smallest < 0) return;
+                String path = pending.get(smallest).poll();
+                // Overlapping roots would otherwise list a track twice
+                if (!path.equals(last)) sink.onTrack(path);
+                last = path;
+            }
+        }
+    }
+
+    private static class CollectingVisitor implements Visitor {
+        private final Visitor delegate;
+        final List<String> tracks = new ArrayList<>();
+
+        CollectingVisitor(Visitor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean onDirectory(File dir) {
+            return delegate.onDirectory(dir);
+        }
+
+        @Override
+        public void onTrack(String path) {
+            tracks.add(path);
+        }
+    }
+
+    static boolean isSupportedAudio(String name) {
         String lower = name.toLowerCase();
-        return lower.endsWith(".mp3") || lower.endsWith(".flac") || lower.endsWith(".ogg");
+        return lower.endsWith(".mp3") || lower.endsWith(".flac") || lower.endsWith(".ogg")
+                || lower.endsWith(".opus") || lower.endsWith(".m4a") || lower.endsWith(".wav");
+    }
+
+    // The extension only nominates a file; its header decides whether MediaPlayer can open it
+    static boolean isPlayable(File file) {
+        return AudioSniffer.get().sniff(file) != AudioSniffer.Format.UNKNOWN;
+    }
+
+    static boolean acceptsTrack(File file, ScanRules rules) {
+        return isSupportedAudio(file.getName()) && (!rules.sniffsContent() || isPlayable(file));
     }
 }
@@ -12,6 +12,7 @@ import android.media.AudioFocusRequest;
 import android.media.AudioManager;
 import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
+import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
@@ -28,20 +29,34 @@ import androidx.core.app.NotificationCompat;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 public class MusicService extends Service {
     private static final String TAG = "MusicService";
     private static final String CHANNEL_ID = "MusicServiceChannel";
     private static final int NOTIFICATION_ID = 1;
+    // Position checkpoints; each is one small record in the state journal
+    private static final int CHECKPOINT_MS = 1000;
 
     public static final String ACTION_PLAY_PAUSE = "de.codevoid.andromusic.PLAY_PAUSE";
     public static final String ACTION_NEXT = "de.codevoid.andromusic.NEXT";
     public static final String ACTION_PREV = "de.codevoid.andromusic.PREV";
 
+    // The live instance for in-process callers that must not start it; main thread only
+    private static MusicService running;
+
     private final IBinder binder = new MusicBinder();
     private MediaPlayer mediaPlayer;
     private MediaSessionCompat mediaSession;
@@ -49,12 +64,32 @@ public class MusicService extends Service {
     private AudioFocusRequest audioFocusRequest;
     private PreferencesManager prefsManager;
 
-    private List<String> playlist = new ArrayList<>();
-    private List<String> originalPlaylist = new ArrayList<>();
+    // Every track once, front-coded; the library order, the queue and the play order are indices into it
+    private PathTable paths = new PathTable();
+    // Scan order. The play order shares this array unless shuffled or a queue is played; none of the orders
+    // is modified in place.
+    private int[] libraryOrder = new int[0];
+    // The members of a smart playlist in library order, played instead of the library; null for the library
+    private int[] queue;
+    private int[] playlist = new int[0];
+    // Null while the play order is the queue's, or the library's, own order
+    private ShuffleOrder shuffle;
+    // From startup until hydrate(), the saved tracks being played (the queue file's, else the playlist
+    // file's) stand in for the table and the orders above, which are still empty; only playback and reads
+    // use them
+    private List<String> savedTracks;
+    private Hydration hydration;
+    // Built on first use from the library order; dropped whenever the tracks or their tags change
+    private LibraryModel libraryModel;
     private int currentIndex = 0;
     private boolean isPlaying = false;
     private boolean pausedForTransientFocusLoss = false;
     private boolean shuffleEnabled = false;
+    // False while the player prepares, when it can't be started, sought or asked for its position
+    private boolean playerPrepared = false;
+    // Cleared for a warm start, so the prepared track waits, paused, for play()
+    private boolean startWhenPrepared = true;
+    private int seekWhenPrepared;
     private Bitmap currentCoverArt;
     private String currentTitle;
     private String currentArtist;
@@ -63,6 +98,17 @@ public class MusicService extends Service {
     private final AudioManager.OnAudioFocusChangeListener audioFocusChangeListener = this::onAudioFocusChange;
 
     private final ExecutorService metadataExecutor = Executors.newSingleThreadExecutor();
+    // One watcher per library root, all feeding the same playlist
+    private final Map<String, LibraryWatcher> libraryWatchers = new HashMap<>();
+    private LibraryRoots libraryRoots;
+    private TrackLibrary trackLibrary;
+    // How many of the library's moves relinkMovedTracks() has looked at
+    private int relinkedMoves;
+    // Evaluated against the library on first use, then kept current from the changes passing through here
+    private SmartPlaylists smartPlaylists;
+    private final TrackLibrary.Listener libraryListener = this::onLibraryUpdated;
+    // The current track after its file disappeared, until the indexer finds where it went
+    private String lostTrack;
 
     private final Handler saveHandler = new Handler(Looper.getMainLooper());
     private final Runnable saveRunnable = new Runnable() {
@@ -71,7 +117,7 @@ public class MusicService extends Service {
             if (mediaPlayer != null && isPlaying) {
                 prefsManager.savePosition(mediaPlayer.getCurrentPosition());
             }
-            saveHandler.postDelayed(this, 5000);
+            saveHandler.postDelayed(this, CHECKPOINT_MS);
         }
     };
 
@@ -93,17 +139,108 @@ public class MusicService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        running = this;
+        // Start foreground immediately to prevent service being killed on Android 8+; nothing is loaded yet
+        createNotificationChannel();
+        startForeground(NOTIFICATION_ID, buildNotification());
         prefsManager = new PreferencesManager(this);
+        libraryRoots = new LibraryRoots(new File(getFilesDir(), "library_roots"));
+        // Returns before its file is read; the indexer and the play history are loaded by startHydration()
+        trackLibrary = TrackLibrary.get(this);
         audioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
-        createNotificationChannel();
         setupMediaSession();
-        playlist = prefsManager.loadPlaylist();
-        originalPlaylist = new ArrayList<>(playlist);
+        // Only the current track is resolved here; the playlist file is mapped, not read, and the table is
+        // built in the background by startHydration()
+        List<String> saved = prefsManager.loadPlaylist();
+        List<String> savedQueue = prefsManager.loadQueue();
+        List<String> playing = savedQueue.isEmpty() ? saved : savedQueue;
         currentIndex = prefsManager.loadTrackIndex();
         shuffleEnabled = prefsManager.loadShuffleEnabled();
-        if (currentIndex >= playlist.size()) currentIndex = 0;
-        // Start foreground immediately to prevent service being killed on Android 8+
-        startForeground(NOTIFICATION_ID, buildNotification());
+        long seed = prefsManager.loadShuffleSeed();
+        int first = prefsManager.loadShuffleFirst();
+        if (seed != 0 && first < playing.size()) {
+            shuffle = new ShuffleOrder(playing.size(), seed, first);
+        }
+        if (currentIndex >= playing.size()) currentIndex = 0;
+        startHydration(saved, savedQueue.isEmpty() ? null : savedQueue);
+        if (trackCount() > 0) {
+            showSavedTrack();
+            updateMetadata();
+        }
+        if (prefsManager.loadWarmStart()) saveHandler.post(this::warmStart);
+    }
+
+    // The table for the saved playlist and queue, and the tracks the library has yet to index, worked out
+    // together
+    private static final class Hydration {
+        final List<String> library;
+        final List<String> queued;
+        // The table indices of the library's tracks followed by the queue's; set by the task
+        int[] indices;
+        final List<String> unknown = new ArrayList<>();
+        final FutureTask<PathTable> task;
+
+        Hydration(List<String> library, List<String> queued, TrackLibrary trackLibrary) {
+            this.library = library;
+            this.queued = queued;
+            task = new FutureTask<>(() -> {
+                // Otherwise every track would count as unknown while the file is still being read
+                trackLibrary.awaitLoaded();
+                for (String path : library) {
+                    if (trackLibrary.get(path) == null) unknown.add(path);
+                }
+                List<String> all = withQueue(library, queued);
+                indices = new int[all.size()];
+                return new PathTable(all, indices);
+            });
+        }
+    }
+
+    // Builds the table off the main thread; hydrate() installs it
+    private void startHydration(List<String> saved, List<String> savedQueue) {
+        Hydration started = new Hydration(saved, savedQueue, trackLibrary);
+        savedTracks = savedQueue != null ? savedQueue : saved;
+        hydration = started;
+        metadataExecutor.execute(() -> {
+            // Both read their files on first use, which is better done here than on the main thread
+            LibraryIndexer.get(this);
+            PlayHistory.get(this);
+            started.task.run();
+            saveHandler.post(this::hydrate);
+        });
+    }
+
+    // Calls that change the playlist come through here first. One that comes before the background build
+    // has started runs it on the calling thread instead; one that comes during it waits for it.
+    private void hydrate() {
+        if (savedTracks == null || running != this) return;
+        Hydration done = hydration;
+        PathTable table;
+        try {
+            done.task.run();
+            table = done.task.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Failed to read the saved playlist", e);
+            table = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            table = null;
+        }
+        savedTracks = null;
+        hydration = null;
+        if (table != null) {
+            paths = table;
+            setOrders(done.indices, done.library.size(), done.queued != null);
+            playlist = shuffle != null ? shuffle.apply(queueOrder()) : queueOrder();
+        } else {
+            shuffle = null;
+            setTracks(new ArrayList<String>(), null);
+            currentIndex = 0;
+        }
+        relinkMovedTracks();
+        trackLibrary.addListener(libraryListener);
+        watchRoots(prefsManager.loadLibraryRoots());
+        if (table != null) LibraryIndexer.get(this).enqueue(done.unknown);
     }
 
     @Override
@@ -131,16 +268,16 @@ public class MusicService extends Service {
 
     @Override
     public void onDestroy() {
+        running = null;
         saveState();
         saveHandler.removeCallbacks(saveRunnable);
         metadataExecutor.shutdownNow();
-        if (mediaPlayer != null) {
-            mediaPlayer.setOnCompletionListener(null);
-            mediaPlayer.setOnErrorListener(null);
-            mediaPlayer.setOnPreparedListener(null);
-            mediaPlayer.release();
-            mediaPlayer = null;
+        for (LibraryWatcher watcher : libraryWatchers.values()) {
+            watcher.release();
         }
+        libraryWatchers.clear();
+        trackLibrary.removeListener(libraryListener);
+        releasePlayer();
         if (mediaSession != null) {
             mediaSession.release();
         }
@@ -184,18 +321,342 @@ public class MusicService extends Service {
         updatePlaybackState(PlaybackStateCompat.STATE_NONE);
     }
 
+    // Replaces the library, and plays all of it
     public void setPlaylist(List<String> newPlaylist, int startIndex) {
-        originalPlaylist = new ArrayList<>(newPlaylist);
-        playlist = new ArrayList<>(newPlaylist);
+        hydrate();
+        setTracks(newPlaylist, null);
+        setShuffle(null);
         currentIndex = startIndex;
-        prefsManager.savePlaylist(playlist);
+        lostTrack = null;
+        prefsManager.savePlaylist(newPlaylist);
+        saveQueue();
         prefsManager.saveTrackIndex(currentIndex);
         pendingAction = "▶ Play";
         prepareAndPlay(0);
     }
 
+    // Extends the playlist while a scan is still delivering batches; persisted by savePlaylist()
+    public void appendToPlaylist(List<String> tracks) {
+        hydrate();
+        int[] added = new int[tracks.size()];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = paths.append(tracks.get(i));
+        }
+        String currentTrack = shuffle != null && playlist.length > 0 ? trackAt(currentIndex) : null;
+        libraryOrder = concat(libraryOrder, added);
+        libraryModel = null;
+        // A queue being played doesn't grow with the library
+        if (queue != null) return;
+        playlist = libraryOrder;
+        if (shuffle != null) {
+            // Shuffle turned on mid-scan; the new draw reorders rows already shown
+            reshuffle(currentTrack);
+            int index = currentTrack != null ? positionOf(currentTrack) : -1;
+            if (index >= 0) currentIndex = index;
+            prefsManager.saveTrackIndex(currentIndex);
+            if (trackChangeListener != null) trackChangeListener.onPlaylistChanged(playlistPaths(), currentIndex);
+        }
+    }
+
+    // Called when a scan completes: folds the tracks appended during it into the front-coded table and
+    // evaluates the smart playlists against the new library
+    public void savePlaylist() {
+        hydrate();
+        // Rebuilding keeps every library and queue position, so the shuffle still fits
+        setTracks(libraryPaths(), queuePaths());
+        if (shuffle != null) setShuffle(shuffle);
+        prefsManager.savePlaylist(libraryPaths());
+        if (smartPlaylists != null) smartPlaylists.rebuild(libraryPaths());
+    }
+
+    // Rebuilds the table from the library order and the queue, if any; the play order follows the queue, or
+    // the library, until a shuffle is set again
+    private void setTracks(List<String> library, List<String> queued) {
+        List<String> all = withQueue(library, queued);
+        int[] indices = new int[all.size()];
+        paths = new PathTable(all, indices);
+        setOrders(indices, library.size(), queued != null);
+        playlist = queueOrder();
+    }
+
+    // The queue's tracks are listed after the library's, so a queue track missing from the library still
+    // gets an index and the saved positions in the queue hold
+    private static List<String> withQueue(List<String> library, List<String> queued) {
+        if (queued == null) return library;
+        List<String> all = new ArrayList<>(library.size() + queued.size());
+        all.addAll(library);
+        all.addAll(queued);
+        return all;
+    }
+
+    private void setOrders(int[] indices, int librarySize, boolean queued) {
+        libraryOrder = queued ? Arrays.copyOf(indices, librarySize) : indices;
+        queue = queued ? Arrays.copyOfRange(indices, librarySize, indices.length) : null;
+        libraryModel = null;
+    }
+
+    private int[] queueOrder() {
+        return queue != null ? queue : libraryOrder;
+    }
+
+    // Saved as its seed and first track; the playlist file always holds the library order, and the queue
+    // file the queue's
+    private void setShuffle(ShuffleOrder order) {
+        shuffle = order;
+        playlist = order != null ? order.apply(queueOrder()) : queueOrder();
+        prefsManager.saveShuffleOrder(order != null ? order.getSeed() : 0, order != null ? order.getFirst() : 0);
+    }
+
+    // A shuffle is drawn for one queue size, so a changed queue gets a new draw from the same seed with the
+    // current track first
+    private void reshuffle(String currentTrack) {
+        if (queueOrder().length == 0) {
+            setShuffle(null);
+            return;
+        }
+        int first = currentTrack != null ? queuePositionOf(currentTrack) : -1;
+        setShuffle(new ShuffleOrder(queueOrder().length, shuffle.getSeed(), Math.max(first, 0)));
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private String trackAt(int position) {
+        if (savedTracks != null) return savedTracks.get(shuffle != null ? shuffle.libraryPosition(position) : position);
+        return paths.get(playlist[position]);
+    }
+
+    private int trackCount() {
+        return savedTracks != null ? savedTracks.size() : playlist.length;
+    }
+
+    // Where a path is in the play order, or -1
+    private int positionOf(String path) {
+        int position = queuePositionOf(path);
+        if (position < 0 || shuffle == null) return position;
+        return shuffle.position(position);
+    }
+
+    // Where a path is in the queue, or the library without one, before shuffling
+    private int queuePositionOf(String path) {
+        int index = paths.indexOf(path);
+        if (index < 0) return -1;
+        int[] order = queueOrder();
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] == index) return i;
+        }
+        return -1;
+    }
+
+    private List<String> playlistPaths() {
+        if (savedTracks != null) return shuffle != null ? shuffle.apply(savedTracks) : savedTracks;
+        return paths.view(playlist);
+    }
+
+    private List<String> libraryPaths() {
+        if (savedTracks != null) return hydration.library;
+        return paths.view(libraryOrder);
+    }
+
+    // Null while the library is played
+    private List<String> queuePaths() {
+        if (savedTracks != null) return hydration.queued;
+        return queue != null ? paths.view(queue) : null;
+    }
+
+    private void saveQueue() {
+        List<String> queued = queuePaths();
+        prefsManager.saveQueue(queued != null ? queued : Collections.<String>emptyList());
+    }
+
+    static MusicService running() {
+        return running;
+    }
+
+    // Brings the playlist in line with a completed background scan; the current track stays selected
+    public void applyScan(List<String> tracks) {
+        Set<String> scanned = new HashSet<>(tracks);
+        List<String> removed = new ArrayList<>();
+        for (String path : libraryPaths()) {
+            if (!scanned.contains(path)) removed.add(path);
+        }
+        applyLibraryChanges(tracks, removed, Collections.<String>emptyList());
+    }
+
+    // Keeps the watchers of roots that stay, so only an added root has its tree registered
+    public void watchRoots(List<String> roots) {
+        Iterator<Map.Entry<String, LibraryWatcher>> it = libraryWatchers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, LibraryWatcher> entry = it.next();
+            if (!roots.contains(entry.getKey())) {
+                entry.getValue().release();
+                it.remove();
+            }
+        }
+        ScanRules rules = prefsManager.loadScanRules();
+        for (String root : roots) {
+            // Document trees can't be observed; they pick up changes on the next scan
+            if (libraryWatchers.containsKey(root) || DocumentScanner.isDocument(root)) continue;
+            LibraryWatcher watcher = new LibraryWatcher((added, removedFiles, removedDirs) -> {
+                applyLibraryChanges(added, removedFiles, removedDirs);
+                ScanJob.updateRun(libraryRoots, root, rules, added, removedFiles, removedDirs);
+            });
+            watcher.start(root, rules);
+            libraryWatchers.put(root, watcher);
+        }
+    }
+
+    // Applies a batch of file system changes in place instead of rescanning the library
+    private void applyLibraryChanges(List<String> added, List<String> removedFiles, List<String> removedDirs) {
+        hydrate();
+        String currentTrack = playlist.length == 0 ? null : trackAt(currentIndex);
+        Set<String> removed = new HashSet<>(removedFiles);
+        List<String> prefixes = new ArrayList<>(removedDirs.size());
+        for (String dir : removedDirs) {
+            prefixes.add(dir + "/");
+        }
+        Set<String> seen = new HashSet<>();
+        List<String> additions = new ArrayList<>();
+        for (String path : added) {
+            if (paths.indexOf(path) < 0 && seen.add(path)) additions.add(path);
+        }
+        NaturalOrder order = new NaturalOrder();
+        order.sort(additions);
+        if (smartPlaylists != null) {
+            smartPlaylists.onTracksRemoved(removed, prefixes);
+            smartPlaylists.onTracksAdded(additions);
+        }
+
+        // The library order is the scan order, so new tracks are merged into place
+        List<String> merged = new ArrayList<>(libraryOrder.length + additions.size());
+        int a = 0;
+        for (String path : libraryPaths()) {
+            while (a < additions.size() && order.compare(additions.get(a), path) < 0) {
+                merged.add(additions.get(a++));
+            }
+            if (!isRemoved(path, removed, prefixes)) merged.add(path);
+        }
+        while (a < additions.size()) {
+            merged.add(additions.get(a++));
+        }
+        if (merged.size() == libraryOrder.length && additions.isEmpty()) return;
+        LibraryIndexer.get(this).enqueue(additions);
+        // A queue loses the tracks that are gone but takes in no new ones; once it's empty the library plays
+        List<String> queued = null;
+        if (queue != null) {
+            queued = new ArrayList<>(queue.length);
+            for (String path : paths.view(queue)) {
+                if (!isRemoved(path, removed, prefixes)) queued.add(path);
+            }
+            if (queued.isEmpty()) queued = null;
+        }
+
+        setTracks(merged, queued);
+        if (shuffle != null) reshuffle(currentTrack);
+
+        int index = currentTrack != null ? positionOf(currentTrack) : -1;
+        if (index < 0) {
+            // Possibly a move; relinkMovedTracks() restores it once the new path has been indexed
+            if (currentTrack != null) lostTrack = currentTrack;
+            index = Math.min(currentIndex, Math.max(0, playlist.length - 1));
+        }
+        currentIndex = index;
+        prefsManager.savePlaylist(libraryPaths());
+        saveQueue();
+        prefsManager.saveTrackIndex(currentIndex);
+        if (trackChangeListener != null) {
+            trackChangeListener.onPlaylistChanged(playlistPaths(), currentIndex);
+        }
+    }
+
+    private void onLibraryUpdated(Collection<String> changed) {
+        libraryModel = null;
+        if (smartPlaylists != null) smartPlaylists.onTracksChanged(changed);
+        relinkMovedTracks();
+    }
+
+    // Replaces paths the library has seen again elsewhere, keeping the current track (and so its
+    // saved position) selected. Runs on every library update, so only the moves recorded since the last
+    // call are looked up, and the lists are walked only when one of them is in the table.
+    private void relinkMovedTracks() {
+        int moveCount = trackLibrary.moveCount();
+        boolean moved = moveCount != relinkedMoves && listsAny(trackLibrary.movesSince(relinkedMoves));
+        relinkedMoves = moveCount;
+        String target = lostTrack != null ? trackLibrary.movedPath(lostTrack) : null;
+        if (!moved && target == null) return;
+        String currentTrack = playlist.length == 0 ? null : trackAt(currentIndex);
+        List<String> relinked = moved ? relinkPaths(libraryPaths()) : null;
+        List<String> relinkedQueue = moved && queue != null ? relinkPaths(paths.view(queue)) : null;
+        if (relinked == null && relinkedQueue == null && target == null) return;
+        if (target != null) {
+            lostTrack = null;
+        } else if (currentTrack != null) {
+            target = trackLibrary.movedPath(currentTrack);
+            if (target == null) target = currentTrack;
+        }
+        if (relinked != null || relinkedQueue != null) {
+            setTracks(relinked != null ? relinked : libraryPaths(),
+                    relinkedQueue != null ? relinkedQueue : queuePaths());
+            if (shuffle != null) reshuffle(target);
+        }
+        int index = target != null ? positionOf(target) : -1;
+        if (index >= 0) currentIndex = index;
+        if (currentIndex >= playlist.length) currentIndex = 0;
+        prefsManager.savePlaylist(libraryPaths());
+        saveQueue();
+        prefsManager.saveTrackIndex(currentIndex);
+        if (trackChangeListener != null) {
+            trackChangeListener.onPlaylistChanged(playlistPaths(), currentIndex);
+        }
+    }
+
+    // The table holds the library's and the queue's tracks, and nothing else once a scan is saved
+    private boolean listsAny(List<String> sources) {
+        for (String source : sources) {
+            if (paths.indexOf(source) >= 0) return true;
+        }
+        return false;
+    }
+
+    // Null when nothing in the list moved; a moved track already listed under its new path is dropped
+    private List<String> relinkPaths(List<String> paths) {
+        List<String> relinked = null;
+        Set<String> present = null;
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            String moved = trackLibrary.movedPath(path);
+            if (moved != null && relinked == null) {
+                relinked = new ArrayList<>(paths.subList(0, i));
+                present = new HashSet<>(paths);
+            }
+            if (relinked == null) continue;
+            if (moved == null) {
+                relinked.add(path);
+            } else if (present.add(moved)) {
+                relinked.add(moved);
+            }
+        }
+        return relinked;
+    }
+
+    private static boolean isRemoved(String path, Set<String> removed, List<String> prefixes) {
+        if (removed.contains(path)) return true;
+        for (String prefix : prefixes) {
+            if (path.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
     public void play() {
-        if (playlist.isEmpty()) return;
+        if (trackCount() == 0) return;
+        if (mediaPlayer != null && !playerPrepared) {
+            // Still preparing, as after a warm start; it plays as soon as it is ready
+            startWhenPrepared = true;
+            return;
+        }
         if (mediaPlayer == null || !mediaPlayer.isPlaying()) {
             if (mediaPlayer != null) {
                 if (requestAudioFocus()) {
@@ -206,7 +667,7 @@ public class MusicService extends Service {
                         trackChangeListener.onPlayStateChanged(true);
                         trackChangeListener.onActionPerformed("▶ Play", currentTitle, currentArtist, currentCoverArt);
                     }
-                    saveHandler.postDelayed(saveRunnable, 5000);
+                    saveHandler.postDelayed(saveRunnable, CHECKPOINT_MS);
                 }
             } else {
                 prepareAndPlay(prefsManager.loadPosition());
@@ -215,6 +676,10 @@ public class MusicService extends Service {
     }
 
     public void pause() {
+        if (mediaPlayer != null && !playerPrepared) {
+            startWhenPrepared = false;
+            return;
+        }
         if (mediaPlayer != null && mediaPlayer.isPlaying()) {
             mediaPlayer.pause();
             isPlaying = false;
@@ -229,22 +694,22 @@ public class MusicService extends Service {
     }
 
     public void next() {
-        if (playlist.isEmpty()) return;
-        currentIndex = (currentIndex + 1) % playlist.size();
+        if (trackCount() == 0) return;
+        currentIndex = (currentIndex + 1) % trackCount();
         prefsManager.saveTrackIndex(currentIndex);
         pendingAction = "⏭ Next";
         prepareAndPlay(0);
     }
 
     public void previous() {
-        if (playlist.isEmpty()) return;
-        if (mediaPlayer != null && mediaPlayer.getCurrentPosition() > 3000) {
+        if (trackCount() == 0) return;
+        if (mediaPlayer != null && playerPrepared && mediaPlayer.getCurrentPosition() > 3000) {
             seekTo(0);
             if (trackChangeListener != null) {
                 trackChangeListener.onActionPerformed("⏮ Previous", currentTitle, currentArtist, currentCoverArt);
             }
         } else {
-            currentIndex = (currentIndex - 1 + playlist.size()) % playlist.size();
+            currentIndex = (currentIndex - 1 + trackCount()) % trackCount();
             prefsManager.saveTrackIndex(currentIndex);
             pendingAction = "⏮ Previous";
             prepareAndPlay(0);
@@ -252,38 +717,39 @@ public class MusicService extends Service {
     }
 
     public void playAt(int index) {
-        if (index < 0 || index >= playlist.size()) return;
+        if (index < 0 || index >= trackCount()) return;
         currentIndex = index;
         prefsManager.saveTrackIndex(currentIndex);
         prepareAndPlay(0);
     }
 
     public void seekTo(int positionMs) {
-        if (mediaPlayer != null) {
+        if (mediaPlayer == null) return;
+        if (playerPrepared) {
             mediaPlayer.seekTo(positionMs);
+        } else {
+            seekWhenPrepared = positionMs;
         }
     }
 
     public void setShuffleEnabled(boolean enabled) {
+        hydrate();
         shuffleEnabled = enabled;
         prefsManager.saveShuffleEnabled(enabled);
-        if (playlist.isEmpty()) return;
-        String currentTrack = playlist.get(currentIndex);
+        if (playlist.length == 0) return;
+        // Only the seed and the track index are saved; the playlist and queue files keep the library order
+        int current = shuffle != null ? shuffle.libraryPosition(currentIndex) : currentIndex;
         if (enabled) {
-            // Move current track to index 0, then shuffle the rest
-            playlist.remove(currentIndex);
-            Collections.shuffle(playlist);
-            playlist.add(0, currentTrack);
+            // The current track first, then the rest shuffled
+            setShuffle(new ShuffleOrder(queueOrder().length, ShuffleOrder.newSeed(), current));
             currentIndex = 0;
         } else {
-            playlist = new ArrayList<>(originalPlaylist);
-            currentIndex = playlist.indexOf(currentTrack);
-            if (currentIndex < 0) currentIndex = 0;
+            setShuffle(null);
+            currentIndex = current;
         }
-        prefsManager.savePlaylist(playlist);
         prefsManager.saveTrackIndex(currentIndex);
         if (trackChangeListener != null) {
-            trackChangeListener.onPlaylistChanged(playlist, currentIndex);
+            trackChangeListener.onPlaylistChanged(playlistPaths(), currentIndex);
         }
     }
 
@@ -291,19 +757,57 @@ public class MusicService extends Service {
         return shuffleEnabled;
     }
 
+    // Default title from filename
+    private static String fallbackTitle(String filePath) {
+        String title = DocumentScanner.fileName(filePath);
+        int dot = title.lastIndexOf('.');
+        return dot > 0 ? title.substring(0, dot) : title;
+    }
+
+    // What the library knows of the saved track, for the session at startup; the file itself is read when
+    // the track is prepared
+    private void showSavedTrack() {
+        String filePath = trackAt(currentIndex);
+        TrackLibrary.Track track = trackLibrary.get(filePath);
+        boolean tagged = track != null && track.hasTags();
+        currentTitle = tagged && track.getTitle() != null ? track.getTitle() : fallbackTitle(filePath);
+        currentArtist = tagged ? track.getArtist() : null;
+        currentAlbum = tagged ? track.getAlbum() : null;
+    }
+
     private void extractTrackInfo(String filePath) {
         if (currentCoverArt != null) {
             currentCoverArt.recycle();
             currentCoverArt = null;
         }
-        // Default title from filename
-        String fallbackTitle = new File(filePath).getName();
-        int dot = fallbackTitle.lastIndexOf('.');
-        if (dot > 0) fallbackTitle = fallbackTitle.substring(0, dot);
+        String fallbackTitle = fallbackTitle(filePath);
+
+        // Known tracks come from the library; unknown ones are parsed once and recorded
+        TrackLibrary.Track track = trackLibrary.get(filePath);
+        if (track == null) track = trackLibrary.refresh(filePath);
+        if (track != null && track.hasTags() && !track.hasEncodedPicture()) {
+            currentTitle = track.getTitle() != null ? track.getTitle() : fallbackTitle;
+            currentArtist = track.getArtist();
+            currentAlbum = track.getAlbum();
+            if (track.hasPicture()) {
+                try {
+                    byte[] art = TagReader.readPicture(new File(filePath), track.getPictureOffset(),
+                            track.getPictureLength());
+                    currentCoverArt = BitmapFactory.decodeByteArray(art, 0, art.length);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read cover art from: " + filePath, e);
+                }
+            }
+            return;
+        }
 
         MediaMetadataRetriever retriever = new MediaMetadataRetriever();
         try {
-            retriever.setDataSource(filePath);
+            if (DocumentScanner.isDocument(filePath)) {
+                retriever.setDataSource(this, Uri.parse(filePath));
+            } else {
+                retriever.setDataSource(filePath);
+            }
             currentArtist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
             currentAlbum = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
             String metaTitle = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
@@ -327,17 +831,27 @@ public class MusicService extends Service {
     }
 
     private void prepareAndPlay(int seekPosition) {
-        if (playlist.isEmpty()) return;
-        if (mediaPlayer != null) {
-            mediaPlayer.setOnCompletionListener(null);
-            mediaPlayer.setOnErrorListener(null);
-            mediaPlayer.setOnPreparedListener(null);
-            mediaPlayer.release();
-            mediaPlayer = null;
-        }
+        preparePlayer(seekPosition, true);
+    }
+
+    // Opens the saved track paused at the saved position after a restart, so the first play() doesn't wait
+    // on the disk. Off unless enabled in the preferences; it holds a decoder for as long as the service runs.
+    private void warmStart() {
+        if (mediaPlayer != null || trackCount() == 0 || running != this) return;
+        preparePlayer(prefsManager.loadPosition(), false);
+    }
+
+    private void preparePlayer(int seekPosition, boolean start) {
+        if (trackCount() == 0) return;
+        releasePlayer();
+        playerPrepared = false;
+        startWhenPrepared = start;
+        seekWhenPrepared = seekPosition;
         try {
-            final String filePath = playlist.get(currentIndex);
+            final String filePath = trackAt(currentIndex);
             final int preparedIndex = currentIndex;
+            // Library indexing yields the disk until the player has buffered the new track
+            LibraryIndexer.get(this).pauseForPlayback();
 
             // Extract cover art and metadata on a background thread
             metadataExecutor.execute(() -> {
@@ -355,13 +869,26 @@ public class MusicService extends Service {
                     .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
                     .setUsage(AudioAttributes.USAGE_MEDIA)
                     .build());
-            mediaPlayer.setDataSource(filePath);
+            if (DocumentScanner.isDocument(filePath)) {
+                mediaPlayer.setDataSource(getApplicationContext(), Uri.parse(filePath));
+            } else {
+                mediaPlayer.setDataSource(filePath);
+            }
             mediaPlayer.setOnPreparedListener(mp -> {
                 if (currentIndex != preparedIndex) return;
-                if (seekPosition > 0) mp.seekTo(seekPosition);
+                playerPrepared = true;
+                LibraryIndexer.get(this).resumeAfterPlayback();
+                if (seekWhenPrepared > 0) mp.seekTo(seekWhenPrepared);
+                if (!startWhenPrepared) {
+                    // Media buttons reach a paused session
+                    updatePlaybackState(PlaybackStateCompat.STATE_PAUSED);
+                    updateMetadata();
+                    return;
+                }
                 if (requestAudioFocus()) {
                     mp.start();
                     isPlaying = true;
+                    recordPlay(filePath);
                     updatePlaybackState(PlaybackStateCompat.STATE_PLAYING);
                     updateMetadata();
                     if (trackChangeListener != null) {
@@ -372,7 +899,7 @@ public class MusicService extends Service {
                         trackChangeListener.onActionPerformed(action, currentTitle, currentArtist, currentCoverArt);
                     }
                     saveHandler.removeCallbacks(saveRunnable);
-                    saveHandler.postDelayed(saveRunnable, 5000);
+                    saveHandler.postDelayed(saveRunnable, CHECKPOINT_MS);
                 }
             });
             mediaPlayer.setOnCompletionListener(mp -> {
@@ -382,14 +909,20 @@ public class MusicService extends Service {
             });
             mediaPlayer.setOnErrorListener((mp, what, extra) -> {
                 Log.e(TAG, "MediaPlayer error: " + what + ", " + extra);
-                if (currentIndex == preparedIndex) {
+                LibraryIndexer.get(this).resumeAfterPlayback();
+                if (currentIndex != preparedIndex) return true;
+                if (isPlaying || startWhenPrepared) {
                     next();
+                } else {
+                    // Nothing was playing, as with a failed warm start; play() opens the track again
+                    releasePlayer();
                 }
                 return true;
             });
             mediaPlayer.prepareAsync();
         } catch (IOException e) {
             Log.e(TAG, "Error preparing media player", e);
+            LibraryIndexer.get(this).resumeAfterPlayback();
             isPlaying = false;
             if (trackChangeListener != null) {
                 trackChangeListener.onPlayStateChanged(false);
@@ -397,6 +930,22 @@ public class MusicService extends Service {
         }
     }
 
+    private void releasePlayer() {
+        if (mediaPlayer == null) return;
+        mediaPlayer.setOnCompletionListener(null);
+        mediaPlayer.setOnErrorListener(null);
+        mediaPlayer.setOnPreparedListener(null);
+        mediaPlayer.release();
+        mediaPlayer = null;
+        playerPrepared = false;
+    }
+
+    private void recordPlay(String path) {
+        if (!PlayHistory.get(this).markPlayed(path)) return;
+        metadataExecutor.execute(() -> PlayHistory.get(this).append(path));
+        if (smartPlaylists != null) smartPlaylists.onPlayed(path);
+    }
+
     private void onAudioFocusChange(int focusChange) {
         if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
             if (pausedForTransientFocusLoss) {
@@ -448,18 +997,23 @@ public class MusicService extends Service {
                         PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
                         PlaybackStateCompat.ACTION_SEEK_TO)
                 .setState(state,
-                        mediaPlayer != null ? mediaPlayer.getCurrentPosition() : 0,
+                        getCurrentPosition(),
                         1.0f);
         mediaSession.setPlaybackState(builder.build());
     }
 
     private void updateMetadata() {
-        if (playlist.isEmpty()) return;
+        if (trackCount() == 0) return;
+        long duration = getDuration();
+        if (duration <= 0) {
+            // Before the player is prepared the library's duration hint is the best we have
+            TrackLibrary.Track track = trackLibrary.get(trackAt(currentIndex));
+            if (track != null) duration = track.getDurationMs();
+        }
         MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
                 .putString(MediaMetadataCompat.METADATA_KEY_TITLE,
                         currentTitle != null ? currentTitle : "Unknown")
-                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION,
-                        mediaPlayer != null ? mediaPlayer.getDuration() : 0);
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration);
         if (currentArtist != null) {
             builder.putString(MediaMetadataCompat.METADATA_KEY_ARTIST, currentArtist);
         }
@@ -495,7 +1049,7 @@ public class MusicService extends Service {
 
     private void saveState() {
         prefsManager.saveTrackIndex(currentIndex);
-        if (mediaPlayer != null) {
+        if (mediaPlayer != null && playerPrepared) {
             try {
                 prefsManager.savePosition(mediaPlayer.getCurrentPosition());
             } catch (IllegalStateException e) {
@@ -504,17 +1058,93 @@ public class MusicService extends Service {
         }
     }
 
-    public List<String> getPlaylist() { return playlist; }
+    // Decodes on access; a snapshot that later playlist changes don't affect
+    public List<String> getPlaylist() { return playlistPaths(); }
+
+    // Rules are evaluated against the whole library; playing one plays its members as a queue in front of it
+    public SmartPlaylists getSmartPlaylists() {
+        if (smartPlaylists == null) {
+            smartPlaylists = new SmartPlaylists(trackLibrary, PlayHistory.get(this), prefsManager.loadSmartPlaylists());
+            smartPlaylists.rebuild(libraryPaths());
+        }
+        return smartPlaylists;
+    }
+
+    public void addSmartPlaylist(SmartPlaylist playlist) {
+        SmartPlaylists playlists = getSmartPlaylists();
+        playlists.add(playlist, libraryPaths());
+        prefsManager.saveSmartPlaylists(playlists.all());
+    }
+
+    public void removeSmartPlaylist(int index) {
+        SmartPlaylists playlists = getSmartPlaylists();
+        playlists.remove(index);
+        prefsManager.saveSmartPlaylists(playlists.all());
+    }
+
+    // Plays the members in library order, leaving the library and its playlist file as they are; the queue
+    // file keeps the members for the next start. False when the playlist has no members right now.
+    public boolean playSmartPlaylist(int index) {
+        hydrate();
+        Set<String> tracks = getSmartPlaylists().members(index, System.currentTimeMillis());
+        boolean[] member = new boolean[paths.size()];
+        for (int found : paths.indicesOf(tracks)) {
+            member[found] = true;
+        }
+        int[] members = new int[tracks.size()];
+        int count = 0;
+        for (int track : libraryOrder) {
+            if (!member[track]) continue;
+            member[track] = false;
+            members[count++] = track;
+        }
+        if (count == 0) return false;
+        queue = Arrays.copyOf(members, count);
+        setShuffle(null);
+        currentIndex = 0;
+        lostTrack = null;
+        saveQueue();
+        prefsManager.saveTrackIndex(currentIndex);
+        pendingAction = "▶ Play";
+        prepareAndPlay(currentIndex);
+        if (trackChangeListener != null) trackChangeListener.onPlaylistChanged(playlistPaths(), currentIndex);
+        return true;
+    }
+
+    // Back from a smart playlist to the whole library, keeping the current track
+    public void playLibrary() {
+        hydrate();
+        if (queue == null) return;
+        String currentTrack = playlist.length == 0 ? null : trackAt(currentIndex);
+        queue = null;
+        playlist = libraryOrder;
+        if (shuffle != null) reshuffle(currentTrack);
+        int index = currentTrack != null ? positionOf(currentTrack) : -1;
+        currentIndex = Math.max(index, 0);
+        saveQueue();
+        prefsManager.saveTrackIndex(currentIndex);
+        if (trackChangeListener != null) trackChangeListener.onPlaylistChanged(playlistPaths(), currentIndex);
+    }
+
+    public boolean isPlayingQueue() {
+        return queue != null;
+    }
+
+    // Track positions in the model are positions in the library (unshuffled) order
+    public LibraryModel getLibraryModel() {
+        if (libraryModel == null) libraryModel = LibraryModel.build(libraryPaths(), trackLibrary);
+        return libraryModel;
+    }
     public int getCurrentIndex() { return currentIndex; }
     public boolean isPlaying() { return isPlaying; }
     public Bitmap getCurrentCoverArt() { return currentCoverArt; }
     public String getCurrentTitle() { return currentTitle; }
     public String getCurrentArtist() { return currentArtist; }
     public int getCurrentPosition() {
-        return mediaPlayer != null ? mediaPlayer.getCurrentPosition() : 0;
+        return mediaPlayer != null && playerPrepared ? mediaPlayer.getCurrentPosition() : 0;
     }
     public int getDuration() {
-        return mediaPlayer != null ? mediaPlayer.getDuration() : 0;
+        return mediaPlayer != null && playerPrepared ? mediaPlayer.getDuration() : 0;
     }
     public void setOnTrackChangeListener(OnTrackChangeListener listener) {
         this.trackChangeListener = listener;
@@ -0,0 +1,284 @@
+package de.codevoid.andromusic;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Orders paths component by component, comparing digit runs by value ("Track 2" before "Track 10") and
+// text by the locale's collation rules. Every name is turned into a byte key once and cached, so sorting
+// never calls the collator O(n log n) times.
+public class NaturalOrder implements Comparator<String> {
+    // Key layout per name: runs of [0x01, digit count, digits] or [0x02, escaped collation key, 0x00 0x01],
+    // then 0x00 and the raw UTF-8 name so names that collate equally ("Rock", "rock") still differ.
+    // Digits sort before text; directoryKey() appends 0x00 0x00, which sorts below any run.
+    private static final byte DIGITS = 0x01;
+    private static final byte TEXT = 0x02;
+    private static final byte[] SEPARATOR = {0x00, 0x00};
+    private static final int MAX_DIGITS = 255;
+    private static final int[] NO_COMPONENTS = new int[0];
+
+    private final Collator collator;
+    // Directory names repeat across every track below them; file names are cached too, since a
+    // re-sort after a library change sees them again
+    private final Map<String, byte[]> nameKeys = new ConcurrentHashMap<>();
+    // Escaped collation keys of text runs, which repeat far more than whole names do (" - ", ".mp",
+    // an artist's name in every track title), so the collator sees each run once
+    private final Map<String, byte[]> runKeys = new ConcurrentHashMap<>();
+
+    public NaturalOrder() {
+        this(Locale.getDefault());
+    }
+
+    NaturalOrder(Locale locale) {
+        collator = Collator.getInstance(locale);
+        // Case doesn't matter, accents do; NFD names copied from macOS compare equal to NFC ones
+        collator.setStrength(Collator.SECONDARY);
+        collator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+    }
+
+    // Sorts in place. Directory names are keyed and ranked once, and every track shares its parent's
+    // array of ranks, so most comparisons are a few int compares; file name keys only come into play
+    // between siblings or against a directory name. Orders exactly as compare() does.
+    public void sort(List<String> paths) {
+        int count = paths.size();
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        // Tracks share their parent directory, so it is split and looked up once
+        Map<String, int[]> parents = new HashMap<>();
+        Entry[] entries = new Entry[count];
+        String lastParent = null;
+        int[] lastIds = NO_COMPONENTS;
+        for (int i = 0; i < count; i++) {
+            String path = paths.get(i);
+            int slash = path.lastIndexOf('/');
+            int[] parent = NO_COMPONENTS;
+            if (slash >= 0) {
+                // Scans deliver a directory's tracks together, so the previous parent usually matches
+                if (lastParent != null && slash == lastParent.length() && path.startsWith(lastParent)) {
+                    parent = lastIds;
+                } else {
+                    String parentPath = path.substring(0, slash);
+                    parent = parents.get(parentPath);
+                    if (parent == null) {
+                        parent = componentIds(parentPath, ids, names);
+                        parents.put(parentPath, parent);
+                    }
+                    lastParent = parentPath;
+                    lastIds = parent;
+                }
+            }
+            entries[i] = new Entry(parent, nameKey(path.substring(slash + 1)), path);
+        }
+
+        Ranked[] ranked = new Ranked[names.size()];
+        for (int id = 0; id < ranked.length; id++) {
+            ranked[id] = new Ranked(nameKey(names.get(id)), id);
+        }
+        Arrays.sort(ranked);
+        int[] rank = new int[ranked.length];
+        byte[][] keys = new byte[ranked.length][];
+        for (int r = 0; r < ranked.length; r++) {
+            rank[ranked[r].id] = r;
+            keys[r] = ranked[r].key;
+        }
+        // The arrays are shared between entries; rewrite each one from ids to ranks exactly once
+        for (int[] parent : parents.values()) {
+            for (int c = 0; c < parent.length; c++) {
+                parent[c] = rank[parent[c]];
+            }
+        }
+        Arrays.sort(entries, (a, b) -> a.compareTo(b, keys));
+        for (int i = 0; i < count; i++) {
+            paths.set(i, entries[i].path);
+        }
+    }
+
+    private static int[] componentIds(String path, Map<String, Integer> ids, List<String> names) {
+        List<Integer> found = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            int slash = path.indexOf('/', start);
+            found.add(id(slash < 0 ? path.substring(start) : path.substring(start, slash), ids, names));
+            if (slash < 0) break;
+            start = slash + 1;
+        }
+        int[] result = new int[found.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = found.get(i);
+        }
+        return result;
+    }
+
+    private static int id(String name, Map<String, Integer> ids, List<String> names) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    // Component by component; a path that runs out first sorts first
+    @Override
+    public int compare(String a, String b) {
+        int startA = 0;
+        int startB = 0;
+        while (true) {
+            int slashA = a.indexOf('/', startA);
+            int slashB = b.indexOf('/', startB);
+            String nameA = slashA < 0 ? a.substring(startA) : a.substring(startA, slashA);
+            String nameB = slashB < 0 ? b.substring(startB) : b.substring(startB, slashB);
+            if (!nameA.equals(nameB)) return compareKeys(nameKey(nameA), nameKey(nameB));
+            if (slashA < 0 || slashB < 0) return (slashA < 0 ? 0 : 1) - (slashB < 0 ? 0 : 1);
+            startA = slashA + 1;
+            startB = slashB + 1;
+        }
+    }
+
+    // The key a subdirectory's tracks start with, for ordering it against its sibling files
+    byte[] directoryKey(String name) {
+        byte[] nameKey = nameKey(name);
+        byte[] key = Arrays.copyOf(nameKey, nameKey.length + SEPARATOR.length);
+        System.arraycopy(SEPARATOR, 0, key, nameKey.length, SEPARATOR.length);
+        return key;
+    }
+
+    byte[] nameKey(String name) {
+        byte[] key = nameKeys.get(name);
+        if (key == null) {
+            key = buildNameKey(name);
+            nameKeys.put(name, key);
+        }
+        return key;
+    }
+
+    private byte[] buildNameKey(String name) {
+        ByteArrayOutputStream key = new ByteArrayOutputStream(name.length() * 3 + 4);
+        int length = name.length();
+        int i = 0;
+        while (i < length) {
+            int start = i;
+            if (isDigit(name.charAt(i))) {
+                while (i < length && isDigit(name.charAt(i))) i++;
+                // Leading zeros don't change the value; the digit count orders numbers by magnitude
+                int first = start;
+                while (first < i - 1 && name.charAt(first) == '0') first++;
+                int digits = Math.min(i - first, MAX_DIGITS);
+                key.write(DIGITS);
+                key.write(digits);
+                for (int d = first; d < first + digits; d++) {
+                    key.write(name.charAt(d));
+                }
+            } else {
+                while (i < length && !isDigit(name.charAt(i))) i++;
+                byte[] run = runKey(name.substring(start, i));
+                key.write(run, 0, run.length);
+            }
+        }
+        // File names can't contain NUL, so the tiebreak never looks like a separator
+        key.write(0x00);
+        byte[] raw = name.getBytes(StandardCharsets.UTF_8);
+        key.write(raw, 0, raw.length);
+        return key.toByteArray();
+    }
+
+    private byte[] runKey(String text) {
+        byte[] run = runKeys.get(text);
+        if (run != null) return run;
+        byte[] collated;
+        synchronized (collator) {
+            collated = collator.getCollationKey(text).toByteArray();
+        }
+        ByteArrayOutputStream key = new ByteArrayOutputStream(collated.length + 4);
+        key.write(TEXT);
+        // Escaping zero bytes keeps the run terminator below any collation byte
+        for (byte b : collated) {
+            key.write(b);
+            if (b == 0) key.write(0xff);
+        }
+        key.write(0x00);
+        key.write(0x01);
+        run = key.toByteArray();
+        runKeys.put(text, run);
+        return run;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    static int compareKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) return diff;
+        }
+        return a.length - b.length;
+    }
+
+    private static final class Ranked implements Comparable<Ranked> {
+        final byte[] key;
+        final int id;
+        // The first eight key bytes, big-endian; most names differ within them
+        final long prefix;
+
+        Ranked(byte[] key, int id) {
+            this.key = key;
+            this.id = id;
+            long prefix = 0;
+            for (int i = 0; i < 8; i++) {
+                prefix = (prefix << 8) | (i < key.length ? key[i] & 0xff : 0);
+            }
+            this.prefix = prefix;
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            if (prefix != other.prefix) {
+                return (prefix ^ Long.MIN_VALUE) < (other.prefix ^ Long.MIN_VALUE) ? -1 : 1;
+            }
+            return compareKeys(key, other.key);
+        }
+    }
+
+    private static final class Entry {
+        // Ranks of the parent's components, shared by its tracks
+        final int[] parent;
+        final byte[] key;
+        final String path;
+
+        Entry(int[] parent, byte[] key, String path) {
+            this.parent = parent;
+            this.key = key;
+            this.path = path;
+        }
+
+        int compareTo(Entry other, byte[][] directoryKeys) {
+            if (parent != other.parent) {
+                int length = Math.min(parent.length, other.parent.length);
+                for (int i = 0; i < length; i++) {
+                    if (parent[i] != other.parent[i]) return parent[i] < other.parent[i] ? -1 : 1;
+                }
+                // A track in an ancestor directory against the subdirectory holding the other track;
+                // a file named like that directory still sorts before its contents
+                if (parent.length < other.parent.length) {
+                    int result = compareKeys(key, directoryKeys[other.parent[length]]);
+                    return result != 0 ? result : -1;
+                } else if (parent.length > other.parent.length) {
+                    int result = compareKeys(directoryKeys[parent[length]], other.key);
+                    return result != 0 ? result : 1;
+                }
+            }
+            return compareKeys(key, other.key);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package de.codevoid.andromusic;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Library paths in one byte array: sorted by their UTF-8 bytes and front-coded in blocks of BLOCK_SIZE,
+// so the long shared prefixes (/storage/emulated/0/Music/Artist/Album/) are stored about once per block.
+// A path is decoded from its block's first entry in at most BLOCK_SIZE steps. Paths appended after
+// building (a scan still delivering batches) stay plain strings until the next build.
+public class PathTable {
+    static final int BLOCK_SIZE = 16;
+
+    // Layout per block: varint length + bytes for the first path, then per path varint shared prefix length,
+    // varint suffix length and the suffix bytes
+    private final byte[] data;
+    private final int[] blocks;
+    private final int count;
+    private final int maxLength;
+    private final List<String> appended = new ArrayList<>();
+    private final Map<String, Integer> appendedIndex = new HashMap<>();
+
+    public PathTable() {
+        this(new ArrayList<String>(), null);
+    }
+
+    // Stores the distinct paths; indices, if given, receives the table index of each input path
+    public PathTable(List<String> paths, int[] indices) {
+        int n = paths.size();
+        byte[][] encoded = new byte[n][];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            encoded[i] = paths.get(i).getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> NaturalOrder.compareKeys(encoded[a], encoded[b]));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(16, n * 24));
+        int[] starts = new int[(n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        byte[] previous = null;
+        int stored = 0;
+        int longest = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] path = encoded[order[i]];
+            if (previous != null && NaturalOrder.compareKeys(previous, path) == 0) {
+                // A duplicate shares the index of its first occurrence
+                if (indices != null) indices[order[i]] = stored - 1;
+                continue;
+            }
+            if (stored % BLOCK_SIZE == 0) {
+                starts[stored / BLOCK_SIZE] = out.size();
+                writeVarint(out, path.length);
+                out.write(path, 0, path.length);
+            } else {
+                int shared = sharedPrefix(previous, path);
+                writeVarint(out, shared);
+                writeVarint(out, path.length - shared);
+                out.write(path, shared, path.length - shared);
+            }
+            if (indices != null) indices[order[i]] = stored;
+            longest = Math.max(longest, path.length);
+            previous = path;
+            stored++;
+        }
+        data = out.toByteArray();
+        blocks = Arrays.copyOf(starts, (stored + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        count = stored;
+        maxLength = longest;
+    }
+
+    public int size() {
+        return count + appended.size();
+    }
+
+    public String get(int index) {
+        if (index >= count) return appended.get(index - count);
+        Reader reader = new Reader();
+        reader.seek(index);
+        return new String(reader.buffer, 0, reader.length, StandardCharsets.UTF_8);
+    }
+
+    // Binary search over the first path of each block, then a scan through one block; -1 if absent
+    public int indexOf(String path) {
+        Integer late = appendedIndex.get(path);
+        if (late != null) return late;
+        if (count == 0) return -1;
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        if (key.length > maxLength) return -1;
+        Reader reader = new Reader();
+        int low = 0;
+        int high = blocks.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            reader.seek(mid * BLOCK_SIZE);
+            if (reader.compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int end = Math.min(count, (low + 1) * BLOCK_SIZE);
+        reader.seek(low * BLOCK_SIZE);
+        for (int index = low * BLOCK_SIZE; index < end; index++) {
+            if (index > low * BLOCK_SIZE) reader.next();
+            int result = reader.compareTo(key);
+            if (result == 0) return index;
+            if (result > 0) break;
+        }
+        return -1;
+    }
+
+    // The indices of the paths that are in the table, found in one pass through it in sorted order rather
+    // than a search per path; cheaper once there are more than a few
+    public int[] indicesOf(Collection<String> paths) {
+        byte[][] keys = new byte[paths.size()][];
+        int k = 0;
+        for (String path : paths) {
+            keys[k++] = path.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(keys, NaturalOrder::compareKeys);
+        int[] found = new int[keys.length];
+        int n = 0;
+        k = 0;
+        Reader reader = new Reader();
+        for (int index = 0; index < count && k < keys.length; index++) {
+            if (index % BLOCK_SIZE == 0) {
+                reader.seek(index);
+            } else {
+                reader.next();
+            }
+            // Keys below this entry aren't in the sorted part
+            while (k < keys.length && reader.compareTo(keys[k]) > 0) k++;
+            if (k < keys.length && reader.compareTo(keys[k]) == 0) {
+                found[n++] = index;
+                while (k < keys.length && reader.compareTo(keys[k]) == 0) k++;
+            }
+        }
+        if (!appended.isEmpty()) {
+            Set<String> seen = new HashSet<>();
+            for (String path : paths) {
+                Integer late = appendedIndex.get(path);
+                if (late != null && seen.add(path)) found[n++] = late;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    // Adds a path after the sorted part without rebuilding; returns its index. Not thread-safe.
+    public int append(String path) {
+        int existing = indexOf(path);
+        if (existing >= 0) return existing;
+        int index = size();
+        appended.add(path);
+        appendedIndex.put(path, index);
+        return index;
+    }
+
+    // The paths at the given indices, decoded on access
+    public List<String> view(int[] indices) {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int position) {
+                return PathTable.this.get(indices[position]);
+            }
+
+            @Override
+            public int size() {
+                return indices.length;
+            }
+        };
+    }
+
+    // Walks the entries of a block; each one is rebuilt in place over the previous one's prefix
+    private final class Reader {
+        final byte[] buffer = new byte[maxLength];
+        int pos;
+        int length;
+
+        void seek(int index) {
+            int block = index / BLOCK_SIZE;
+            pos = blocks[block];
+            length = readVarint();
+            System.arraycopy(data, pos, buffer, 0, length);
+            pos += length;
+            for (int i = block * BLOCK_SIZE; i < index; i++) {
+                next();
+            }
+        }
+
+        void next() {
+            int shared = readVarint();
+            int suffix = readVarint();
+            System.arraycopy(data, pos, buffer, shared, suffix);
+            pos += suffix;
+            length = shared + suffix;
+        }
+
+        int compareTo(byte[] key) {
+            int n = Math.min(length, key.length);
+            for (int i = 0; i < n; i++) {
+                int diff = (buffer[i] & 0xff) - (key[i] & 0xff);
+                if (diff != 0) return diff;
+            }
+            return length - key.length;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    private static int sharedPrefix(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < n && a[i] == b[i]) i++;
+        return i;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
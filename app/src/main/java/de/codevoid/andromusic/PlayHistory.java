@@ -0,0 +1,104 @@
+package de.codevoid.andromusic;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Which tracks have ever been played. Each first play appends one path to the file, so it grows with the
+// number of distinct tracks played and never needs rewriting.
+public class PlayHistory {
+    private static final String TAG = "PlayHistory";
+    private static final int MAGIC = 0x414d5048; // "AMPH"
+    private static final int VERSION = 1;
+
+    private static PlayHistory instance;
+
+    private final File file;
+    private final Set<String> played = ConcurrentHashMap.newKeySet();
+
+    public static synchronized PlayHistory get(Context context) {
+        if (instance == null) {
+            instance = new PlayHistory(new File(context.getApplicationContext().getFilesDir(), "play_history.bin"));
+        }
+        return instance;
+    }
+
+    PlayHistory(File file) {
+        this.file = file;
+        load();
+    }
+
+    public boolean wasPlayed(String path) {
+        return played.contains(path);
+    }
+
+    // Records the play in memory; true the first time, when the caller should append() it off the main thread
+    public boolean markPlayed(String path) {
+        return played.add(path);
+    }
+
+    synchronized void append(String path) {
+        boolean fresh = !file.exists() || file.length() == 0;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            if (fresh) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            out.writeUTF(path);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to play history", e);
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        boolean damaged = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                file.delete();
+                return;
+            }
+            while (in.available() > 0) {
+                played.add(in.readUTF());
+            }
+        } catch (EOFException e) {
+            // A path cut short by a crash; rewriting drops it before anything is appended behind it
+            damaged = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read play history", e);
+            damaged = true;
+        }
+        if (damaged) rewrite();
+    }
+
+    // Replaces the file atomically with the paths read so far
+    private synchronized void rewrite() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (String path : played) {
+                out.writeUTF(path);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to rewrite play history", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace play history");
+            tmp.delete();
+        }
+    }
+}
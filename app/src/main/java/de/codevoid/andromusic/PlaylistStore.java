@@ -0,0 +1,167 @@
+package de.codevoid.andromusic;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// The saved playlist as its own file: a header, an index of entry offsets and then the entries, each an int
+// length and the path's UTF-8 bytes. Loading maps the file and reads the header; a path is decoded when it
+// is asked for. Saving encodes on the caller's thread and writes through a temporary file and a rename, so
+// a crash leaves either the old playlist or the new one.
+public class PlaylistStore {
+    private static final String TAG = "PlaylistStore";
+    private static final int MAGIC = 0x414d504c; // "AMPL"
+    private static final int VERSION = 1;
+    private static final int HEADER = 12;
+
+    private static PlaylistStore instance;
+    private static PlaylistStore queueInstance;
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    private final File file;
+    // The newest encoding not yet on disk; load() reads it instead of the file it is about to replace
+    private byte[] pending;
+
+    public static synchronized PlaylistStore get(Context context) {
+        if (instance == null) {
+            instance = new PlaylistStore(new File(context.getApplicationContext().getFilesDir(), "playlist.bin"));
+        }
+        return instance;
+    }
+
+    // The tracks of a smart playlist being played instead of the whole library, in the same format
+    public static synchronized PlaylistStore queue(Context context) {
+        if (queueInstance == null) {
+            queueInstance = new PlaylistStore(new File(context.getApplicationContext().getFilesDir(), "queue.bin"));
+        }
+        return queueInstance;
+    }
+
+    PlaylistStore(File file) {
+        this.file = file;
+    }
+
+    public void save(List<String> paths) {
+        byte[] data = encode(paths);
+        synchronized (this) {
+            pending = data;
+        }
+        writer.execute(() -> write(data));
+    }
+
+    // The saved playlist, decoded on access; null if none has been saved
+    public List<String> load() {
+        synchronized (this) {
+            if (pending != null) return new Entries(ByteBuffer.wrap(pending));
+        }
+        if (!file.exists()) return null;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the file is closed, and after a later save renames over it
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            return new Entries(buffer);
+        } catch (IOException | IllegalStateException e) {
+            Log.w(TAG, "Failed to read playlist", e);
+            return null;
+        }
+    }
+
+    // Blocks until every save so far is on disk
+    void flush() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        writer.execute(done::countDown);
+        done.await();
+    }
+
+    static byte[] encode(List<String> paths) {
+        int count = paths.size();
+        byte[][] entries = new byte[count][];
+        int size = HEADER + 4 * count;
+        for (int i = 0; i < count; i++) {
+            entries[i] = paths.get(i).getBytes(StandardCharsets.UTF_8);
+            size += 4 + entries[i].length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC).putInt(VERSION).putInt(count);
+        int offset = HEADER + 4 * count;
+        for (byte[] entry : entries) {
+            out.putInt(offset);
+            offset += 4 + entry.length;
+        }
+        for (byte[] entry : entries) {
+            out.putInt(entry.length).put(entry);
+        }
+        return out.array();
+    }
+
+    private void write(byte[] data) {
+        synchronized (this) {
+            // A newer save is queued behind this one
+            if (pending != data) return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write playlist", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace playlist");
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            if (pending == data) pending = null;
+        }
+    }
+
+    private static final class Entries extends AbstractList<String> implements RandomAccess {
+        private final ByteBuffer buffer;
+        private final int count;
+
+        Entries(ByteBuffer buffer) {
+            if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IllegalStateException("Not a playlist file");
+            }
+            int count = buffer.getInt(8);
+            if (count < 0 || HEADER + 4L * count > buffer.limit()) {
+                throw new IllegalStateException("Playlist index cut short");
+            }
+            this.buffer = buffer;
+            this.count = count;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= count) throw new IndexOutOfBoundsException("Index " + index + ", size " + count);
+            int offset = buffer.getInt(HEADER + 4 * index);
+            int length = buffer.getInt(offset);
+            byte[] bytes = new byte[length];
+            // Absolute reads through a private cursor, so lists can be read from several threads
+            ByteBuffer entry = buffer.duplicate();
+            entry.position(offset + 4);
+            entry.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+}
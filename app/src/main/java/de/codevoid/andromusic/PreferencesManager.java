@@ -6,42 +6,121 @@ import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class PreferencesManager {
     private static final String PREFS_NAME = "AndroMusicPrefs";
+    // Single-folder libraries from before multiple roots; read once as the first root
     private static final String KEY_DIRECTORY = "music_directory";
+    private static final String KEY_LIBRARY_ROOTS = "library_roots";
+    private static final String KEY_USE_MEDIA_STORE = "library_use_media_store";
+    private static final String KEY_REINDEX_PENDING = "reindex_pending_roots";
+    // Legacy; the playlist lives in PlaylistStore's file now
     private static final String KEY_PLAYLIST = "playlist";
+    // Legacy; the playback state lives in StateJournal's file now
     private static final String KEY_TRACK_INDEX = "track_index";
     private static final String KEY_POSITION = "position_ms";
     private static final String KEY_SHUFFLE = "shuffle_enabled";
+    private static final String KEY_SMART_PLAYLISTS = "smart_playlists";
+    private static final String KEY_WARM_START = "warm_start";
+    private static final String KEY_SCAN_PARALLELISM = "scan_parallelism";
+    private static final String KEY_SCAN_NOMEDIA = "scan_honor_nomedia";
+    private static final String KEY_SCAN_SKIP_HIDDEN = "scan_skip_hidden";
+    private static final String KEY_SCAN_EXCLUDES = "scan_exclude_globs";
+    private static final String KEY_SCAN_MAX_DEPTH = "scan_max_depth";
+    private static final String KEY_SCAN_SNIFF = "scan_sniff_content";
 
     private final SharedPreferences prefs;
+    private final PlaylistStore playlistStore;
+    private final PlaylistStore queueStore;
+    private final StateJournal stateJournal;
 
     public PreferencesManager(Context context) {
         prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        playlistStore = PlaylistStore.get(context);
+        queueStore = PlaylistStore.queue(context);
+        stateJournal = StateJournal.get(context);
+        migrateState();
     }
 
-    public void saveDirectory(String path) {
-        prefs.edit().putString(KEY_DIRECTORY, path).apply();
+    public void saveLibraryRoots(List<String> roots) {
+        JSONArray array = new JSONArray();
+        for (String root : roots) {
+            array.put(root);
+        }
+        prefs.edit().putString(KEY_LIBRARY_ROOTS, array.toString()).remove(KEY_DIRECTORY).apply();
     }
 
-    public String loadDirectory() {
-        return prefs.getString(KEY_DIRECTORY, null);
+    public List<String> loadLibraryRoots() {
+        List<String> roots = new ArrayList<>();
+        String json = prefs.getString(KEY_LIBRARY_ROOTS, null);
+        if (json == null) {
+            String directory = prefs.getString(KEY_DIRECTORY, null);
+            if (directory != null) roots.add(directory);
+            return roots;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                roots.add(array.getString(i));
+            }
+        } catch (JSONException e) {
+            Log.w("PreferencesManager", "Failed to parse library roots JSON", e);
+        }
+        return roots;
     }
 
-    public void savePlaylist(List<String> playlist) {
+    // Build the library from the system media database instead of walking the roots
+    public void saveUseMediaStore(boolean useMediaStore) {
+        prefs.edit().putBoolean(KEY_USE_MEDIA_STORE, useMediaStore).apply();
+    }
+
+    public boolean loadUseMediaStore() {
+        return prefs.getBoolean(KEY_USE_MEDIA_STORE, false);
+    }
+
+    // Roots the interrupted background reindex still has to scan; null when no pass is in progress
+    public void saveReindexPending(List<String> roots) {
+        if (roots == null) {
+            prefs.edit().remove(KEY_REINDEX_PENDING).apply();
+            return;
+        }
         JSONArray array = new JSONArray();
-        for (String path : playlist) {
-            array.put(path);
+        for (String root : roots) {
+            array.put(root);
+        }
+        prefs.edit().putString(KEY_REINDEX_PENDING, array.toString()).apply();
+    }
+
+    public List<String> loadReindexPending() {
+        String json = prefs.getString(KEY_REINDEX_PENDING, null);
+        if (json == null) return null;
+        List<String> roots = new ArrayList<>();
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                roots.add(array.getString(i));
+            }
+        } catch (JSONException e) {
+            Log.w("PreferencesManager", "Failed to parse reindex checkpoint", e);
+            return null;
         }
-        prefs.edit().putString(KEY_PLAYLIST, array.toString()).apply();
+        return roots;
+    }
+
+    public void savePlaylist(List<String> playlist) {
+        playlistStore.save(playlist);
     }
 
+    // Read-only and decoded on access
     public List<String> loadPlaylist() {
-        List<String> playlist = new ArrayList<>();
+        List<String> playlist = playlistStore.load();
+        if (playlist != null) return playlist;
+        // Playlists from before the playlist file were a JSON array in the preferences; moved over once
+        playlist = new ArrayList<>();
         String json = prefs.getString(KEY_PLAYLIST, null);
         if (json == null) return playlist;
         try {
@@ -52,30 +131,151 @@ public class PreferencesManager {
         } catch (JSONException e) {
             Log.w("PreferencesManager", "Failed to parse playlist JSON", e);
         }
+        playlistStore.save(playlist);
+        prefs.edit().remove(KEY_PLAYLIST).apply();
         return playlist;
     }
 
+    // Empty while the whole library is played; the track index is a position in the queue otherwise
+    public void saveQueue(List<String> queue) {
+        queueStore.save(queue);
+    }
+
+    public List<String> loadQueue() {
+        List<String> queue = queueStore.load();
+        return queue != null ? queue : new ArrayList<String>();
+    }
+
     public void saveTrackIndex(int index) {
-        prefs.edit().putInt(KEY_TRACK_INDEX, index).apply();
+        stateJournal.setTrackIndex(index);
     }
 
     public int loadTrackIndex() {
-        return prefs.getInt(KEY_TRACK_INDEX, 0);
+        return stateJournal.getTrackIndex();
     }
 
+    // Cheap enough to call every second during playback
     public void savePosition(int positionMs) {
-        prefs.edit().putInt(KEY_POSITION, positionMs).apply();
+        stateJournal.setPosition(positionMs);
     }
 
     public int loadPosition() {
-        return prefs.getInt(KEY_POSITION, 0);
+        return stateJournal.getPosition();
     }
 
     public void saveShuffleEnabled(boolean enabled) {
-        prefs.edit().putBoolean(KEY_SHUFFLE, enabled).apply();
+        stateJournal.setShuffle(enabled);
     }
 
     public boolean loadShuffleEnabled() {
-        return prefs.getBoolean(KEY_SHUFFLE, false);
+        return stateJournal.getShuffle();
+    }
+
+    // The saved playlist is in library order; a seed other than 0 means the track index is a position in
+    // the ShuffleOrder drawn from it
+    public void saveShuffleOrder(long seed, int first) {
+        stateJournal.setShuffleOrder(seed, first);
+    }
+
+    public long loadShuffleSeed() {
+        return stateJournal.getShuffleSeed();
+    }
+
+    public int loadShuffleFirst() {
+        return stateJournal.getShuffleFirst();
+    }
+
+    // The playback state from before the journal, moved over once
+    private void migrateState() {
+        if (stateJournal.hasState() || !prefs.contains(KEY_TRACK_INDEX)) return;
+        stateJournal.setTrackIndex(prefs.getInt(KEY_TRACK_INDEX, 0));
+        stateJournal.setPosition(prefs.getInt(KEY_POSITION, 0));
+        stateJournal.setShuffle(prefs.getBoolean(KEY_SHUFFLE, false));
+        prefs.edit().remove(KEY_TRACK_INDEX).remove(KEY_POSITION).remove(KEY_SHUFFLE).apply();
+    }
+
+    // Prepare the saved track, paused, when the service starts
+    public void saveWarmStart(boolean warmStart) {
+        prefs.edit().putBoolean(KEY_WARM_START, warmStart).apply();
+    }
+
+    public boolean loadWarmStart() {
+        return prefs.getBoolean(KEY_WARM_START, false);
+    }
+
+    // Only the rules; members are worked out from the library
+    public void saveSmartPlaylists(List<SmartPlaylist> playlists) {
+        JSONArray array = new JSONArray();
+        try {
+            for (SmartPlaylist playlist : playlists) {
+                JSONObject object = new JSONObject();
+                object.put("rule", playlist.getRule());
+                if (playlist.getValue() != null) object.put("value", playlist.getValue());
+                array.put(object);
+            }
+        } catch (JSONException e) {
+            Log.w("PreferencesManager", "Failed to encode smart playlists", e);
+            return;
+        }
+        prefs.edit().putString(KEY_SMART_PLAYLISTS, array.toString()).apply();
+    }
+
+    public List<SmartPlaylist> loadSmartPlaylists() {
+        List<SmartPlaylist> playlists = new ArrayList<>();
+        String json = prefs.getString(KEY_SMART_PLAYLISTS, null);
+        if (json == null) return playlists;
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                playlists.add(new SmartPlaylist(object.getString("rule"), object.optString("value", null)));
+            }
+        } catch (JSONException e) {
+            Log.w("PreferencesManager", "Failed to parse smart playlists JSON", e);
+        }
+        return playlists;
+    }
+
+    public void saveScanParallelism(int parallelism) {
+        prefs.edit().putInt(KEY_SCAN_PARALLELISM, parallelism).apply();
+    }
+
+    public int loadScanParallelism() {
+        return prefs.getInt(KEY_SCAN_PARALLELISM, Runtime.getRuntime().availableProcessors());
+    }
+
+    public void saveScanRules(ScanRules rules) {
+        JSONArray excludes = new JSONArray();
+        for (String glob : rules.getExcludeGlobs()) {
+            excludes.put(glob);
+        }
+        prefs.edit()
+                .putBoolean(KEY_SCAN_NOMEDIA, rules.honorsNomedia())
+                .putBoolean(KEY_SCAN_SKIP_HIDDEN, rules.skipsHidden())
+                .putString(KEY_SCAN_EXCLUDES, excludes.toString())
+                .putInt(KEY_SCAN_MAX_DEPTH, rules.getMaxDepth())
+                .putBoolean(KEY_SCAN_SNIFF, rules.sniffsContent())
+                .apply();
+    }
+
+    public ScanRules loadScanRules() {
+        List<String> excludes = new ArrayList<>();
+        String json = prefs.getString(KEY_SCAN_EXCLUDES, null);
+        if (json != null) {
+            try {
+                JSONArray array = new JSONArray(json);
+                for (int i = 0; i < array.length(); i++) {
+                    excludes.add(array.getString(i));
+                }
+            } catch (JSONException e) {
+                Log.w("PreferencesManager", "Failed to parse scan exclude JSON", e);
+            }
+        }
+        return new ScanRules(
+                prefs.getBoolean(KEY_SCAN_NOMEDIA, ScanRules.DEFAULT.honorsNomedia()),
+                prefs.getBoolean(KEY_SCAN_SKIP_HIDDEN, ScanRules.DEFAULT.skipsHidden()),
+                excludes,
+                prefs.getInt(KEY_SCAN_MAX_DEPTH, ScanRules.DEFAULT.getMaxDepth()),
+                prefs.getBoolean(KEY_SCAN_SNIFF, ScanRules.DEFAULT.sniffsContent()));
     }
 }
@@ -0,0 +1,273 @@
+package de.codevoid.andromusic;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ScanJob {
+    private static final String TAG = "ScanJob";
+    private static final int BATCH_SIZE = 200;
+    private static final long BATCH_INTERVAL_MS = 250;
+    private static final int PROGRESS_INTERVAL = 25;
+
+    // A single coordinator keeps a cancelled scan from overlapping the manifests of the next one
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Roots usually live on different storage, so each one is walked on its own thread
+    private static final ExecutorService rootExecutor = Executors.newCachedThreadPool();
+
+    public interface Callback {
+        // All callbacks run on the main thread and stop as soon as the job is cancelled
+        void onBatch(List<String> tracks);
+        void onProgress(int directories, int tracks);
+        void onComplete(List<String> tracks);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ContentResolver resolver;
+    private final List<String> roots;
+    private final Set<String> rescan;
+    private final LibraryRoots store;
+    private final int parallelism;
+    private final ScanRules rules;
+    private final Callback callback;
+    private final CancellationSignal cancellationSignal = new CancellationSignal();
+    private final AtomicInteger directories = new AtomicInteger();
+    private final AtomicInteger trackCount = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private Future<?> future;
+
+    private ScanJob(ContentResolver resolver, List<String> roots, Collection<String> rescan, LibraryRoots store,
+                    int parallelism, ScanRules rules, Callback callback) {
+        this.resolver = resolver;
+        this.roots = new ArrayList<>(roots);
+        this.rescan = new HashSet<>(rescan);
+        this.store = store;
+        this.parallelism = parallelism;
+        this.rules = rules;
+        this.callback = callback;
+    }
+
+    // Roots outside rescan reuse the run saved by their last complete scan when the rules still match; the
+    // service keeps those runs current with what its watchers see.
+    // Document tree roots are walked through the resolver.
+    public static ScanJob start(ContentResolver resolver, List<String> roots, Collection<String> rescan,
+                                LibraryRoots store, int parallelism, ScanRules rules, Callback callback) {
+        ScanJob job = new ScanJob(resolver, roots, rescan, store, parallelism, rules, callback);
+        job.future = executor.submit(job::run);
+        return job;
+    }
+
+    // Queries the system media database instead of walking the roots; nothing is cached per root
+    public static ScanJob startMediaStore(ContentResolver resolver, List<String> roots, TrackLibrary library,
+                                          ScanRules rules, Callback callback) {
+        ScanJob job = new ScanJob(resolver, roots, roots, null, 1, rules, callback);
+        job.future = executor.submit(() -> job.runMediaStore(library));
+        return job;
+    }
+
+    // Runs on the coordinator, so it can't interleave with a scan writing the same run
+    public static void updateRun(LibraryRoots store, String root, ScanRules rules, List<String> added,
+                                 List<String> removedFiles, List<String> removedDirs) {
+        executor.execute(() -> store.updateRun(root, rules, added, removedFiles, removedDirs));
+    }
+
+    public void cancel() {
+        cancelled = true;
+        cancellationSignal.cancel();
+        if (future != null) future.cancel(true);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void run() {
+        List<String> tracks = new ArrayList<>();
+        BatchingVisitor visitor = new BatchingVisitor(tracks);
+        NaturalOrder order = new NaturalOrder();
+        MusicScanner.RunMerger merger = new MusicScanner.RunMerger(roots.size(), order, visitor::onTrack);
+        List<Future<?>> scans = new ArrayList<>();
+        for (int i = 0; i < roots.size(); i++) {
+            String root = roots.get(i);
+            List<String> cached = rescan.contains(root) ? null : store.loadRun(root, rules);
+            if (cached != null) {
+                merger.addAll(i, cached);
+                merger.finish(i);
+            } else {
+                int run = i;
+                if (DocumentScanner.isDocument(root)) {
+                    scans.add(rootExecutor.submit(() -> scanDocumentRoot(run, root, order, merger, visitor)));
+                } else {
+                    scans.add(rootExecutor.submit(() -> scanRoot(run, root, merger, visitor)));
+                }
+            }
+        }
+        // Waits even when cancelled, so the next job can't load a manifest this one is still writing
+        boolean interrupted = false;
+        for (Future<?> scan : scans) {
+            while (true) {
+                try {
+                    scan.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (cancelled) return;
+        visitor.flush();
+        int dirCount = directories.get();
+        deliver(() -> {
+            callback.onProgress(dirCount, tracks.size());
+            callback.onComplete(tracks);
+        });
+    }
+
+    private void runMediaStore(TrackLibrary library) {
+        List<String> found;
+        try {
+            found = MediaStoreScanner.scan(resolver, roots, rules, library, cancellationSignal);
+        } catch (RuntimeException e) {
+            // Also a cancelled query, or a media provider that refuses access
+            if (!cancelled) Log.w(TAG, "Media store query failed", e);
+            found = new ArrayList<>();
+        }
+        if (cancelled) return;
+        List<String> tracks = new ArrayList<>(found.size());
+        BatchingVisitor visitor = new BatchingVisitor(tracks);
+        Set<String> folders = new HashSet<>();
+        for (String path : found) {
+            folders.add(path.substring(0, Math.max(path.lastIndexOf('/'), 0)));
+            visitor.onTrack(path);
+        }
+        visitor.flush();
+        int dirCount = folders.size();
+        deliver(() -> {
+            callback.onProgress(dirCount, tracks.size());
+            callback.onComplete(tracks);
+        });
+    }
+
+    private void scanRoot(int run, String root, MusicScanner.RunMerger merger, BatchingVisitor visitor) {
+        ScanManifest manifest = store.manifest(root);
+        List<String> tracks = new ArrayList<>();
+        boolean failed = false;
+        try {
+            manifest.load(root, rules);
+            MusicScanner.scanOrdered(root, parallelism, manifest, rules, new MusicScanner.Visitor() {
+                @Override
+                public boolean onDirectory(File dir) {
+                    return visitor.onDirectory(dir);
+                }
+
+                @Override
+                public void onTrack(String path) {
+                    tracks.add(path);
+                    merger.add(run, path);
+                }
+            });
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Scan of " + root + " failed", e);
+            failed = true;
+        } finally {
+            merger.finish(run);
+        }
+        // Only a complete walk may replace the manifest and the run, otherwise unvisited subtrees would be dropped
+        if (cancelled || failed) return;
+        manifest.save();
+        store.saveRun(root, rules, tracks);
+    }
+
+    // Document ids don't follow the folder order, so the run is sorted as a whole before it is merged
+    private void scanDocumentRoot(int run, String root, NaturalOrder order, MusicScanner.RunMerger merger,
+                                  BatchingVisitor visitor) {
+        List<String> tracks = null;
+        try {
+            tracks = DocumentScanner.scan(resolver, Uri.parse(root), rules, new MusicScanner.Visitor() {
+                @Override
+                public boolean onDirectory(File dir) {
+                    return visitor.onDirectory(dir);
+                }
+
+                @Override
+                public void onTrack(String path) {
+                    // Merged once the whole run is sorted
+                }
+            });
+            order.sort(tracks);
+            merger.addAll(run, tracks);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Scan of " + root + " failed", e);
+        } finally {
+            merger.finish(run);
+        }
+        if (cancelled || tracks == null) return;
+        store.saveRun(root, rules, tracks);
+    }
+
+    private void deliver(Runnable runnable) {
+        mainHandler.post(() -> {
+            if (!cancelled) runnable.run();
+        });
+    }
+
+    private class BatchingVisitor implements MusicScanner.Visitor {
+        private final List<String> tracks;
+        private List<String> pending = new ArrayList<>();
+        private long lastFlush = SystemClock.uptimeMillis();
+
+        BatchingVisitor(List<String> tracks) {
+            this.tracks = tracks;
+        }
+
+        // Called from every root's scanning threads
+        @Override
+        public boolean onDirectory(File dir) {
+            int count = directories.incrementAndGet();
+            if (count % PROGRESS_INTERVAL == 0) {
+                int found = trackCount.get();
+                deliver(() -> callback.onProgress(count, found));
+            }
+            return !cancelled;
+        }
+
+        // Called in merged order, one root at a time under the merger's lock
+        @Override
+        public void onTrack(String path) {
+            tracks.add(path);
+            pending.add(path);
+            trackCount.incrementAndGet();
+            long now = SystemClock.uptimeMillis();
+            if (pending.size() >= BATCH_SIZE || now - lastFlush >= BATCH_INTERVAL_MS) {
+                flush();
+                lastFlush = now;
+            }
+        }
+
+        void flush() {
+            if (pending.isEmpty()) return;
+            List<String> batch = pending;
+            pending = new ArrayList<>();
+            deliver(() -> callback.onBatch(batch));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package de.codevoid.andromusic;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ScanManifest {
+    private static final String TAG = "ScanManifest";
+    private static final int MAGIC = 0x414d4d46; // "AMMF"
+    private static final int VERSION = 2;
+
+    public static class Entry {
+        final String path;
+        final long mtime;
+        final int childCount;
+        final List<String> subdirs;
+        final List<String> audio;
+
+        Entry(String path, long mtime, int childCount, List<String> subdirs, List<String> audio) {
+            this.path = path;
+            this.mtime = mtime;
+            this.childCount = childCount;
+            this.subdirs = subdirs;
+            this.audio = audio;
+        }
+    }
+
+    private final File file;
+    private String root;
+    private String rulesSignature;
+    private Map<String, Entry> previous = new HashMap<>();
+    private Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    public ScanManifest(File file) {
+        this.file = file;
+    }
+
+    // Loads the entries saved for the given root; a manifest for another root or other rules is ignored
+    public void load(String rootPath, ScanRules rules) {
+        root = rootPath;
+        rulesSignature = rules.signature();
+        previous = new HashMap<>();
+        current = new ConcurrentHashMap<>();
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            if (!rootPath.equals(in.readUTF()) || !rulesSignature.equals(in.readUTF())) return;
+            int count = in.readInt();
+            Map<String, Entry> loaded = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                int childCount = in.readInt();
+                List<String> subdirs = readNames(in);
+                List<String> audio = readNames(in);
+                loaded.put(path, new Entry(path, mtime, childCount, subdirs, audio));
+            }
+            previous = loaded;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read scan manifest, rescanning from scratch", e);
+        }
+    }
+
+    // Returns the saved entry when the directory has not been modified since the last scan
+    Entry lookup(String path, long mtime) {
+        Entry entry = previous.get(path);
+        if (entry == null || entry.mtime != mtime || mtime == 0) return null;
+        current.put(path, entry);
+        return entry;
+    }
+
+    void record(Entry entry) {
+        current.put(entry.path, entry);
+    }
+
+    int size() {
+        return current.size();
+    }
+
+    // Persists only the directories seen by the last scan, dropping removed subtrees
+    public void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(root != null ? root : "");
+            out.writeUTF(rulesSignature != null ? rulesSignature : "");
+            out.writeInt(current.size());
+            for (Entry entry : current.values()) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.mtime);
+                out.writeInt(entry.childCount);
+                writeNames(out, entry.subdirs);
+                writeNames(out, entry.audio);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write scan manifest", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace scan manifest");
+            tmp.delete();
+            return;
+        }
+        previous = new HashMap<>(current);
+        current = new ConcurrentHashMap<>();
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+}
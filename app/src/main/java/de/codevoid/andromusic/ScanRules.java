@@ -0,0 +1,102 @@
+package de.codevoid.andromusic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class ScanRules {
+    public static final ScanRules NONE = new ScanRules(false, false, Collections.emptyList(), 0);
+    public static final ScanRules DEFAULT = new ScanRules(true, true, Collections.emptyList(), 0);
+
+    private final boolean honorNomedia;
+    private final boolean skipHidden;
+    private final List<String> excludeGlobs;
+    private final int maxDepth;
+    private final boolean sniffContent;
+    private final List<Pattern> namePatterns = new ArrayList<>();
+    private final List<Pattern> pathPatterns = new ArrayList<>();
+
+    public ScanRules(boolean honorNomedia, boolean skipHidden, List<String> excludeGlobs, int maxDepth) {
+        this(honorNomedia, skipHidden, excludeGlobs, maxDepth, false);
+    }
+
+    // maxDepth counts directory levels below the root; 0 means unlimited.
+    // sniffContent reads the header of each candidate track and drops files no player can open.
+    public ScanRules(boolean honorNomedia, boolean skipHidden, List<String> excludeGlobs, int maxDepth,
+                     boolean sniffContent) {
+        this.honorNomedia = honorNomedia;
+        this.skipHidden = skipHidden;
+        this.excludeGlobs = Collections.unmodifiableList(new ArrayList<>(excludeGlobs));
+        this.maxDepth = maxDepth;
+        this.sniffContent = sniffContent;
+        for (String glob : excludeGlobs) {
+            String trimmed = glob.trim();
+            if (trimmed.startsWith("/")) trimmed = trimmed.substring(1);
+            if (trimmed.endsWith("/")) trimmed = trimmed.substring(0, trimmed.length() - 1);
+            if (trimmed.isEmpty()) continue;
+            // Like .gitignore, a glob without a slash matches the name at any depth
+            if (trimmed.indexOf('/') < 0) {
+                namePatterns.add(compileGlob(trimmed));
+            } else {
+                pathPatterns.add(compileGlob(trimmed));
+            }
+        }
+    }
+
+    public boolean honorsNomedia() { return honorNomedia; }
+    public boolean skipsHidden() { return skipHidden; }
+    public List<String> getExcludeGlobs() { return excludeGlobs; }
+    public int getMaxDepth() { return maxDepth; }
+    public boolean sniffsContent() { return sniffContent; }
+
+    // Decided from the name alone, before the entry is stat'ed
+    boolean excludes(String name, String relativePath) {
+        for (Pattern pattern : namePatterns) {
+            if (pattern.matcher(name).matches()) return true;
+        }
+        for (Pattern pattern : pathPatterns) {
+            if (pattern.matcher(relativePath).matches()) return true;
+        }
+        return false;
+    }
+
+    boolean allowsDirectory(String name, int depth) {
+        if (skipHidden && name.startsWith(".")) return false;
+        return maxDepth <= 0 || depth <= maxDepth;
+    }
+
+    // Listings cached under one set of rules are not valid under another
+    String signature() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(honorNomedia ? 'n' : '-').append(skipHidden ? 'h' : '-').append(sniffContent ? 's' : '-')
+                .append(maxDepth);
+        for (String glob : excludeGlobs) {
+            sb.append('\0').append(glob);
+        }
+        return sb.toString();
+    }
+
+    static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    boolean slash = i + 2 < glob.length() && glob.charAt(i + 2) == '/';
+                    regex.append(slash ? "(?:.*/)?" : ".*");
+                    i += slash ? 3 : 2;
+                    continue;
+                }
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+            i++;
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+}
@@ -0,0 +1,284 @@
+package de.codevoid.andromusic;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Search-as-you-type over title, artist, album and file name. Each track's fields are normalized (case
+// folded, accents and punctuation dropped) into one char array, and every word contributes its trigrams and
+// its one and two letter prefixes as keys. A query intersects the posting lists of its words' keys and only
+// then looks at the text of the few candidates left, to confirm and rank them.
+public class SearchIndex {
+    // Separates the fields of a track in the text array; a match before the first one is in the title
+    private static final char FIELD = '\u0001';
+    private static final long PREFIX1 = 1L << 48;
+    private static final long PREFIX2 = 2L << 48;
+    private static final int[] NONE = new int[0];
+
+    private final char[] text;
+    private final int[] textStart;
+    // Sorted keys; the tracks containing keys[k] are postings[offsets[k]] up to postings[offsets[k + 1]]
+    private final long[] keys;
+    private final int[] offsets;
+    private final int[] postings;
+
+    // Track positions in search results are positions in paths. Reads tags only, so any thread may build.
+    public static SearchIndex build(List<String> paths, TrackLibrary library) {
+        int n = paths.size();
+        StringBuilder all = new StringBuilder(n * 48);
+        int[] textStart = new int[n + 1];
+        long[][] trackKeys = new long[n][];
+        Set<Long> distinct = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            String path = paths.get(i);
+            TrackLibrary.Track track = library.get(path);
+            textStart[i] = all.length();
+            if (track != null) {
+                appendField(all, track.getTitle());
+                appendField(all, track.getArtist());
+                appendField(all, track.getAlbum());
+            } else {
+                all.append(FIELD).append(FIELD).append(FIELD);
+            }
+            all.append(normalize(DocumentScanner.fileName(path)));
+            long[] keys = keysOf(all, textStart[i], all.length());
+            trackKeys[i] = keys;
+            for (long key : keys) {
+                distinct.add(key);
+            }
+        }
+        textStart[n] = all.length();
+        char[] text = new char[all.length()];
+        all.getChars(0, all.length(), text, 0);
+
+        long[] keys = new long[distinct.size()];
+        int k = 0;
+        for (long key : distinct) {
+            keys[k++] = key;
+        }
+        Arrays.sort(keys);
+
+        // (key rank, track) pairs sorted as longs give each key's postings in track order
+        int pairCount = 0;
+        for (long[] t : trackKeys) {
+            pairCount += t.length;
+        }
+        long[] pairs = new long[pairCount];
+        int p = 0;
+        for (int i = 0; i < n; i++) {
+            for (long key : trackKeys[i]) {
+                pairs[p++] = ((long) Arrays.binarySearch(keys, key) << 32) | i;
+            }
+            trackKeys[i] = null;
+        }
+        Arrays.sort(pairs);
+        int[] offsets = new int[keys.length + 1];
+        int[] postings = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            offsets[(int) (pairs[i] >>> 32) + 1]++;
+            postings[i] = (int) pairs[i];
+        }
+        for (int i = 0; i < keys.length; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        return new SearchIndex(text, textStart, keys, offsets, postings);
+    }
+
+    private SearchIndex(char[] text, int[] textStart, long[] keys, int[] offsets, int[] postings) {
+        this.text = text;
+        this.textStart = textStart;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.postings = postings;
+    }
+
+    public int size() {
+        return textStart.length - 1;
+    }
+
+    // Positions of the tracks matching every word of the query, best first: a word matched at the start of
+    // a word ranks above one matched inside, and a match in the title above the other fields. Ties keep
+    // the order of the list the index was built from. An empty query matches nothing.
+    public int[] search(String query) {
+        String normalized = normalize(query);
+        if (normalized.isEmpty()) return NONE;
+        String[] words = normalized.split(" ");
+
+        // The keys of all words together, rarest first, so every intersection is as short as it gets
+        List<Integer> ranks = new ArrayList<>();
+        for (String word : words) {
+            for (long key : queryKeys(word)) {
+                int k = Arrays.binarySearch(keys, key);
+                if (k < 0) return NONE;
+                ranks.add(k);
+            }
+        }
+        Collections.sort(ranks, (a, b) -> Integer.compare(offsets[a + 1] - offsets[a], offsets[b + 1] - offsets[b]));
+        int first = ranks.get(0);
+        int[] candidates = Arrays.copyOfRange(postings, offsets[first], offsets[first + 1]);
+        int count = candidates.length;
+        for (int r = 1; r < ranks.size() && count > 0; r++) {
+            int k = ranks.get(r);
+            count = intersect(candidates, count, offsets[k], offsets[k + 1]);
+        }
+
+        // Scores are small, so ranking is a counting sort that keeps equal scores in position order
+        int maxScore = 4 * words.length;
+        int[] scores = new int[count];
+        int[] perScore = new int[maxScore + 2];
+        for (int c = 0; c < count; c++) {
+            int track = candidates[c];
+            int titleEnd = textStart[track];
+            while (text[titleEnd] != FIELD) titleEnd++;
+            int score = 0;
+            for (String word : words) {
+                int match = bestMatch(track, titleEnd, word);
+                if (match < 0) {
+                    score = 0;
+                    break;
+                }
+                score += match;
+            }
+            scores[c] = score;
+            if (score > 0) perScore[maxScore - score + 1]++;
+        }
+        for (int i = 1; i < perScore.length; i++) {
+            perScore[i] += perScore[i - 1];
+        }
+        int[] result = new int[perScore[perScore.length - 1]];
+        for (int c = 0; c < count; c++) {
+            if (scores[c] > 0) result[perScore[maxScore - scores[c]]++] = candidates[c];
+        }
+        return result;
+    }
+
+    // Short words only match where a word starts; longer ones need all their trigrams
+    private static long[] queryKeys(String word) {
+        if (word.length() == 1) return new long[]{PREFIX1 | word.charAt(0)};
+        if (word.length() == 2) return new long[]{PREFIX2 | (long) word.charAt(0) << 16 | word.charAt(1)};
+        long[] trigrams = new long[word.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = trigram(word, i);
+        }
+        return trigrams;
+    }
+
+    // Trigrams can match without the word being there, so each candidate is checked against its text
+    private int bestMatch(int track, int titleEnd, String word) {
+        int start = textStart[track];
+        int end = textStart[track + 1] - word.length();
+        char first = word.charAt(0);
+        int best = -1;
+        for (int p = start; p <= end; p++) {
+            // Nothing after the title can beat a word start
+            if (best >= 3 && p >= titleEnd) break;
+            if (text[p] != first || !matchesAt(p, word)) continue;
+            boolean wordStart = p == start || text[p - 1] == ' ' || text[p - 1] == FIELD;
+            best = Math.max(best, 1 + (wordStart ? 2 : 0) + (p < titleEnd ? 1 : 0));
+            if (best == 4) break;
+        }
+        return best;
+    }
+
+    private boolean matchesAt(int p, String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (text[p + i] != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Lower case, without accents, with every run of other characters turned into one space
+    static String normalize(String s) {
+        if (s == null) return "";
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder out = new StringBuilder(decomposed.length());
+        boolean space = true;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            int type = Character.getType(c);
+            if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                    || type == Character.COMBINING_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                out.append(Character.toLowerCase(c));
+                space = false;
+            } else if (!space) {
+                out.append(' ');
+                space = true;
+            }
+        }
+        int length = out.length();
+        if (length > 0 && out.charAt(length - 1) == ' ') out.setLength(length - 1);
+        return out.toString();
+    }
+
+    private static void appendField(StringBuilder out, String value) {
+        out.append(normalize(value)).append(FIELD);
+    }
+
+    // The distinct keys of the words in text[start, end)
+    private static long[] keysOf(CharSequence text, int start, int end) {
+        List<Long> keys = new ArrayList<>();
+        int wordStart = start;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? text.charAt(i) : ' ';
+            if (c != ' ' && c != FIELD) continue;
+            int length = i - wordStart;
+            if (length >= 1) keys.add(PREFIX1 | text.charAt(wordStart));
+            if (length >= 2) keys.add(PREFIX2 | (long) text.charAt(wordStart) << 16 | text.charAt(wordStart + 1));
+            for (int j = wordStart; j + 3 <= i; j++) {
+                keys.add(trigram(text, j));
+            }
+            wordStart = i + 1;
+        }
+        long[] result = new long[keys.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = keys.get(i);
+        }
+        Arrays.sort(result);
+        int distinct = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (i == 0 || result[i] != result[i - 1]) result[distinct++] = result[i];
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    private static long trigram(CharSequence s, int i) {
+        return (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+    }
+
+    // Keeps the first count candidates that are also in postings[from, to); returns how many are left.
+    // Gallops through the posting list when it is much longer than the candidates.
+    private int intersect(int[] candidates, int count, int from, int to) {
+        int kept = 0;
+        int j = from;
+        for (int i = 0; i < count && j < to; i++) {
+            int track = candidates[i];
+            if (postings[j] < track) {
+                int step = 1;
+                while (j + step < to && postings[j + step] < track) {
+                    j += step;
+                    step <<= 1;
+                }
+                int low = j + 1;
+                int high = Math.min(j + step, to - 1);
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if (postings[mid] < track) {
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                j = low;
+            }
+            if (j < to && postings[j] == track) candidates[kept++] = track;
+        }
+        return kept;
+    }
+}
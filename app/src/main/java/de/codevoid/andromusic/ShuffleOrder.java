@@ -0,0 +1,99 @@
+package de.codevoid.andromusic;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+
+// A shuffled play order as a permutation of the library positions 0..size-1, with its inverse, so a
+// position maps to the other order and back in one step. The permutation is drawn from a seed with the
+// first track fixed, so those two numbers are all that needs saving.
+public class ShuffleOrder {
+    private final long seed;
+    private final int first;
+    private final int[] order;
+    private final int[] inverse;
+
+    public ShuffleOrder(int size, long seed, int first) {
+        if (first < 0 || first >= size) throw new IllegalArgumentException("First " + first + ", size " + size);
+        this.seed = seed;
+        this.first = first;
+        order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        // The first track at the front, then the rest shuffled behind it
+        order[first] = 0;
+        order[0] = first;
+        Random random = new Random(seed);
+        for (int i = size - 1; i > 1; i--) {
+            int j = 1 + random.nextInt(i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        inverse = new int[size];
+        for (int i = 0; i < size; i++) {
+            inverse[order[i]] = i;
+        }
+    }
+
+    // Never 0, which the saved state uses for no shuffle
+    public static long newSeed() {
+        Random random = new Random();
+        long seed;
+        do {
+            seed = random.nextLong();
+        } while (seed == 0);
+        return seed;
+    }
+
+    public long getSeed() { return seed; }
+    public int getFirst() { return first; }
+
+    public int size() {
+        return order.length;
+    }
+
+    // The library position of the track at a position in the shuffled order
+    public int libraryPosition(int position) {
+        return order[position];
+    }
+
+    // The position in the shuffled order of the track at a library position
+    public int position(int libraryPosition) {
+        return inverse[libraryPosition];
+    }
+
+    // Values listed by library position, rearranged into the shuffled order
+    public int[] apply(int[] library) {
+        int[] shuffled = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            shuffled[i] = library[order[i]];
+        }
+        return shuffled;
+    }
+
+    // A list in library order seen in the shuffled order, without copying it
+    public <T> List<T> apply(List<T> library) {
+        return new Shuffled<>(library);
+    }
+
+    private final class Shuffled<T> extends AbstractList<T> implements RandomAccess {
+        private final List<T> library;
+
+        Shuffled(List<T> library) {
+            this.library = library;
+        }
+
+        @Override
+        public T get(int index) {
+            return library.get(order[index]);
+        }
+
+        @Override
+        public int size() {
+            return order.length;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package de.codevoid.andromusic;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// A playlist defined by a rule over the library instead of a list of tracks. Its members are kept by
+// SmartPlaylists, which tests the rule against tracks only as they are added, changed or played.
+public class SmartPlaylist {
+    public static final String ARTIST = "artist";
+    public static final String ADDED_WITHIN_DAYS = "added_within_days";
+    public static final String NEVER_PLAYED = "never_played";
+
+    private final String rule;
+    private final String value;
+    final Set<String> members = new HashSet<>();
+
+    public SmartPlaylist(String rule, String value) {
+        this.rule = rule;
+        this.value = value;
+    }
+
+    public static SmartPlaylist byArtist(String artist) {
+        return new SmartPlaylist(ARTIST, artist);
+    }
+
+    public static SmartPlaylist addedWithin(int days) {
+        return new SmartPlaylist(ADDED_WITHIN_DAYS, Integer.toString(days));
+    }
+
+    public static SmartPlaylist neverPlayed() {
+        return new SmartPlaylist(NEVER_PLAYED, null);
+    }
+
+    public String getRule() { return rule; }
+    public String getValue() { return value; }
+
+    public int size() {
+        return members.size();
+    }
+
+    // "Added" is the file's modification time, the closest thing to an import date the library has.
+    // Tracks that aren't indexed yet have no tags or time and match once the indexer reports them.
+    boolean matches(String path, TrackLibrary.Track track, PlayHistory history, long now) {
+        switch (rule) {
+            case ARTIST:
+                return track != null && value.equalsIgnoreCase(track.getArtist());
+            case ADDED_WITHIN_DAYS:
+                return track != null && track.getMtime() >= cutoff(now);
+            case NEVER_PLAYED:
+                return !history.wasPlayed(path);
+            default:
+                return false;
+        }
+    }
+
+    // Membership that time alone can end; checked again when the playlist is played
+    boolean expires() {
+        return ADDED_WITHIN_DAYS.equals(rule);
+    }
+
+    long cutoff(long now) {
+        return now - TimeUnit.DAYS.toMillis(Integer.parseInt(value));
+    }
+}
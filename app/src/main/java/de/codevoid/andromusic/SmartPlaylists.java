@@ -0,0 +1,119 @@
+package de.codevoid.andromusic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// Keeps the members of every smart playlist current. The library is evaluated once; after that only the
+// tracks a change touches are tested, so an added folder or a batch of indexed tags costs time in proportion
+// to the change rather than to the library. Not thread-safe; MusicService calls it on the main thread.
+public class SmartPlaylists {
+    private final TrackLibrary library;
+    private final PlayHistory history;
+    private final List<SmartPlaylist> playlists;
+
+    public SmartPlaylists(TrackLibrary library, PlayHistory history, List<SmartPlaylist> playlists) {
+        this.library = library;
+        this.history = history;
+        this.playlists = new ArrayList<>(playlists);
+    }
+
+    public int size() {
+        return playlists.size();
+    }
+
+    public SmartPlaylist get(int index) {
+        return playlists.get(index);
+    }
+
+    public List<SmartPlaylist> all() {
+        return new ArrayList<>(playlists);
+    }
+
+    // Evaluates every rule against the whole library, for a freshly scanned one
+    public void rebuild(Collection<String> tracks) {
+        long now = System.currentTimeMillis();
+        for (SmartPlaylist playlist : playlists) {
+            playlist.members.clear();
+            evaluate(playlist, tracks, now);
+        }
+    }
+
+    // A new playlist is the only one evaluated against the whole library
+    public void add(SmartPlaylist playlist, Collection<String> tracks) {
+        evaluate(playlist, tracks, System.currentTimeMillis());
+        playlists.add(playlist);
+    }
+
+    public void remove(int index) {
+        playlists.remove(index);
+    }
+
+    public void onTracksAdded(Collection<String> tracks) {
+        onTracksChanged(tracks);
+    }
+
+    // Tracks whose tags changed can join one playlist and leave another
+    public void onTracksChanged(Collection<String> tracks) {
+        if (tracks.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        for (String path : tracks) {
+            TrackLibrary.Track track = library.get(path);
+            for (SmartPlaylist playlist : playlists) {
+                if (playlist.matches(path, track, history, now)) {
+                    playlist.members.add(path);
+                } else {
+                    playlist.members.remove(path);
+                }
+            }
+        }
+    }
+
+    // Files, and everything below the directories, by their paths with a trailing slash
+    public void onTracksRemoved(Collection<String> files, Collection<String> dirPrefixes) {
+        for (SmartPlaylist playlist : playlists) {
+            playlist.members.removeAll(files);
+            if (dirPrefixes.isEmpty()) continue;
+            Iterator<String> it = playlist.members.iterator();
+            while (it.hasNext()) {
+                String path = it.next();
+                for (String prefix : dirPrefixes) {
+                    if (path.startsWith(prefix)) {
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public void onPlayed(String path) {
+        for (SmartPlaylist playlist : playlists) {
+            if (SmartPlaylist.NEVER_PLAYED.equals(playlist.getRule())) playlist.members.remove(path);
+        }
+    }
+
+    // The members, unordered; MusicService picks them out of the library order. Members that have aged out
+    // of a time rule are dropped here, since nothing else would notice.
+    public Set<String> members(int index, long now) {
+        SmartPlaylist playlist = playlists.get(index);
+        if (playlist.expires()) {
+            long cutoff = playlist.cutoff(now);
+            Iterator<String> it = playlist.members.iterator();
+            while (it.hasNext()) {
+                TrackLibrary.Track track = library.get(it.next());
+                if (track == null || track.getMtime() < cutoff) it.remove();
+            }
+        }
+        return Collections.unmodifiableSet(playlist.members);
+    }
+
+    private void evaluate(SmartPlaylist playlist, Collection<String> tracks, long now) {
+        for (String path : tracks) {
+            if (playlist.matches(path, library.get(path), history, now)) playlist.members.add(path);
+        }
+    }
+}
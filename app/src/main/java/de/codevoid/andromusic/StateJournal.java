@@ -0,0 +1,227 @@
+package de.codevoid.andromusic;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+// The playback state: track index, position and shuffle order. Each change is appended to a preallocated
+// file as a fixed-size record with a sequence number and a checksum, so a checkpoint is one small write in
+// place instead of a rewrite of the preferences. Loading takes the last record that checks out, which is
+// the last one fully written before a crash. A full journal is compacted into a fresh file holding just the
+// current state, through a temporary file and a rename.
+public class StateJournal {
+    private static final String TAG = "StateJournal";
+    private static final int MAGIC = 0x414d534a; // "AMSJ"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    // seq, index, position, flags, shuffle seed (long), shuffle first, crc
+    private static final int RECORD = 32;
+    static final int CAPACITY = 512;
+    private static final int FLAG_SHUFFLE = 1;
+
+    private static StateJournal instance;
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    private final File file;
+    // Guarded by this; the state as of the latest set, ahead of the file until the writer catches up
+    private int index;
+    private int position;
+    private boolean shuffle;
+    private long shuffleSeed;
+    private int shuffleFirst;
+    private boolean recovered;
+    private boolean scheduled;
+    // A change other than the position, which is worth an fsync
+    private boolean durable;
+
+    // Writer thread only
+    private FileChannel channel;
+    private int seq;
+    private int slot;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD);
+    private final CRC32 crc = new CRC32();
+
+    public static synchronized StateJournal get(Context context) {
+        if (instance == null) {
+            instance = new StateJournal(new File(context.getApplicationContext().getFilesDir(), "state.journal"));
+        }
+        return instance;
+    }
+
+    StateJournal(File file) {
+        this.file = file;
+        recover();
+    }
+
+    // False until a state has been saved, so the caller can fall back to an older source
+    public synchronized boolean hasState() {
+        return recovered;
+    }
+
+    public synchronized int getTrackIndex() { return index; }
+    public synchronized int getPosition() { return position; }
+    public synchronized boolean getShuffle() { return shuffle; }
+    public synchronized long getShuffleSeed() { return shuffleSeed; }
+    public synchronized int getShuffleFirst() { return shuffleFirst; }
+
+    public synchronized void setTrackIndex(int index) {
+        if (recovered && this.index == index) return;
+        this.index = index;
+        durable = true;
+        schedule();
+    }
+
+    public synchronized void setPosition(int position) {
+        if (recovered && this.position == position) return;
+        this.position = position;
+        schedule();
+    }
+
+    public synchronized void setShuffle(boolean shuffle) {
+        if (recovered && this.shuffle == shuffle) return;
+        this.shuffle = shuffle;
+        durable = true;
+        schedule();
+    }
+
+    // A seed of 0 for a play order that isn't shuffled
+    public synchronized void setShuffleOrder(long seed, int first) {
+        if (recovered && shuffleSeed == seed && shuffleFirst == first) return;
+        shuffleSeed = seed;
+        shuffleFirst = first;
+        durable = true;
+        schedule();
+    }
+
+    // Blocks until every change so far is in the file
+    void flush() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        writer.execute(done::countDown);
+        done.await();
+    }
+
+    // Changes made before the writer gets to them share one record
+    private void schedule() {
+        recovered = true;
+        if (scheduled) return;
+        scheduled = true;
+        writer.execute(this::write);
+    }
+
+    private void write() {
+        int index, position, flags, first;
+        long seed;
+        boolean durable;
+        synchronized (this) {
+            scheduled = false;
+            index = this.index;
+            position = this.position;
+            flags = shuffle ? FLAG_SHUFFLE : 0;
+            seed = shuffleSeed;
+            first = shuffleFirst;
+            durable = this.durable;
+            this.durable = false;
+        }
+        try {
+            fill(++seq, index, position, flags, seed, first);
+            if (channel == null || slot == CAPACITY) {
+                compact();
+                return;
+            }
+            channel.write(record, HEADER + (long) slot * RECORD);
+            slot++;
+            // Without it a record outlives the process but not the power going out
+            if (durable) channel.force(false);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write state", e);
+            closeChannel();
+        }
+    }
+
+    // Replaces the file with one holding just the record that was filled in; also how the journal is opened
+    private void compact() throws IOException {
+        closeChannel();
+        ByteBuffer out = ByteBuffer.allocate(HEADER + CAPACITY * RECORD);
+        out.putInt(MAGIC).putInt(VERSION);
+        out.put(record);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            stream.write(out.array());
+            stream.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        slot = 1;
+    }
+
+    private void fill(int seq, int index, int position, int flags, long seed, int first) {
+        record.clear();
+        record.putInt(seq).putInt(index).putInt(position).putInt(flags).putLong(seed).putInt(first);
+        crc.reset();
+        crc.update(record.array(), 0, RECORD - 4);
+        record.putInt((int) crc.getValue());
+        record.flip();
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close state journal", e);
+        }
+        channel = null;
+    }
+
+    // Records count from the first slot while their sequence numbers run on without a gap; the unwritten
+    // zeros of the preallocated tail, or a record torn by a crash, end the run.
+    private void recover() {
+        if (!file.exists()) return;
+        byte[] data = new byte[(int) Math.min(file.length(), HEADER + CAPACITY * RECORD)];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read state journal", e);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return;
+        CRC32 check = new CRC32();
+        for (int at = HEADER; at + RECORD <= data.length; at += RECORD) {
+            int seq = buffer.getInt(at);
+            check.reset();
+            check.update(data, at, RECORD - 4);
+            if (buffer.getInt(at + RECORD - 4) != (int) check.getValue()) break;
+            if (recovered ? seq != this.seq + 1 : seq == 0) break;
+            this.seq = seq;
+            index = buffer.getInt(at + 4);
+            position = buffer.getInt(at + 8);
+            shuffle = (buffer.getInt(at + 12) & FLAG_SHUFFLE) != 0;
+            shuffleSeed = buffer.getLong(at + 16);
+            shuffleFirst = buffer.getInt(at + 24);
+            recovered = true;
+        }
+    }
+}
@@ -0,0 +1,729 @@
+package de.codevoid.andromusic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public class TagReader {
+    // Mapping is lazy, so these only bound the address space, not what is read
+    private static final long MAX_REGION = 64L * 1024 * 1024;
+    private static final int OGG_TAIL_WINDOW = 64 * 1024;
+    // Comment entries longer than this are pictures or lyrics and are skipped unread
+    private static final int MAX_COMMENT = 4096;
+
+    private static final String[] GENRES = ("Blues|Classic Rock|Country|Dance|Disco|Funk|Grunge|Hip-Hop|Jazz|Metal"
+            + "|New Age|Oldies|Other|Pop|R&B|Rap|Reggae|Rock|Techno|Industrial|Alternative|Ska|Death Metal"
+            + "|Pranks|Soundtrack|Euro-Techno|Ambient|Trip-Hop|Vocal|Jazz+Funk|Fusion|Trance|Classical"
+            + "|Instrumental|Acid|House|Game|Sound Clip|Gospel|Noise|AlternRock|Bass|Soul|Punk|Space"
+            + "|Meditative|Instrumental Pop|Instrumental Rock|Ethnic|Gothic|Darkwave|Techno-Industrial"
+            + "|Electronic|Pop-Folk|Eurodance|Dream|Southern Rock|Comedy|Cult|Gangsta|Top 40|Christian Rap"
+            + "|Pop/Funk|Jungle|Native American|Cabaret|New Wave|Psychadelic|Rave|Showtunes|Trailer|Lo-Fi"
+            + "|Tribal|Acid Punk|Acid Jazz|Polka|Retro|Musical|Rock & Roll|Hard Rock").split("\\|");
+
+    private static final Charset[] ID3_CHARSETS = {
+            StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16, StandardCharsets.UTF_16BE, StandardCharsets.UTF_8};
+
+    public static class Tags {
+        String title;
+        String artist;
+        String album;
+        String genre;
+        int trackNumber;
+        long durationMs;
+        // Absolute file offset of the raw image bytes, or -1
+        long pictureOffset = -1;
+        int pictureLength;
+        String pictureMime;
+        // Ogg files carry their picture base64 encoded inside a comment, which has no usable offset
+        boolean encodedPicture;
+
+        public String getTitle() { return title; }
+        public String getArtist() { return artist; }
+        public String getAlbum() { return album; }
+        public String getGenre() { return genre; }
+        public int getTrackNumber() { return trackNumber; }
+        public long getDurationMs() { return durationMs; }
+        public boolean hasPicture() { return pictureOffset >= 0; }
+        public boolean hasEncodedPicture() { return encodedPicture; }
+        public long getPictureOffset() { return pictureOffset; }
+        public int getPictureLength() { return pictureLength; }
+        public String getPictureMime() { return pictureMime; }
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final Tags tags = new Tags();
+
+    private TagReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    // Returns null when the file is not a container this reader understands or its tags are malformed
+    public static Tags read(File file) {
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            TagReader reader = new TagReader(channel);
+            return reader.parse() ? reader.tags : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Copies the embedded picture out of the file; only done for the track being shown
+    public static byte[] readPicture(File file, Tags tags) throws IOException {
+        return readPicture(file, tags.pictureOffset, tags.pictureLength);
+    }
+
+    public static byte[] readPicture(File file, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(offset);
+            in.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    private boolean parse() throws IOException {
+        if (size < 12) return false;
+        ByteBuffer head = probe(0, 12);
+        long start = 0;
+        if (startsWith(head, 0, "ID3")) {
+            start = readId3();
+            head = probe(start, 12);
+            if (!startsWith(head, 0, "fLaC")) {
+                readMpegDuration(start);
+                return true;
+            }
+        }
+        if (startsWith(head, 0, "fLaC")) {
+            readFlac(start + 4);
+            return true;
+        }
+        if (startsWith(head, 0, "OggS")) return readOgg();
+        if (startsWith(head, 4, "ftyp")) return readMp4();
+        if ((head.get(0) & 0xff) == 0xff && (head.get(1) & 0xe0) == 0xe0) {
+            readId3v1();
+            readMpegDuration(0);
+            return true;
+        }
+        return false;
+    }
+
+    // --- ID3v2.3 / ID3v2.4 ---
+
+    private long readId3() throws IOException {
+        ByteBuffer header = probe(0, 10);
+        int major = header.get(3) & 0xff;
+        int flags = header.get(5) & 0xff;
+        int tagSize = syncsafe(header, 6);
+        long end = 10L + tagSize + ((flags & 0x10) != 0 ? 10 : 0);
+        // ID3v2.2 and whole-tag unsynchronisation are rare enough to leave to the platform retriever
+        if (major < 3 || major > 4 || (flags & 0x80) != 0) return end;
+        ByteBuffer tag = map(10, tagSize);
+        int pos = 0;
+        if ((flags & 0x40) != 0) {
+            pos = major == 4 ? syncsafe(tag, 0) : tag.getInt(0) + 4;
+        }
+        while (pos + 10 <= tag.limit() && tag.get(pos) != 0) {
+            String id = ascii(tag, pos, 4);
+            int frameSize = major == 4 ? syncsafe(tag, pos + 4) : tag.getInt(pos + 4);
+            int frameFlags = tag.get(pos + 9) & 0xff;
+            if (frameSize <= 0 || pos + 10 + frameSize > tag.limit()) break;
+            int data = pos + 10;
+            int length = frameSize;
+            boolean grouped = major == 4 ? (frameFlags & 0x40) != 0 : (frameFlags & 0x20) != 0;
+            if (grouped) {
+                data++;
+                length--;
+            }
+            if (major == 4 && (frameFlags & 0x01) != 0) {
+                data += 4;
+                length -= 4;
+            }
+            // Compressed, encrypted or unsynchronised frames would need a copy to decode
+            boolean plain = major == 4 ? (frameFlags & 0x0e) == 0 : (frameFlags & 0xc0) == 0;
+            if (plain && length > 0) readId3Frame(id, tag, data, length);
+            pos += 10 + frameSize;
+        }
+        return end;
+    }
+
+    private void readId3Frame(String id, ByteBuffer tag, int data, int length) {
+        switch (id) {
+            case "TIT2":
+                if (tags.title == null) tags.title = id3Text(tag, data, length);
+                break;
+            case "TPE1":
+                if (tags.artist == null) tags.artist = id3Text(tag, data, length);
+                break;
+            case "TALB":
+                if (tags.album == null) tags.album = id3Text(tag, data, length);
+                break;
+            case "TCON":
+                if (tags.genre == null) tags.genre = id3Genre(id3Text(tag, data, length));
+                break;
+            case "TRCK":
+                if (tags.trackNumber == 0) tags.trackNumber = leadingInt(id3Text(tag, data, length));
+                break;
+            case "TLEN":
+                if (tags.durationMs == 0) tags.durationMs = leadingInt(id3Text(tag, data, length));
+                break;
+            case "APIC":
+                readApic(tag, data, length);
+                break;
+        }
+    }
+
+    private void readApic(ByteBuffer tag, int data, int length) {
+        int end = data + length;
+        int encoding = tag.get(data);
+        if (encoding < 0 || encoding > 3) return;
+        int mimeEnd = terminator(tag, data + 1, end, false);
+        String mime = decode(tag, data + 1, mimeEnd - data - 1, StandardCharsets.ISO_8859_1);
+        int pictureType = tag.get(mimeEnd + 1) & 0xff;
+        boolean wide = encoding == 1 || encoding == 2;
+        int descriptionEnd = terminator(tag, mimeEnd + 2, end, wide);
+        int picture = descriptionEnd + (wide ? 2 : 1);
+        if (picture >= end) return;
+        // Prefer the front cover when a file carries several pictures
+        if (tags.hasPicture() && pictureType != 3) return;
+        tags.pictureOffset = 10L + picture;
+        tags.pictureLength = end - picture;
+        tags.pictureMime = mime.isEmpty() ? null : mime;
+    }
+
+    private static String id3Text(ByteBuffer tag, int data, int length) {
+        int encoding = tag.get(data);
+        if (encoding < 0 || encoding > 3) return null;
+        boolean wide = encoding == 1 || encoding == 2;
+        // ID3v2.4 separates multiple values with a terminator; the first one is kept
+        int end = terminator(tag, data + 1, data + length, wide);
+        return clean(decode(tag, data + 1, end - data - 1, ID3_CHARSETS[encoding]));
+    }
+
+    // Resolves ID3v1 genre references such as "(17)", "17" or "(17)Rock"
+    private static String id3Genre(String genre) {
+        if (genre == null) return null;
+        if (genre.startsWith("(")) {
+            int close = genre.indexOf(')');
+            if (close > 0 && close < genre.length() - 1) return clean(genre.substring(close + 1));
+            if (close > 0) genre = genre.substring(1, close);
+        }
+        if (!genre.isEmpty() && genre.length() <= 3 && isDigits(genre)) {
+            int index = Integer.parseInt(genre);
+            return index < GENRES.length ? GENRES[index] : null;
+        }
+        return genre;
+    }
+
+    private void readId3v1() throws IOException {
+        if (size < 128) return;
+        ByteBuffer tag = probe(size - 128, 128);
+        if (!startsWith(tag, 0, "TAG")) return;
+        tags.title = clean(fixedLatin1(tag, 3, 30));
+        tags.artist = clean(fixedLatin1(tag, 33, 30));
+        tags.album = clean(fixedLatin1(tag, 63, 30));
+        // ID3v1.1 keeps the track number in the last byte of the comment
+        if (tag.get(125) == 0 && tag.get(126) != 0) tags.trackNumber = tag.get(126) & 0xff;
+        int genre = tag.get(127) & 0xff;
+        if (genre < GENRES.length) tags.genre = GENRES[genre];
+    }
+
+    // --- MPEG audio ---
+
+    private static final int[][] BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448}, // MPEG-1 layer I
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},    // MPEG-1 layer II
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},     // MPEG-1 layer III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},    // MPEG-2 layer I
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},         // MPEG-2 layers II and III
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    // Uses a Xing or VBRI frame count when present, otherwise assumes a constant bitrate
+    private void readMpegDuration(long start) throws IOException {
+        if (tags.durationMs > 0) return;
+        ByteBuffer frame = probe(start, 64);
+        int sync = 0;
+        while (sync + 4 <= frame.limit() && frame.get(sync) == 0) sync++;
+        if (sync + 4 > frame.limit()) return;
+        int b1 = frame.get(sync + 1) & 0xff;
+        int b2 = frame.get(sync + 2) & 0xff;
+        int b3 = frame.get(sync + 3) & 0xff;
+        if ((frame.get(sync) & 0xff) != 0xff || (b1 & 0xe0) != 0xe0) return;
+        int version = (b1 >> 3) & 3;
+        int layer = 4 - ((b1 >> 1) & 3);
+        int bitrateIndex = b2 >> 4;
+        int rateIndex = (b2 >> 2) & 3;
+        if (version == 1 || layer == 4 || bitrateIndex == 15 || rateIndex == 3) return;
+        boolean mpeg1 = version == 3;
+        int sampleRate = SAMPLE_RATES[rateIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+        int bitrate = mpeg1 ? BITRATES[layer - 1][bitrateIndex] : BITRATES[layer == 1 ? 3 : 4][bitrateIndex];
+        int samplesPerFrame = layer == 1 ? 384 : layer == 3 && !mpeg1 ? 576 : 1152;
+        boolean mono = (b3 >> 6) == 3;
+
+        long frames = 0;
+        ByteBuffer info = probe(start + sync, 64);
+        int xing = 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+        if (startsWith(info, xing, "Xing") || startsWith(info, xing, "Info")) {
+            if ((info.getInt(xing + 4) & 1) != 0) frames = info.getInt(xing + 8) & 0xffffffffL;
+        } else if (startsWith(info, 36, "VBRI")) {
+            frames = info.getInt(36 + 14) & 0xffffffffL;
+        }
+        if (frames > 0) {
+            tags.durationMs = frames * samplesPerFrame * 1000 / sampleRate;
+        } else if (bitrate > 0) {
+            // kbit/s is bits per millisecond
+            tags.durationMs = (size - start - sync) * 8 / bitrate;
+        }
+    }
+
+    // --- FLAC ---
+
+    private void readFlac(long firstBlock) throws IOException {
+        // Walk the block headers first so the whole metadata region is mapped once
+        long pos = firstBlock;
+        boolean last = false;
+        while (!last && pos + 4 <= size) {
+            ByteBuffer header = probe(pos, 4);
+            last = (header.get(0) & 0x80) != 0;
+            pos += 4 + uint24(header, 1);
+        }
+        ByteBuffer meta = map(firstBlock, Math.min(pos, size) - firstBlock);
+        int block = 0;
+        last = false;
+        while (!last && block + 4 <= meta.limit()) {
+            int type = meta.get(block) & 0x7f;
+            last = (meta.get(block) & 0x80) != 0;
+            int length = uint24(meta, block + 1);
+            int body = block + 4;
+            if (body + length > meta.limit()) break;
+            if (type == 0 && length >= 18) {
+                int sampleRate = ((meta.get(body + 10) & 0xff) << 12) | ((meta.get(body + 11) & 0xff) << 4)
+                        | ((meta.get(body + 12) & 0xff) >> 4);
+                long samples = ((long) (meta.get(body + 13) & 0x0f) << 32) | (meta.getInt(body + 14) & 0xffffffffL);
+                if (sampleRate > 0) tags.durationMs = samples * 1000 / sampleRate;
+            } else if (type == 4) {
+                ByteBuffer comments = slice(meta, body, length).order(ByteOrder.LITTLE_ENDIAN);
+                readVorbisComments(new BufferCursor(comments));
+            } else if (type == 6) {
+                readFlacPicture(meta, body, length, firstBlock);
+            }
+            block = body + length;
+        }
+    }
+
+    private void readFlacPicture(ByteBuffer meta, int body, int length, long base) {
+        int pictureType = meta.getInt(body);
+        if (tags.hasPicture() && pictureType != 3) return;
+        int mimeLength = meta.getInt(body + 4);
+        String mime = decode(meta, body + 8, mimeLength, StandardCharsets.US_ASCII);
+        int description = body + 8 + mimeLength;
+        int dataLength = meta.getInt(description + 4 + meta.getInt(description) + 16);
+        int data = description + 4 + meta.getInt(description) + 20;
+        if (dataLength <= 0 || data + dataLength > body + length) return;
+        tags.pictureOffset = base + data;
+        tags.pictureLength = dataLength;
+        tags.pictureMime = mime.isEmpty() ? null : mime;
+    }
+
+    // --- Vorbis comments, shared by FLAC and Ogg ---
+
+    private void readVorbisComments(Cursor in) {
+        in.skip(in.intLE());
+        long count = in.intLE() & 0xffffffffL;
+        for (long i = 0; i < count; i++) {
+            int length = in.intLE();
+            if (length < 0) return;
+            if (length > MAX_COMMENT) {
+                String key = in.utf8(Math.min(length, 32));
+                if (key.regionMatches(true, 0, "METADATA_BLOCK_PICTURE=", 0, 23)) tags.encodedPicture = true;
+                in.skip(length - Math.min(length, 32));
+                continue;
+            }
+            String comment = in.utf8(length);
+            int eq = comment.indexOf('=');
+            if (eq <= 0) continue;
+            String key = comment.substring(0, eq).toUpperCase(java.util.Locale.ROOT);
+            String value = clean(comment.substring(eq + 1));
+            if (value == null) continue;
+            switch (key) {
+                case "TITLE":
+                    if (tags.title == null) tags.title = value;
+                    break;
+                case "ARTIST":
+                    if (tags.artist == null) tags.artist = value;
+                    break;
+                case "ALBUM":
+                    if (tags.album == null) tags.album = value;
+                    break;
+                case "GENRE":
+                    if (tags.genre == null) tags.genre = value;
+                    break;
+                case "TRACKNUMBER":
+                    if (tags.trackNumber == 0) tags.trackNumber = leadingInt(value);
+                    break;
+                case "METADATA_BLOCK_PICTURE":
+                    tags.encodedPicture = true;
+                    break;
+            }
+        }
+    }
+
+    // --- Ogg Vorbis / Opus ---
+
+    private boolean readOgg() throws IOException {
+        ByteBuffer window = map(0, Math.min(size, MAX_REGION)).order(ByteOrder.LITTLE_ENDIAN);
+        OggPacketCursor packets = new OggPacketCursor(window);
+        String codec;
+        int sampleRate;
+        int preSkip = 0;
+        int first = packets.u8();
+        if (first == 1 && "vorbis".equals(packets.ascii(6))) {
+            codec = "vorbis";
+            packets.skip(5);
+            sampleRate = packets.intLE();
+        } else if (first == 'O' && "pusHead".equals(packets.ascii(7))) {
+            codec = "opus";
+            packets.skip(2);
+            preSkip = packets.u8() | (packets.u8() << 8);
+            // Opus granule positions always count 48 kHz samples
+            sampleRate = 48000;
+        } else {
+            return false;
+        }
+        packets.nextPacket();
+        boolean comments = "vorbis".equals(codec)
+                ? packets.u8() == 3 && "vorbis".equals(packets.ascii(6))
+                : "OpusTags".equals(packets.ascii(8));
+        if (comments) readVorbisComments(packets);
+        readOggDuration(sampleRate, preSkip);
+        return true;
+    }
+
+    private void readOggDuration(int sampleRate, int preSkip) throws IOException {
+        if (sampleRate <= 0) return;
+        long windowStart = Math.max(0, size - OGG_TAIL_WINDOW);
+        ByteBuffer tail = map(windowStart, size - windowStart).order(ByteOrder.LITTLE_ENDIAN);
+        for (int pos = tail.limit() - 27; pos >= 0; pos--) {
+            if (startsWith(tail, pos, "OggS")) {
+                long granule = tail.getLong(pos + 6) - preSkip;
+                if (granule > 0) tags.durationMs = granule * 1000 / sampleRate;
+                return;
+            }
+        }
+    }
+
+    // --- MP4 / M4A ---
+
+    private boolean readMp4() throws IOException {
+        long pos = 0;
+        while (pos + 8 <= size) {
+            ByteBuffer header = probe(pos, 16);
+            long atomSize = header.getInt(0) & 0xffffffffL;
+            int headerLength = 8;
+            if (atomSize == 1) {
+                atomSize = header.getLong(8);
+                headerLength = 16;
+            } else if (atomSize == 0) {
+                atomSize = size - pos;
+            }
+            if (atomSize < headerLength) return false;
+            if (startsWith(header, 4, "moov")) {
+                ByteBuffer moov = map(pos, atomSize);
+                readMoov(moov, pos, headerLength);
+                return true;
+            }
+            pos += atomSize;
+        }
+        return false;
+    }
+
+    private void readMoov(ByteBuffer moov, long base, int headerLength) {
+        int end = moov.limit();
+        int mvhd = findAtom(moov, headerLength, end, "mvhd");
+        if (mvhd >= 0) {
+            int content = mvhd + 8;
+            boolean wide = moov.get(content) == 1;
+            long timescale = moov.getInt(content + (wide ? 20 : 12)) & 0xffffffffL;
+            long duration = wide ? moov.getLong(content + 24) : moov.getInt(content + 16) & 0xffffffffL;
+            if (timescale > 0) tags.durationMs = duration * 1000 / timescale;
+        }
+        int udta = findAtom(moov, headerLength, end, "udta");
+        if (udta < 0) return;
+        int meta = findAtom(moov, udta + 8, udta + moov.getInt(udta), "meta");
+        if (meta < 0) return;
+        // QuickTime writes meta as a plain atom, ISO files as a full atom with four bytes of version and flags
+        int children = startsWith(moov, meta + 12, "hdlr") ? meta + 8 : meta + 12;
+        int ilst = findAtom(moov, children, meta + moov.getInt(meta), "ilst");
+        if (ilst < 0) return;
+        String albumArtist = null;
+        int ilstEnd = ilst + moov.getInt(ilst);
+        for (int item = ilst + 8; item + 8 <= ilstEnd; ) {
+            int itemSize = moov.getInt(item);
+            if (itemSize < 8 || item + itemSize > ilstEnd) break;
+            int data = findAtom(moov, item + 8, item + itemSize, "data");
+            if (data >= 0) {
+                int dataType = moov.getInt(data + 8) & 0xffffff;
+                int value = data + 16;
+                int valueLength = moov.getInt(data) - 16;
+                switch (ascii(moov, item + 4, 4)) {
+                    case "\u00a9nam":
+                        tags.title = clean(decode(moov, value, valueLength, StandardCharsets.UTF_8));
+                        break;
+                    case "\u00a9ART":
+                        tags.artist = clean(decode(moov, value, valueLength, StandardCharsets.UTF_8));
+                        break;
+                    case "aART":
+                        albumArtist = clean(decode(moov, value, valueLength, StandardCharsets.UTF_8));
+                        break;
+                    case "\u00a9alb":
+                        tags.album = clean(decode(moov, value, valueLength, StandardCharsets.UTF_8));
+                        break;
+                    case "\u00a9gen":
+                        tags.genre = clean(decode(moov, value, valueLength, StandardCharsets.UTF_8));
+                        break;
+                    case "gnre":
+                        int index = (moov.getShort(value) & 0xffff) - 1;
+                        if (tags.genre == null && index >= 0 && index < GENRES.length) tags.genre = GENRES[index];
+                        break;
+                    case "trkn":
+                        if (valueLength >= 4) tags.trackNumber = moov.getShort(value + 2) & 0xffff;
+                        break;
+                    case "covr":
+                        if (!tags.hasPicture() && valueLength > 0) {
+                            tags.pictureOffset = base + value;
+                            tags.pictureLength = valueLength;
+                            tags.pictureMime = dataType == 14 ? "image/png" : "image/jpeg";
+                        }
+                        break;
+                }
+            }
+            item += itemSize;
+        }
+        if (tags.artist == null) tags.artist = albumArtist;
+    }
+
+    private static int findAtom(ByteBuffer buf, int start, int end, String type) {
+        int pos = start;
+        while (pos + 8 <= end) {
+            int atomSize = buf.getInt(pos);
+            if (atomSize < 8 || pos + atomSize > end) return -1;
+            if (startsWith(buf, pos + 4, type)) return pos;
+            pos += atomSize;
+        }
+        return -1;
+    }
+
+    // --- Byte access ---
+
+    private ByteBuffer probe(long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.max(0, Math.min(length, size - offset)));
+        while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) > 0) {
+            // keep reading until the probe is full or the file ends
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private ByteBuffer map(long offset, long length) throws IOException {
+        long clamped = Math.min(length, size - offset);
+        if (clamped < 0 || clamped > MAX_REGION) throw new IOException("Tag region out of range: " + length);
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, clamped);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+        ByteBuffer copy = buf.duplicate();
+        copy.position(offset);
+        copy.limit(offset + length);
+        return copy.slice();
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int offset, String magic) {
+        if (offset < 0 || offset + magic.length() > buf.limit()) return false;
+        for (int i = 0; i < magic.length(); i++) {
+            if (buf.get(offset + i) != (byte) magic.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static String ascii(ByteBuffer buf, int offset, int length) {
+        return decode(buf, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String decode(ByteBuffer buf, int offset, int length, Charset charset) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buf.get(offset + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    private static String fixedLatin1(ByteBuffer buf, int offset, int length) {
+        return decode(buf, offset, terminator(buf, offset, offset + length, false) - offset,
+                StandardCharsets.ISO_8859_1);
+    }
+
+    // Index of the first terminator at or after start, or end; UTF-16 terminators are two aligned zero bytes
+    private static int terminator(ByteBuffer buf, int start, int end, boolean wide) {
+        if (wide) {
+            for (int i = start; i + 1 < end; i += 2) {
+                if (buf.get(i) == 0 && buf.get(i + 1) == 0) return i;
+            }
+            return end;
+        }
+        for (int i = start; i < end; i++) {
+            if (buf.get(i) == 0) return i;
+        }
+        return end;
+    }
+
+    private static int syncsafe(ByteBuffer buf, int offset) {
+        return ((buf.get(offset) & 0x7f) << 21) | ((buf.get(offset + 1) & 0x7f) << 14)
+                | ((buf.get(offset + 2) & 0x7f) << 7) | (buf.get(offset + 3) & 0x7f);
+    }
+
+    private static int uint24(ByteBuffer buf, int offset) {
+        return ((buf.get(offset) & 0xff) << 16) | ((buf.get(offset + 1) & 0xff) << 8) | (buf.get(offset + 2) & 0xff);
+    }
+
+    private static String clean(String value) {
+        if (value == null) return null;
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    // Parses "3" and "3/12"
+    private static int leadingInt(String value) {
+        if (value == null) return 0;
+        int result = 0;
+        for (int i = 0; i < value.length() && i < 9; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') break;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private abstract static class Cursor {
+        abstract int u8();
+        abstract void skip(long count);
+
+        int intLE() {
+            return u8() | (u8() << 8) | (u8() << 16) | (u8() << 24);
+        }
+
+        String ascii(int length) {
+            return new String(bytes(length), StandardCharsets.ISO_8859_1);
+        }
+
+        String utf8(int length) {
+            return new String(bytes(length), StandardCharsets.UTF_8);
+        }
+
+        private byte[] bytes(int length) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) u8();
+            }
+            return bytes;
+        }
+    }
+
+    private static class BufferCursor extends Cursor {
+        private final ByteBuffer buf;
+        private int pos;
+
+        BufferCursor(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        int u8() {
+            return buf.get(pos++) & 0xff;
+        }
+
+        @Override
+        void skip(long count) {
+            if (count < 0 || pos + count > buf.limit()) throw new BufferUnderflowException();
+            pos += (int) count;
+        }
+    }
+
+    // Reads packets straight out of the mapped pages, stepping over page headers, so nothing is reassembled
+    private static class OggPacketCursor extends Cursor {
+        private final ByteBuffer buf;
+        private int page;
+        private int segment;
+        private int segments;
+        private int pos;
+        private int remaining;
+        private boolean lastSegment;
+
+        OggPacketCursor(ByteBuffer buf) {
+            this.buf = buf;
+            openPage(0);
+        }
+
+        private void openPage(int offset) {
+            if (!startsWith(buf, offset, "OggS") || offset + 27 > buf.limit()) throw new BufferUnderflowException();
+            page = offset;
+            segments = buf.get(offset + 26) & 0xff;
+            segment = 0;
+            pos = offset + 27 + segments;
+        }
+
+        private void nextSegment() {
+            if (lastSegment) throw new BufferUnderflowException();
+            if (segment == segments) openPage(pos);
+            int lacing = buf.get(page + 27 + segment++) & 0xff;
+            remaining = lacing;
+            lastSegment = lacing < 255;
+        }
+
+        @Override
+        int u8() {
+            while (remaining == 0) nextSegment();
+            remaining--;
+            return buf.get(pos++) & 0xff;
+        }
+
+        @Override
+        void skip(long count) {
+            while (count > 0) {
+                if (remaining == 0) {
+                    nextSegment();
+                    continue;
+                }
+                int step = (int) Math.min(count, remaining);
+                pos += step;
+                remaining -= step;
+                count -= step;
+            }
+        }
+
+        void nextPacket() {
+            while (true) {
+                pos += remaining;
+                remaining = 0;
+                if (lastSegment) break;
+                nextSegment();
+            }
+            lastSegment = false;
+        }
+    }
+}
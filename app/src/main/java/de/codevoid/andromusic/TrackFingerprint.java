@@ -0,0 +1,72 @@
+package de.codevoid.andromusic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class TrackFingerprint {
+    static final int SAMPLE_SIZE = 64 * 1024;
+    private static final long SEED = 0x616e64726f6d7573L;
+    private static final long C1 = 0x9e3779b97f4a7c15L;
+    private static final long C2 = 0xbf58476d1ce4e5b9L;
+
+    // One sample buffer per indexing thread
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(SAMPLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    // Hashes the size plus the first and last 64 KB: survives moves and renames, changes when the audio
+    // or its tags are rewritten. Returns 0 when the file can't be read.
+    public static long compute(File file) {
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            long size = channel.size();
+            long hash = mix(SEED, size);
+            hash = hashRegion(channel, 0, Math.min(SAMPLE_SIZE, size), hash);
+            if (size > SAMPLE_SIZE) {
+                // Under 128 KB the tail sample starts where the head ends, so the two cover the file once
+                long tail = Math.max(SAMPLE_SIZE, size - SAMPLE_SIZE);
+                hash = hashRegion(channel, tail, size - tail, hash);
+            }
+            long result = finish(hash);
+            return result != 0 ? result : 1;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long hashRegion(FileChannel channel, long offset, long length, long hash) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        buffer.limit((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        while (buffer.remaining() >= 8) {
+            hash = mix(hash, buffer.getLong());
+        }
+        while (buffer.hasRemaining()) {
+            hash = mix(hash, buffer.get());
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        hash ^= value * C1;
+        return Long.rotateLeft(hash, 31) * C2;
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,477 @@
+package de.codevoid.andromusic;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+public class TrackLibrary {
+    private static final String TAG = "TrackLibrary";
+    private static final int MAGIC = 0x414d544c; // "AMTL"
+    private static final int VERSION = 2;
+    private static final int RECORD_TRACK = 0;
+    private static final int RECORD_MOVE = 1;
+    // Bounds the walk through chained moves (A moved to B, then B to C)
+    private static final int MAX_MOVE_HOPS = 8;
+    private static final int APPEND_BATCH = 100;
+
+    private static TrackLibrary instance;
+
+    public static class Track {
+        final String path;
+        final long size;
+        final long mtime;
+        final long fingerprint;
+        final String title;
+        final String artist;
+        final String album;
+        final String genre;
+        final int trackNumber;
+        final long durationMs;
+        final long pictureOffset;
+        final int pictureLength;
+        final boolean encodedPicture;
+        // Set only on a record re-linked from a vanished path; not stored with the record itself
+        final String movedFrom;
+
+        Track(String path, long size, long mtime, long fingerprint, String title, String artist, String album, String genre,
+              int trackNumber, long durationMs, long pictureOffset, int pictureLength, boolean encodedPicture,
+              String movedFrom) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.fingerprint = fingerprint;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.genre = genre;
+            this.trackNumber = trackNumber;
+            this.durationMs = durationMs;
+            this.pictureOffset = pictureOffset;
+            this.pictureLength = pictureLength;
+            this.encodedPicture = encodedPicture;
+            this.movedFrom = movedFrom;
+        }
+
+        // Files without readable tags are recorded too, so they aren't parsed again on every pass
+        static Track of(String path, long size, long mtime, long fingerprint, TagReader.Tags tags) {
+            if (tags == null) {
+                return new Track(path, size, mtime, fingerprint, null, null, null, null, 0, 0, -1, 0, false, null);
+            }
+            return new Track(path, size, mtime, fingerprint, tags.getTitle(), tags.getArtist(), tags.getAlbum(),
+                    tags.getGenre(), tags.getTrackNumber(), tags.getDurationMs(), tags.getPictureOffset(),
+                    tags.getPictureLength(), tags.hasEncodedPicture(), null);
+        }
+
+        // Same content under a new path: the tags and picture offsets still hold
+        Track relocate(String newPath, long newMtime) {
+            return new Track(newPath, size, newMtime, fingerprint, title, artist, album, genre, trackNumber,
+                    durationMs, pictureOffset, pictureLength, encodedPicture, path);
+        }
+
+        public String getPath() { return path; }
+        public long getMtime() { return mtime; }
+        public long getFingerprint() { return fingerprint; }
+        public String getTitle() { return title; }
+        public String getArtist() { return artist; }
+        public String getAlbum() { return album; }
+        public String getGenre() { return genre; }
+        public int getTrackNumber() { return trackNumber; }
+        public long getDurationMs() { return durationMs; }
+        public boolean hasTags() { return title != null || artist != null; }
+        public boolean hasPicture() { return pictureOffset >= 0; }
+        public boolean hasEncodedPicture() { return encodedPicture; }
+        public long getPictureOffset() { return pictureOffset; }
+        public int getPictureLength() { return pictureLength; }
+
+        boolean matches(long size, long mtime) {
+            return this.size == size && this.mtime == mtime;
+        }
+
+        // Seeded from the system media database and not yet parsed from the file
+        boolean isProvisional() {
+            return size < 0;
+        }
+    }
+
+    public interface Listener {
+        // Called on the main thread after a background pass added or changed records; changed holds the
+        // paths whose records changed since the previous call and may be empty
+        void onLibraryUpdated(Collection<String> changed);
+    }
+
+    private final File file;
+    private final Map<String, Track> tracks = new ConcurrentHashMap<>();
+    private final Map<Long, Track> byFingerprint = new ConcurrentHashMap<>();
+    // Old path -> new path for tracks whose file was found again elsewhere
+    private final Map<String, String> moves = new ConcurrentHashMap<>();
+    // Guarded by itself; the source of every move recorded, in order, so readers can pick up just the new ones
+    private final List<String> moveLog = new ArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Paths updated since listeners were last notified
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private Handler mainHandler;
+    private int recordCount = 0;
+    // Open until the file has been read
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    // The file is read on a background thread, so this returns at once with an empty library; listeners
+    // hear about every loaded track when it's done
+    public static synchronized TrackLibrary get(Context context) {
+        if (instance == null) {
+            TrackLibrary library = new TrackLibrary(
+                    new File(context.getApplicationContext().getFilesDir(), "track_library.bin"), false);
+            new Thread(library::loadAndPublish, TAG).start();
+            instance = library;
+        }
+        return instance;
+    }
+
+    TrackLibrary(File file) {
+        this(file, true);
+    }
+
+    private TrackLibrary(File file, boolean loadNow) {
+        this.file = file;
+        if (loadNow) load();
+    }
+
+    public boolean isLoaded() {
+        return loaded.getCount() == 0;
+    }
+
+    // Records must not be parsed or appended before the stored ones are in, or they'd be done twice
+    void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // O(1) and never touches the audio file; null until the track has been indexed
+    public Track get(String path) {
+        return tracks.get(path);
+    }
+
+    public int size() {
+        return tracks.size();
+    }
+
+    // Where a track went after its folder was moved or the file renamed; null if it wasn't seen elsewhere
+    public String movedPath(String path) {
+        String target = moves.get(path);
+        if (target == null) return null;
+        for (int hop = 1; hop < MAX_MOVE_HOPS; hop++) {
+            String next = moves.get(target);
+            if (next == null) break;
+            target = next;
+        }
+        return target.equals(path) ? null : target;
+    }
+
+    // Unchanged while no move has been recorded
+    public int moveCount() {
+        synchronized (moveLog) {
+            return moveLog.size();
+        }
+    }
+
+    // The paths moved away from since moveCount() returned count
+    public List<String> movesSince(int count) {
+        synchronized (moveLog) {
+            return new ArrayList<>(moveLog.subList(count, moveLog.size()));
+        }
+    }
+
+    public String displayName(String path) {
+        Track track = tracks.get(path);
+        if (track != null && track.title != null) {
+            return track.artist != null ? track.artist + " \u2014 " + track.title : track.title;
+        }
+        String name = DocumentScanner.fileName(path);
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    // Shows what the system media scanner knows about a track until the indexer has parsed the file.
+    // Kept in memory only; the size of -1 never matches a file, so the next refresh re-reads it, and the
+    // picture is marked as encoded so cover art comes from the platform retriever meanwhile.
+    void seed(String path, long mtime, String title, String artist, String album, long durationMs) {
+        tracks.putIfAbsent(path, new Track(path, -1, mtime, 0, title, artist, album, null, 0, durationMs, -1, 0, true,
+                null));
+    }
+
+    // Stats the file and parses it only when size or mtime differ from the stored record
+    public Track refresh(String path) {
+        Track existing = tracks.get(path);
+        Track track = update(path);
+        if (track != null && track != existing) {
+            List<Track> changed = new ArrayList<>(1);
+            changed.add(track);
+            append(changed);
+        }
+        return track;
+    }
+
+    // Posts onLibraryUpdated() to the listeners on the main thread
+    void publishUpdate() {
+        if (listeners.isEmpty()) {
+            changed.clear();
+            return;
+        }
+        mainHandler().post(this::notifyListeners);
+    }
+
+    private void notifyListeners() {
+        List<String> paths = new ArrayList<>();
+        Iterator<String> it = changed.iterator();
+        while (it.hasNext()) {
+            paths.add(it.next());
+            it.remove();
+        }
+        for (Listener listener : listeners) {
+            listener.onLibraryUpdated(paths);
+        }
+    }
+
+    // Created on first use so the store itself runs in plain JVM tests
+    private synchronized Handler mainHandler() {
+        if (mainHandler == null) mainHandler = new Handler(Looper.getMainLooper());
+        return mainHandler;
+    }
+
+    // Returns the current record, re-reading tags if needed; null when the file is gone, and for document
+    // tracks, which are never indexed.
+    // An unknown path whose content matches a track that vanished takes over that record instead of
+    // being parsed. New records stay in memory until they are passed to append().
+    Track update(String path) {
+        if (DocumentScanner.isDocument(path)) return null;
+        awaitLoaded();
+        File audio = new File(path);
+        long size = audio.length();
+        long mtime = audio.lastModified();
+        if (mtime == 0) return null;
+        Track existing = tracks.get(path);
+        if (existing != null && existing.matches(size, mtime)) return existing;
+        long fingerprint = TrackFingerprint.compute(audio);
+        Track track = existing == null || existing.isProvisional() ? relink(path, size, mtime, fingerprint) : null;
+        if (track == null) track = Track.of(path, size, mtime, fingerprint, TagReader.read(audio));
+        put(track);
+        changed.add(path);
+        return track;
+    }
+
+    private Track relink(String path, long size, long mtime, long fingerprint) {
+        if (fingerprint == 0) return null;
+        Track previous = byFingerprint.get(fingerprint);
+        if (previous == null || previous.size != size || previous.path.equals(path)) return null;
+        // A copy leaves the original in place; only a vanished original counts as a move
+        if (new File(previous.path).exists()) return null;
+        return previous.relocate(path, mtime);
+    }
+
+    private void put(Track track) {
+        tracks.put(track.path, track);
+        moves.remove(track.path);
+        if (track.fingerprint != 0) byFingerprint.put(track.fingerprint, track);
+        if (track.movedFrom != null) move(track.movedFrom, track.path);
+    }
+
+    private void move(String from, String to) {
+        Track old = tracks.remove(from);
+        if (old != null && old.fingerprint != 0) byFingerprint.remove(old.fingerprint, old);
+        moves.put(from, to);
+        synchronized (moveLog) {
+            moveLog.add(from);
+        }
+    }
+
+    private void loadAndPublish() {
+        load();
+        changed.addAll(tracks.keySet());
+        publishUpdate();
+    }
+
+    private void load() {
+        try {
+            read();
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    private void read() {
+        if (!file.exists()) return;
+        int count = 0;
+        boolean damaged = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                file.delete();
+                return;
+            }
+            while (in.available() > 0) {
+                // Later records for the same path supersede earlier ones
+                if (in.readByte() == RECORD_MOVE) {
+                    move(in.readUTF(), in.readUTF());
+                } else {
+                    put(readTrack(in));
+                }
+                count++;
+            }
+        } catch (EOFException e) {
+            // A record cut short by a crash; rewriting drops it before anything is appended behind it
+            damaged = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read track library", e);
+            damaged = true;
+        }
+        recordCount = count;
+        if (damaged || recordCount > live() * 2 + APPEND_BATCH) compact();
+    }
+
+    private int live() {
+        return tracks.size() + moves.size();
+    }
+
+    synchronized void append(List<Track> changed) {
+        boolean fresh = !file.exists() || file.length() == 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (fresh) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            for (Track track : changed) {
+                if (track.movedFrom != null) {
+                    writeMove(out, track.movedFrom, track.path);
+                    recordCount++;
+                }
+                writeTrack(out, track);
+                recordCount++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to track library", e);
+            return;
+        }
+        if (recordCount > live() * 2 + APPEND_BATCH) compact();
+    }
+
+    // Rewrites the file with one record per track and per move, replacing it atomically
+    private synchronized void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+        List<Track> live = new ArrayList<>(tracks.size());
+        for (Track track : tracks.values()) {
+            if (!track.isProvisional()) live.add(track);
+        }
+        // Chains collapse to their final target; moves to tracks that vanished again are dropped
+        Map<String, String> moved = new HashMap<>();
+        for (String from : moves.keySet()) {
+            String to = movedPath(from);
+            if (to != null && tracks.containsKey(to)) moved.put(from, to);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // Moves first, so loading them can't drop a track record that follows
+            for (Map.Entry<String, String> entry : moved.entrySet()) {
+                writeMove(out, entry.getKey(), entry.getValue());
+            }
+            for (Track track : live) {
+                writeTrack(out, track);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact track library", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace track library");
+            tmp.delete();
+            return;
+        }
+        recordCount = live.size() + moved.size();
+    }
+
+    private static Track readTrack(DataInputStream in) throws IOException {
+        String path = in.readUTF();
+        long size = in.readLong();
+        long mtime = in.readLong();
+        long fingerprint = in.readLong();
+        String title = readOptional(in);
+        String artist = readOptional(in);
+        String album = readOptional(in);
+        String genre = readOptional(in);
+        int trackNumber = in.readInt();
+        long durationMs = in.readLong();
+        long pictureOffset = in.readLong();
+        int pictureLength = in.readInt();
+        boolean encodedPicture = in.readBoolean();
+        return new Track(path, size, mtime, fingerprint, title, artist, album, genre, trackNumber, durationMs,
+                pictureOffset, pictureLength, encodedPicture, null);
+    }
+
+    private static void writeTrack(DataOutputStream out, Track track) throws IOException {
+        out.writeByte(RECORD_TRACK);
+        out.writeUTF(track.path);
+        out.writeLong(track.size);
+        out.writeLong(track.mtime);
+        out.writeLong(track.fingerprint);
+        writeOptional(out, track.title);
+        writeOptional(out, track.artist);
+        writeOptional(out, track.album);
+        writeOptional(out, track.genre);
+        out.writeInt(track.trackNumber);
+        out.writeLong(track.durationMs);
+        out.writeLong(track.pictureOffset);
+        out.writeInt(track.pictureLength);
+        out.writeBoolean(track.encodedPicture);
+    }
+
+    private static void writeMove(DataOutputStream out, String from, String to) throws IOException {
+        out.writeByte(RECORD_MOVE);
+        out.writeUTF(from);
+        out.writeUTF(to);
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+}
@@ -0,0 +1,89 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class AudioSnifferTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final AudioSniffer sniffer = new AudioSniffer();
+
+    private File write(String name, byte[]... parts) throws IOException {
+        File file = tmp.newFile(name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (byte[] part : parts) {
+                out.write(part);
+            }
+        }
+        return file;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] oggPage(String packet) {
+        byte[] page = new byte[28 + packet.length()];
+        System.arraycopy(ascii("OggS"), 0, page, 0, 4);
+        page[26] = 1;
+        page[27] = (byte) packet.length();
+        System.arraycopy(ascii(packet), 0, page, 28, packet.length());
+        return page;
+    }
+
+    // MPEG-1 Layer III, 128 kbit/s, 44.1 kHz
+    private static final byte[] MPEG_FRAME = {(byte) 0xff, (byte) 0xfb, (byte) 0x90, 0x64};
+
+    @Test
+    public void sniff_classifiesContainers() throws IOException {
+        assertEquals(AudioSniffer.Format.MP3, sniffer.sniff(write("a.mp3", MPEG_FRAME, new byte[60])));
+        assertEquals(AudioSniffer.Format.FLAC, sniffer.sniff(write("b.flac", ascii("fLaC"), new byte[60])));
+        assertEquals(AudioSniffer.Format.VORBIS, sniffer.sniff(write("c.ogg", oggPage("\u0001vorbis\0\0\0\0"))));
+        assertEquals(AudioSniffer.Format.OPUS, sniffer.sniff(write("d.opus", oggPage("OpusHead\u0001\u0002"))));
+        assertEquals(AudioSniffer.Format.MP4, sniffer.sniff(write("e.m4a", new byte[]{0, 0, 0, 0x20}, ascii("ftypM4A "))));
+        assertEquals(AudioSniffer.Format.WAV, sniffer.sniff(write("f.wav", ascii("RIFF$\0\0\0WAVEfmt "))));
+    }
+
+    @Test
+    public void sniff_skipsId3TagAndPadding() throws IOException {
+        // Tag declares 20 bytes, followed by 8 bytes of padding the tag did not account for
+        byte[] header = {'I', 'D', '3', 4, 0, 0, 0, 0, 0, 20};
+        assertEquals(AudioSniffer.Format.MP3, sniffer.sniff(write("tagged.mp3", header, new byte[28], MPEG_FRAME)));
+        assertEquals(AudioSniffer.Format.FLAC, sniffer.sniff(write("tagged.flac", header, new byte[20], ascii("fLaC"))));
+        assertEquals(AudioSniffer.Format.UNKNOWN, sniffer.sniff(write("truncated.mp3", header, new byte[4])));
+    }
+
+    @Test
+    public void sniff_rejectsMislabelledAndEmptyFiles() throws IOException {
+        assertEquals(AudioSniffer.Format.UNKNOWN, sniffer.sniff(write("empty.mp3")));
+        assertEquals(AudioSniffer.Format.UNKNOWN, sniffer.sniff(write("page.mp3", ascii("<!DOCTYPE html><html>"))));
+        assertEquals(AudioSniffer.Format.UNKNOWN, sniffer.sniff(write("video.ogg", oggPage("\u0080theora\0\0"))));
+        assertEquals(AudioSniffer.Format.UNKNOWN, sniffer.sniff(new File(tmp.getRoot(), "missing.mp3")));
+    }
+
+    @Test
+    public void scan_sniffingDropsUnplayableTracks() throws IOException {
+        File album = tmp.newFolder("music", "album");
+        write("music/album/good.mp3", MPEG_FRAME, new byte[60]);
+        write("music/album/renamed.mp3", ascii("fLaC"), new byte[60]);
+        write("music/album/broken.flac", new byte[64]);
+        write("music/album/song.opus", oggPage("OpusHead\u0001\u0002"));
+        String root = album.getParent();
+
+        assertEquals(4, MusicScanner.scan(root).size());
+        ScanRules sniffing = new ScanRules(false, false, Collections.<String>emptyList(), 0, true);
+        assertEquals(3, MusicScanner.scan(root, 1, null, sniffing).size());
+        assertEquals(3, MusicScanner.scan(root, 4, null, sniffing).size());
+    }
+}
@@ -0,0 +1,146 @@
+package de.codevoid.andromusic;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class DocumentScannerTest {
+
+    private static final String AUTHORITY = "de.codevoid.andromusic.test.documents";
+
+    private FakeDocumentsProvider provider;
+    private Uri tree;
+
+    // Stands in for a document provider whose ids are opaque, like a USB drive or a cloud service
+    public static class FakeDocumentsProvider extends ContentProvider {
+        final Map<String, List<String[]>> children = new HashMap<>();
+        final List<String[]> projections = new ArrayList<>();
+
+        void add(String parent, String id, String mimeType, String name) {
+            List<String[]> rows = children.get(parent);
+            if (rows == null) {
+                rows = new ArrayList<>();
+                children.put(parent, rows);
+            }
+            rows.add(new String[]{id, mimeType, name});
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            projections.add(projection);
+            MatrixCursor cursor = new MatrixCursor(projection);
+            List<String[]> rows = children.get(DocumentsContract.getDocumentId(uri));
+            if (rows != null) {
+                for (String[] row : rows) {
+                    cursor.addRow(row);
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return 0;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.buildContentProvider(FakeDocumentsProvider.class).create(AUTHORITY).get();
+        tree = DocumentsContract.buildTreeDocumentUri(AUTHORITY, "root");
+    }
+
+    private String track(String documentId) {
+        return DocumentsContract.buildDocumentUriUsingTree(tree, documentId).toString();
+    }
+
+    @Test
+    public void scan_walksFoldersOneQueryEachAndFiltersByMimeType() {
+        provider.add("root", "d1", Document.MIME_TYPE_DIR, "Album");
+        provider.add("root", "d2", Document.MIME_TYPE_DIR, ".hidden");
+        provider.add("root", "d3", Document.MIME_TYPE_DIR, "Skipped");
+        provider.add("root", "f1", "audio/mpeg", "intro.mp3");
+        provider.add("root", "f2", "image/jpeg", "cover.jpg");
+        provider.add("root", "f3", "audio/x-mpegurl", "list.m3u");
+        provider.add("d1", "f4", "audio/flac", "01.flac");
+        provider.add("d1", "f5", "application/octet-stream", "02.ogg");
+        provider.add("d1", "f6", "application/octet-stream", "notes.txt");
+        provider.add("d2", "f7", "audio/mpeg", "secret.mp3");
+        provider.add("d3", "f8", "audio/mpeg", "hidden.mp3");
+        provider.add("d3", "f9", "application/octet-stream", ".nomedia");
+
+        List<String> directories = new ArrayList<>();
+        List<String> tracks = DocumentScanner.scan(RuntimeEnvironment.getApplication().getContentResolver(), tree,
+                ScanRules.DEFAULT, new MusicScanner.Visitor() {
+                    @Override
+                    public boolean onDirectory(File dir) {
+                        directories.add(dir.getPath());
+                        return true;
+                    }
+
+                    @Override
+                    public void onTrack(String path) {
+                    }
+                });
+
+        assertEquals(new HashSet<>(Arrays.asList(track("f1"), track("f4"), track("f5"))), new HashSet<>(tracks));
+        assertEquals(new HashSet<>(Arrays.asList("", "Album", "Skipped")), new HashSet<>(directories));
+        assertEquals(3, provider.projections.size());
+        assertArrayEquals(DocumentScanner.PROJECTION, provider.projections.get(0));
+    }
+
+    @Test
+    public void fileName_usesLastPartOfDocumentId() {
+        Uri music = DocumentsContract.buildTreeDocumentUri("com.android.externalstorage.documents", "1A2B-3C4D:Music");
+        String song = DocumentsContract.buildDocumentUriUsingTree(music, "1A2B-3C4D:Music/Rock/Song.mp3").toString();
+        assertEquals("Song.mp3", DocumentScanner.fileName(song));
+        assertEquals("Song", new TrackLibrary(new File(RuntimeEnvironment.getApplication().getFilesDir(),
+                "library.bin")).displayName(song));
+        assertEquals("Song.mp3", DocumentScanner.fileName("/storage/emulated/0/Music/Song.mp3"));
+    }
+}
@@ -0,0 +1,115 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class LibraryIndexerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private List<String> writeTracks(int count) throws IOException {
+        File dir = tmp.newFolder("music");
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] comment = ("TITLE=Track " + i).getBytes(StandardCharsets.UTF_8);
+            File file = new File(dir, String.format("%04d.flac", i));
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write("fLaC".getBytes(StandardCharsets.US_ASCII));
+                out.write(new byte[]{(byte) 0x84, 0, 0, (byte) (12 + comment.length)});
+                out.write(new byte[]{0, 0, 0, 0, 1, 0, 0, 0, (byte) comment.length, 0, 0, 0});
+                out.write(comment);
+            }
+            paths.add(file.getPath());
+        }
+        return paths;
+    }
+
+    private File queueDir() {
+        return new File(tmp.getRoot(), "queue");
+    }
+
+    @Test
+    public void enqueue_indexesEveryPathAndClearsTheJob() throws Exception {
+        List<String> paths = writeTracks(300);
+        TrackLibrary library = new TrackLibrary(new File(tmp.getRoot(), "library.bin"));
+        LibraryIndexer indexer = new LibraryIndexer(library, queueDir(), 3);
+        indexer.enqueue(paths.subList(0, 150));
+        indexer.enqueue(paths.subList(150, 300));
+        indexer.awaitIdle();
+
+        assertEquals(300, library.size());
+        assertEquals("Track 299", library.get(paths.get(299)).getTitle());
+        assertEquals(0, queueDir().list().length);
+        assertEquals(300, new TrackLibrary(new File(tmp.getRoot(), "library.bin")).size());
+    }
+
+    @Test
+    public void enqueue_skipsDocumentTracks() throws Exception {
+        List<String> paths = writeTracks(2);
+        paths.add("content://com.android.externalstorage.documents/tree/1234-5678%3A/document/1234-5678%3Aa.mp3");
+        TrackLibrary library = new TrackLibrary(new File(tmp.getRoot(), "library.bin"));
+        LibraryIndexer indexer = new LibraryIndexer(library, queueDir(), 1);
+        indexer.enqueue(paths.subList(2, 3));
+        // Nothing left to index, so not even a job file
+        assertNull(queueDir().list());
+        indexer.enqueue(paths);
+        indexer.awaitIdle();
+
+        assertEquals(2, library.size());
+        assertNull(library.get(paths.get(2)));
+    }
+
+    @Test
+    public void resumePending_continuesFromSavedCursor() throws Exception {
+        List<String> paths = writeTracks(200);
+        File queue = queueDir();
+        queue.mkdirs();
+        // A job a killed process had finished two batches of
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(queue, "job7.bin")))) {
+            out.writeInt(0x414d4951);
+            out.writeInt(128);
+            out.writeInt(paths.size());
+            for (String path : paths) {
+                out.writeUTF(path);
+            }
+        }
+        TrackLibrary library = new TrackLibrary(new File(tmp.getRoot(), "library.bin"));
+        LibraryIndexer indexer = new LibraryIndexer(library, queue, 2);
+        indexer.resumePending();
+        indexer.awaitIdle();
+
+        assertEquals(72, library.size());
+        assertNull(library.get(paths.get(127)));
+        assertNotNull(library.get(paths.get(128)));
+        assertEquals(0, queue.list().length);
+    }
+
+    @Test
+    public void pauseForPlayback_holdsWorkersUntilResumed() throws Exception {
+        List<String> paths = writeTracks(100);
+        TrackLibrary library = new TrackLibrary(new File(tmp.getRoot(), "library.bin"));
+        LibraryIndexer indexer = new LibraryIndexer(library, queueDir(), 2);
+        indexer.pauseForPlayback();
+        indexer.enqueue(paths);
+        Thread.sleep(300);
+        assertEquals(0, library.size());
+
+        indexer.resumeAfterPlayback();
+        indexer.awaitIdle();
+        assertEquals(100, library.size());
+    }
+}
@@ -0,0 +1,57 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LibraryModelTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void build_groupsTracksByArtistAndAlbum() {
+        TrackLibrary library = new TrackLibrary(new File(tmp.getRoot(), "library.bin"));
+        library.seed("/m/1.mp3", 0, "Teardrop", "Massive Attack", "Mezzanine", 0);
+        library.seed("/m/2.mp3", 0, "Hymn", "Moby", "Play", 0);
+        library.seed("/m/3.mp3", 0, "Angel", "Massive Attack", "Mezzanine", 0);
+        library.seed("/m/4.mp3", 0, "Intro", "Moby", "Greatest Hits", 0);
+        library.seed("/m/5.mp3", 0, "Safe", "Massive Attack", "Greatest Hits", 0);
+        List<String> paths = Arrays.asList("/m/1.mp3", "/m/2.mp3", "/m/3.mp3", "/m/4.mp3", "/m/5.mp3", "/m/6.mp3");
+
+        LibraryModel model = LibraryModel.build(paths, library);
+
+        assertEquals(6, model.trackCount());
+        // Pools are sorted, with the empty name first
+        assertEquals(3, model.artistCount());
+        assertEquals("Massive Attack", model.artistName(1));
+        assertEquals("Moby", model.artistName(2));
+        int massive = model.artistId("Massive Attack");
+        assertArrayEquals(new int[]{0, 2, 4}, model.tracksOfArtist(massive));
+        assertArrayEquals(new int[]{5}, model.tracksOfArtist(LibraryModel.UNKNOWN));
+        assertEquals(-1, model.artistId("Portishead"));
+
+        // The same album name under two artists is two albums
+        assertEquals(5, model.albumCount());
+        int[] albums = model.albumsOfArtist(massive);
+        assertEquals(2, albums.length);
+        assertEquals("Greatest Hits", model.albumName(albums[0]));
+        assertEquals("Mezzanine", model.albumName(albums[1]));
+        assertArrayEquals(new int[]{0, 2}, model.tracksOfAlbum(albums[1]));
+        assertEquals(massive, model.albumArtist(albums[1]));
+        assertEquals(model.albumOf(4), albums[0]);
+        assertEquals(1, model.trackCountOfAlbum(albums[0]));
+
+        // Nothing seeded has a genre
+        assertEquals(1, model.genreCount());
+        assertEquals(6, model.tracksOfGenre(LibraryModel.UNKNOWN).length);
+        assertEquals("/m/3.mp3", model.path(2));
+    }
+}
@@ -0,0 +1,183 @@
+package de.codevoid.andromusic;
+
+import android.app.Application;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class LibraryReindexServiceTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ServiceController<MusicService> musicServiceController;
+
+    @After
+    public void tearDown() {
+        if (musicServiceController != null) musicServiceController.destroy();
+        PreferencesManager prefs = new PreferencesManager(RuntimeEnvironment.getApplication());
+        prefs.saveLibraryRoots(Collections.<String>emptyList());
+        prefs.saveReindexPending(null);
+        prefs.savePlaylist(Collections.<String>emptyList());
+        prefs.saveShuffleOrder(0, 0);
+        prefs.saveTrackIndex(0);
+        prefs.savePosition(0);
+    }
+
+    private String root(String name, String... tracks) throws IOException {
+        File root = tmp.newFolder(name);
+        for (String track : tracks) {
+            File file = new File(root, track);
+            file.getParentFile().mkdirs();
+            file.createNewFile();
+        }
+        return root.getPath();
+    }
+
+    private static LibraryReindexService startService() {
+        return Robolectric.buildService(LibraryReindexService.class).create().get();
+    }
+
+    // Scans run on ScanJob's threads and report back through the main looper
+    private static void runUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+    }
+
+    @Test
+    public void schedule_registersOneIdleChargingJob() {
+        Application context = RuntimeEnvironment.getApplication();
+        LibraryReindexService.schedule(context);
+        LibraryReindexService.schedule(context);
+
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        assertEquals(1, scheduler.getAllPendingJobs().size());
+        JobInfo job = scheduler.getAllPendingJobs().get(0);
+        assertTrue(job.isRequireCharging());
+        assertTrue(job.isRequireDeviceIdle());
+        assertTrue(job.isPeriodic());
+        assertTrue(job.isPersisted());
+    }
+
+    @Test
+    public void reindexCheckpoint_roundTripsAndClears() {
+        PreferencesManager prefs = new PreferencesManager(RuntimeEnvironment.getApplication());
+        assertNull(prefs.loadReindexPending());
+        prefs.saveReindexPending(Arrays.asList("/music/a", "/music/b"));
+        assertEquals(Arrays.asList("/music/a", "/music/b"), prefs.loadReindexPending());
+        prefs.saveReindexPending(null);
+        assertNull(prefs.loadReindexPending());
+    }
+
+    @Test
+    public void onStartJob_skipsThePassWhileARootIsMissing() throws IOException {
+        PreferencesManager prefs = new PreferencesManager(RuntimeEnvironment.getApplication());
+        String present = root("present", "a.mp3");
+        prefs.saveLibraryRoots(Arrays.asList(present, new File(tmp.getRoot(), "unmounted").getPath()));
+
+        assertFalse(startService().onStartJob(null));
+        // No checkpoint, so the next window starts a full pass
+        assertNull(prefs.loadReindexPending());
+    }
+
+    @Test
+    public void onStartJob_resumesFromTheCheckpointAndSavesThePlaylist() throws Exception {
+        Application context = RuntimeEnvironment.getApplication();
+        PreferencesManager prefs = new PreferencesManager(context);
+        String done = root("done", "1.mp3");
+        String next = root("next", "1.mp3", "2.mp3");
+        prefs.saveLibraryRoots(Arrays.asList(done, next));
+        // The interrupted pass had finished the first root; its run is what that scan found
+        LibraryRoots libraryRoots = new LibraryRoots(new File(context.getFilesDir(), "library_roots"));
+        libraryRoots.saveRun(done, prefs.loadScanRules(), Collections.singletonList(done + "/old.mp3"));
+        prefs.saveReindexPending(Collections.singletonList(next));
+        prefs.savePlaylist(Arrays.asList(done + "/old.mp3", next + "/2.mp3"));
+        prefs.saveShuffleOrder(0, 0);
+        prefs.saveTrackIndex(1);
+
+        LibraryReindexService service = startService();
+        assertTrue(service.onStartJob(null));
+        runUntil(() -> prefs.loadReindexPending() == null);
+
+        // Only the pending root was walked again
+        assertEquals(Arrays.asList(done + "/old.mp3", next + "/1.mp3", next + "/2.mp3"), prefs.loadPlaylist());
+        assertEquals(2, prefs.loadTrackIndex());
+        runUntil(() -> shadowOf(service).getIsJobFinished());
+        assertFalse(shadowOf(service).getIsRescheduleNeeded());
+    }
+
+    @Test
+    public void publish_appliesTheScanToTheRunningService() throws Exception {
+        Application context = RuntimeEnvironment.getApplication();
+        PreferencesManager prefs = new PreferencesManager(context);
+        String music = root("music", "a/1.mp3", "b/1.mp3");
+        prefs.saveLibraryRoots(Collections.singletonList(music));
+        prefs.savePlaylist(Collections.singletonList(music + "/b/1.mp3"));
+        prefs.saveShuffleOrder(0, 0);
+        prefs.saveTrackIndex(0);
+        musicServiceController = Robolectric.buildService(MusicService.class);
+        MusicService player = musicServiceController.create().get();
+
+        LibraryReindexService service = startService();
+        assertTrue(service.onStartJob(null));
+        runUntil(() -> player.getPlaylist().size() == 2);
+
+        // Merged in place, so the current track stays selected
+        assertEquals(Arrays.asList(music + "/a/1.mp3", music + "/b/1.mp3"), player.getPlaylist());
+        assertEquals(1, player.getCurrentIndex());
+        assertEquals(player.getPlaylist(), new ArrayList<>(prefs.loadPlaylist()));
+    }
+
+    @Test
+    public void onStopJob_cancelsTheScanAndKeepsTheCheckpoint() throws Exception {
+        PreferencesManager prefs = new PreferencesManager(RuntimeEnvironment.getApplication());
+        String first = root("first", "1.mp3");
+        String second = root("second", "1.mp3");
+        prefs.saveLibraryRoots(Arrays.asList(first, second));
+
+        LibraryReindexService stopped = startService();
+        assertTrue(stopped.onStartJob(null));
+        // Asks to be retried; nothing the cancelled scan found is delivered
+        assertTrue(stopped.onStopJob(null));
+        assertEquals(Arrays.asList(first, second), prefs.loadReindexPending());
+
+        // The next window finishes the pass; scans run one after another, so the cancelled one is over by then
+        LibraryReindexService retried = startService();
+        assertTrue(retried.onStartJob(null));
+        runUntil(() -> prefs.loadReindexPending() == null);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertFalse(shadowOf(stopped).getIsJobFinished());
+        assertEquals(Arrays.asList(first + "/1.mp3", second + "/1.mp3"), prefs.loadPlaylist());
+    }
+}
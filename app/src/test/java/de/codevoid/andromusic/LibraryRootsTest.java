@@ -0,0 +1,79 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LibraryRootsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void loadRun_returnsSavedRunForSameRootAndRules() {
+        LibraryRoots roots = new LibraryRoots(new File(tmp.getRoot(), "roots"));
+        List<String> run = Arrays.asList("/sd/Music/a.mp3", "/sd/Music/b.mp3");
+        roots.saveRun("/sd/Music", ScanRules.DEFAULT, run);
+
+        assertEquals(run, roots.loadRun("/sd/Music", ScanRules.DEFAULT));
+        assertNull(roots.loadRun("/sd/Music", ScanRules.NONE));
+        assertNull(roots.loadRun("/sd/Other", ScanRules.DEFAULT));
+
+        roots.forget("/sd/Music");
+        assertNull(roots.loadRun("/sd/Music", ScanRules.DEFAULT));
+    }
+
+    @Test
+    public void saveRun_removesTheLegacyManifestOnce() throws Exception {
+        File legacy = tmp.newFile("scan_manifest.bin");
+        LibraryRoots roots = new LibraryRoots(new File(tmp.getRoot(), "roots"));
+        roots.saveRun("/sd/Music", ScanRules.DEFAULT, Collections.singletonList("/sd/Music/a.mp3"));
+        assertFalse(legacy.exists());
+
+        // Only when the roots directory is first created
+        assertTrue(legacy.createNewFile());
+        roots.saveRun("/sd/Music", ScanRules.DEFAULT, Collections.singletonList("/sd/Music/b.mp3"));
+        assertTrue(legacy.exists());
+    }
+
+    @Test
+    public void updateRun_foldsWatchedChangesIntoTheSavedRun() {
+        LibraryRoots roots = new LibraryRoots(new File(tmp.getRoot(), "roots"));
+        roots.saveRun("/sd/Music", ScanRules.DEFAULT, Arrays.asList(
+                "/sd/Music/a/1.mp3", "/sd/Music/a/2.mp3", "/sd/Music/b/1.mp3", "/sd/Music/c.mp3"));
+
+        roots.updateRun("/sd/Music", ScanRules.DEFAULT, Arrays.asList("/sd/Music/a/10.mp3", "/sd/Music/a/1.mp3"),
+                Collections.singletonList("/sd/Music/c.mp3"), Collections.singletonList("/sd/Music/b"));
+
+        // New tracks are merged into place and a track already in the run isn't listed twice
+        assertEquals(Arrays.asList("/sd/Music/a/1.mp3", "/sd/Music/a/2.mp3", "/sd/Music/a/10.mp3"),
+                roots.loadRun("/sd/Music", ScanRules.DEFAULT));
+        // Nothing is saved for a root that has no run yet
+        roots.updateRun("/sd/Other", ScanRules.DEFAULT, Collections.singletonList("/sd/Other/x.mp3"),
+                Collections.<String>emptyList(), Collections.<String>emptyList());
+        assertNull(roots.loadRun("/sd/Other", ScanRules.DEFAULT));
+    }
+
+    @Test
+    public void withRoot_keepsRootsDisjoint() {
+        List<String> roots = Arrays.asList("/storage/emulated/0/Music", "/storage/1234-5678/Albums");
+        assertNull(LibraryRoots.withRoot(roots, "/storage/emulated/0/Music/Rock"));
+        assertNull(LibraryRoots.withRoot(roots, "/storage/emulated/0/Music"));
+        assertEquals(Arrays.asList("/storage/1234-5678/Albums", "/storage/emulated/0"),
+                LibraryRoots.withRoot(roots, "/storage/emulated/0"));
+        // A sibling that merely shares a prefix is a separate root
+        assertEquals(Arrays.asList("/storage/emulated/0/Music", "/storage/1234-5678/Albums",
+                "/storage/emulated/0/Musicals"), LibraryRoots.withRoot(roots, "/storage/emulated/0/Musicals"));
+        assertEquals(Collections.singletonList("/sd"), LibraryRoots.withRoot(Collections.<String>emptyList(), "/sd"));
+    }
+}
@@ -0,0 +1,141 @@
+package de.codevoid.andromusic;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.provider.MediaStore;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class MediaStoreScannerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeMediaProvider provider;
+    private ContentResolver resolver;
+
+    // Stands in for the system media provider: serves its rows in _id order and honours the keyset
+    // argument and the page limit, but leaves the path matching to the scanner
+    public static class FakeMediaProvider extends ContentProvider {
+        final List<Object[]> rows = new ArrayList<>();
+        final List<String[]> projections = new ArrayList<>();
+
+        void add(String path, String title, String artist) {
+            rows.add(new Object[]{(long) rows.size() + 1, path, title, artist, "Album", 180000L, 1700000000L});
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, Bundle queryArgs, CancellationSignal signal) {
+            projections.add(projection);
+            String[] args = queryArgs.getStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS);
+            long after = Long.parseLong(args[args.length - 1]);
+            int limit = queryArgs.getInt(ContentResolver.QUERY_ARG_LIMIT, Integer.MAX_VALUE);
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (Object[] row : rows) {
+                if ((long) row[0] > after && cursor.getCount() < limit) cursor.addRow(row);
+            }
+            return cursor;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return 0;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.buildContentProvider(FakeMediaProvider.class).create(MediaStore.AUTHORITY).get();
+        resolver = RuntimeEnvironment.getApplication().getContentResolver();
+    }
+
+    @Test
+    public void scan_pagesThroughRowsBelowTheRoot() {
+        int count = MediaStoreScanner.PAGE_SIZE * 2 + 10;
+        for (int i = count; i > 0; i--) {
+            provider.add("/music/Album/Track " + i + ".mp3", "Track " + i, "Artist");
+        }
+        provider.add("/music2/elsewhere.mp3", "Elsewhere", "Artist");
+        provider.add("/MUSIC/shouted.mp3", "Shouted", "Artist");
+        provider.add("/music/.hidden/secret.mp3", "Secret", "Artist");
+        provider.add("/music/cover.jpg", null, null);
+
+        List<String> tracks = MediaStoreScanner.scan(resolver, Collections.singletonList("/music"),
+                ScanRules.DEFAULT, null, null);
+
+        assertEquals(count, tracks.size());
+        assertEquals("/music/Album/Track 1.mp3", tracks.get(0));
+        assertEquals("/music/Album/Track " + count + ".mp3", tracks.get(count - 1));
+        assertEquals(3, provider.projections.size());
+        assertArrayEquals(MediaStoreScanner.PROJECTION, provider.projections.get(0));
+    }
+
+    @Test
+    public void scan_mergesRootsAndSeedsLibraryUntilIndexed() {
+        provider.add("/b/Second.mp3", "Second", "Band");
+        provider.add("/a/First.mp3", "First", "Band");
+        provider.add("/c/03.mp3", "Third", "Band");
+        TrackLibrary library = new TrackLibrary(new File(tmp.getRoot(), "library.bin"));
+
+        List<String> tracks = MediaStoreScanner.scan(resolver, Arrays.asList("/b", "/a"), ScanRules.DEFAULT,
+                library, null);
+
+        assertEquals(Arrays.asList("/a/First.mp3", "/b/Second.mp3"), tracks);
+        assertEquals("Band — First", library.displayName("/a/First.mp3"));
+        assertEquals(180000, library.get("/a/First.mp3").getDurationMs());
+        assertTrue(library.get("/a/First.mp3").isProvisional());
+        // Outside the roots, so never seeded
+        assertEquals("03", library.displayName("/c/03.mp3"));
+    }
+}
@@ -0,0 +1,236 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MusicScannerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File buildTree(int dirs, int filesPerDir) throws IOException {
+        File root = tmp.newFolder("music");
+        for (int d = 0; d < dirs; d++) {
+            File dir = new File(root, "artist" + (d % 7) + "/album" + d);
+            assertTrue(dir.mkdirs());
+            for (int f = 0; f < filesPerDir; f++) {
+                String ext = f % 3 == 0 ? ".mp3" : f % 3 == 1 ? ".FLAC" : ".ogg";
+                assertTrue(new File(dir, "track" + f + ext).createNewFile());
+            }
+            assertTrue(new File(dir, "cover.jpg").createNewFile());
+        }
+        return root;
+    }
+
+    @Test
+    public void scan_parallelMatchesSequential() throws IOException {
+        File root = buildTree(40, 12);
+
+        List<String> sequential = MusicScanner.scan(root.getPath());
+        List<String> parallel = MusicScanner.scan(root.getPath(), 4);
+
+        assertEquals(40 * 12, sequential.size());
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void scan_missingDirectoryReturnsEmpty() {
+        File missing = new File(tmp.getRoot(), "missing");
+        assertTrue(MusicScanner.scan(missing.getPath()).isEmpty());
+        assertTrue(MusicScanner.scan(missing.getPath(), 4).isEmpty());
+    }
+
+    @Test
+    public void scan_withManifestPicksUpChangedDirectories() throws IOException {
+        File root = buildTree(10, 4);
+        File manifestFile = new File(tmp.getRoot(), "manifest.bin");
+
+        ScanManifest manifest = new ScanManifest(manifestFile);
+        manifest.load(root.getPath(), ScanRules.NONE);
+        List<String> first = MusicScanner.scan(root.getPath(), 1, manifest);
+        manifest.save();
+        assertEquals(MusicScanner.scan(root.getPath()), first);
+
+        File album = new File(root, "artist0/album0");
+        assertTrue(new File(album, "new.mp3").createNewFile());
+        assertTrue(new File(album, "track0.mp3").delete());
+        // Make sure the change is visible even on coarse mtime filesystems
+        assertTrue(album.setLastModified(album.lastModified() + 10000));
+
+        ScanManifest reloaded = new ScanManifest(manifestFile);
+        reloaded.load(root.getPath(), ScanRules.NONE);
+        List<String> second = MusicScanner.scan(root.getPath(), 1, reloaded);
+        assertEquals(MusicScanner.scan(root.getPath()), second);
+    }
+
+    @Test
+    public void scan_withManifestSkipsUnchangedDirectories() throws IOException {
+        File root = buildTree(3, 2);
+        File manifestFile = new File(tmp.getRoot(), "manifest.bin");
+        ScanManifest manifest = new ScanManifest(manifestFile);
+        manifest.load(root.getPath(), ScanRules.NONE);
+        MusicScanner.scan(root.getPath(), 1, manifest);
+        manifest.save();
+
+        // Add a file but restore the directory mtime: the cached listing must be used
+        File album = new File(root, "artist1/album1");
+        long mtime = album.lastModified();
+        assertTrue(new File(album, "untracked.mp3").createNewFile());
+        assertTrue(album.setLastModified(mtime));
+
+        ScanManifest reloaded = new ScanManifest(manifestFile);
+        reloaded.load(root.getPath(), ScanRules.NONE);
+        List<String> cached = MusicScanner.scan(root.getPath(), 4, reloaded);
+        assertEquals(6, cached.size());
+        assertEquals(7, MusicScanner.scan(root.getPath()).size());
+    }
+
+    @Test
+    public void scanOrdered_streamsInScanOrder() throws IOException {
+        File root = buildTree(20, 3);
+        // Names where per-directory name order differs from full path order
+        String[] extra = {"b.mp3", "b/x.mp3", "b c/y.mp3", "b-c.mp3", "a b/z.ogg", "a/z.ogg", "a.mp3"};
+        for (String name : extra) {
+            File file = new File(root, name);
+            file.getParentFile().mkdirs();
+            assertTrue(file.createNewFile());
+        }
+        List<String> expected = MusicScanner.scan(root.getPath());
+
+        for (int parallelism : new int[]{1, 4}) {
+            List<String> streamed = new ArrayList<>();
+            MusicScanner.scanOrdered(root.getPath(), parallelism, null, ScanRules.NONE, new MusicScanner.Visitor() {
+                @Override
+                public boolean onDirectory(File dir) {
+                    return true;
+                }
+
+                @Override
+                public void onTrack(String path) {
+                    streamed.add(path);
+                }
+            });
+            assertEquals(expected, streamed);
+        }
+    }
+
+    @Test
+    public void scan_rulesPruneDirectories() throws IOException {
+        File root = buildTree(3, 2);
+        assertTrue(new File(root, "artist1/album1/.nomedia").createNewFile());
+        File hidden = new File(root, ".thumbnails");
+        assertTrue(hidden.mkdirs());
+        assertTrue(new File(hidden, "preview.mp3").createNewFile());
+        File podcasts = new File(root, "artist2/Podcasts");
+        assertTrue(podcasts.mkdirs());
+        assertTrue(new File(podcasts, "episode.mp3").createNewFile());
+        File deep = new File(root, "artist0/album0/disc1");
+        assertTrue(deep.mkdirs());
+        assertTrue(new File(deep, "bonus.mp3").createNewFile());
+
+        assertEquals(9, MusicScanner.scan(root.getPath()).size());
+        assertEquals(6, MusicScanner.scan(root.getPath(), 1, null, ScanRules.DEFAULT).size());
+
+        List<String> globs = new ArrayList<>();
+        globs.add("podcasts");
+        globs.add("artist0/**/disc*");
+        ScanRules rules = new ScanRules(true, true, globs, 0);
+        for (int parallelism : new int[]{1, 4}) {
+            List<String> tracks = MusicScanner.scan(root.getPath(), parallelism, null, rules);
+            assertEquals(4, tracks.size());
+            for (String track : tracks) {
+                assertTrue(track, !track.contains("album1") && !track.contains("Podcasts"));
+            }
+        }
+        // Only the hidden folder's track sits within one level of the root
+        assertEquals(1, MusicScanner.scan(root.getPath(), 1, null, new ScanRules(false, false, globs, 1)).size());
+        assertEquals(7, MusicScanner.scan(root.getPath(), 1, null, new ScanRules(false, false, globs, 2)).size());
+    }
+
+    @Test
+    public void scan_manifestIgnoredWhenRulesChange() throws IOException {
+        File root = buildTree(3, 2);
+        File manifestFile = new File(tmp.getRoot(), "manifest.bin");
+        ScanManifest manifest = new ScanManifest(manifestFile);
+        manifest.load(root.getPath(), ScanRules.NONE);
+        MusicScanner.scan(root.getPath(), 1, manifest, ScanRules.NONE);
+        manifest.save();
+
+        ScanManifest reloaded = new ScanManifest(manifestFile);
+        reloaded.load(root.getPath(), ScanRules.NONE);
+        assertTrue(reloaded.lookup(new File(root, "artist1/album1").getPath(),
+                new File(root, "artist1/album1").lastModified()) != null);
+        reloaded.load(root.getPath(), ScanRules.DEFAULT);
+        assertEquals(null, reloaded.lookup(new File(root, "artist1/album1").getPath(),
+                new File(root, "artist1/album1").lastModified()));
+    }
+
+    @Test
+    public void scan_multipleRootsMergeIntoOneSortedRun() throws IOException {
+        File internal = buildTree(12, 3);
+        File card = tmp.newFolder("card");
+        for (int d = 0; d < 5; d++) {
+            File dir = new File(card, "album" + d);
+            assertTrue(dir.mkdirs());
+            assertTrue(new File(dir, "song.mp3").createNewFile());
+        }
+        List<String> roots = new ArrayList<>();
+        roots.add(internal.getPath());
+        roots.add(card.getPath());
+
+        List<String> merged = MusicScanner.scan(roots, 2, ScanRules.NONE);
+        List<String> expected = new ArrayList<>(MusicScanner.scan(internal.getPath()));
+        expected.addAll(MusicScanner.scan(card.getPath()));
+        new NaturalOrder().sort(expected);
+        assertEquals(12 * 3 + 5, merged.size());
+        assertEquals(expected, merged);
+    }
+
+    @Test
+    public void runMerger_waitsForEveryUnfinishedRun() {
+        List<String> out = new ArrayList<>();
+        MusicScanner.RunMerger merger = new MusicScanner.RunMerger(3, new NaturalOrder(), out::add);
+        merger.add(0, "/a/1.mp3");
+        merger.add(0, "/a/3.mp3");
+        merger.add(1, "/a/2.mp3");
+        // Run 2 may still produce something smaller
+        assertTrue(out.isEmpty());
+        merger.finish(2);
+        assertEquals(2, out.size());
+        merger.add(1, "/a/2.mp3");
+        merger.finish(1);
+        merger.finish(0);
+        assertEquals(Arrays.asList("/a/1.mp3", "/a/2.mp3", "/a/3.mp3"), out);
+    }
+
+    @Test
+    public void scan_survivesSymlinkLoopsWithEitherLister() throws IOException {
+        File root = buildTree(4, 2);
+        List<String> expected = MusicScanner.scan(root.getPath());
+        Files.createSymbolicLink(new File(root, "artist1/album1/loop").toPath(), root.toPath());
+
+        // The link points back at an ancestor, so it is skipped instead of walked forever
+        for (boolean nio : new boolean[]{true, false}) {
+            assertEquals(expected, MusicScanner.scan(root.getPath(), 1, null, ScanRules.NONE, nio));
+            assertEquals(expected, MusicScanner.scan(root.getPath(), 4, null, ScanRules.NONE, nio));
+        }
+    }
+
+    @Test
+    public void scan_nioAndFileListingsAgree() throws IOException {
+        File root = buildTree(30, 5);
+        assertEquals(MusicScanner.scan(root.getPath(), 1, null, ScanRules.NONE, false),
+                MusicScanner.scan(root.getPath(), 1, null, ScanRules.NONE, true));
+    }
+}
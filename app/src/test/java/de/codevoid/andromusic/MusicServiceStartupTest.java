@@ -0,0 +1,158 @@
+package de.codevoid.andromusic;
+
+import android.app.Application;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class MusicServiceStartupTest {
+
+    private static final int TRACKS = 50000;
+
+    private ServiceController<MusicService> serviceController;
+
+    @After
+    public void tearDown() {
+        if (serviceController != null) serviceController.destroy();
+        // The playlist and state files are kept by process-wide singletons; leave them empty for other tests
+        PreferencesManager prefs = new PreferencesManager(RuntimeEnvironment.getApplication());
+        prefs.savePlaylist(Collections.<String>emptyList());
+        prefs.saveQueue(Collections.<String>emptyList());
+        prefs.saveSmartPlaylists(Collections.<SmartPlaylist>emptyList());
+        prefs.saveShuffleOrder(0, 0);
+        prefs.saveShuffleEnabled(false);
+        prefs.saveTrackIndex(0);
+        prefs.savePosition(0);
+    }
+
+    @Test
+    public void onCreate_answersFromTheSavedPlaylistBeforeItIsBuilt() {
+        Application context = RuntimeEnvironment.getApplication();
+        List<String> paths = new ArrayList<>();
+        List<TrackLibrary.Track> tracks = new ArrayList<>();
+        for (int i = 0; i < TRACKS; i++) {
+            String path = "/storage/emulated/0/Music/Artist " + (i / 200) + "/Album " + (i / 12) + "/" + i + ".mp3";
+            paths.add(path);
+            tracks.add(TrackLibrary.Track.of(path, 1, 0, 0, null));
+        }
+        // A library as large as the playlist, which the service must not read before it is in the foreground
+        new TrackLibrary(new File(context.getFilesDir(), "track_library.bin")).append(tracks);
+        PreferencesManager prefs = new PreferencesManager(context);
+        prefs.savePlaylist(paths);
+        prefs.saveShuffleOrder(0, 0);
+        prefs.saveTrackIndex(1234);
+
+        long start = System.nanoTime();
+        serviceController = Robolectric.buildService(MusicService.class);
+        MusicService service = serviceController.create().get();
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        // The bound allows for a cold JVM under Robolectric
+        assertTrue("onCreate took " + millis + " ms", millis < 2000);
+        assertNotNull(shadowOf(service).getLastForegroundNotification());
+        assertEquals(1234, service.getCurrentIndex());
+        assertEquals("1234", service.getCurrentTitle());
+        List<String> playlist = service.getPlaylist();
+        assertEquals(TRACKS, playlist.size());
+        assertEquals(paths.get(4321), playlist.get(4321));
+
+        // A change to the playlist waits for the table and then works on it
+        service.setShuffleEnabled(true);
+        assertEquals(0, service.getCurrentIndex());
+        assertEquals(paths.get(1234), service.getPlaylist().get(0));
+        service.setShuffleEnabled(false);
+        assertEquals(1234, service.getCurrentIndex());
+        assertEquals(paths, service.getPlaylist());
+        // Off by default
+        assertEquals(0, service.getDuration());
+    }
+
+    @Test
+    public void warmStart_preparesTheSavedTrackPausedSoPlayStartsAtOnce() {
+        Application context = RuntimeEnvironment.getApplication();
+        String track = "/music/warm.mp3";
+        ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(track), new ShadowMediaPlayer.MediaInfo(180000, 0));
+        PreferencesManager prefs = new PreferencesManager(context);
+        prefs.savePlaylist(Collections.singletonList(track));
+        prefs.saveShuffleOrder(0, 0);
+        prefs.saveTrackIndex(0);
+        prefs.savePosition(42000);
+        prefs.saveWarmStart(true);
+
+        serviceController = Robolectric.buildService(MusicService.class);
+        MusicService service = serviceController.create().get();
+        shadowOf(Looper.getMainLooper()).idle();
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertFalse(service.isPlaying());
+        assertEquals(180000, service.getDuration());
+        assertEquals(42000, service.getCurrentPosition());
+
+        // Starts the prepared player instead of opening the file
+        service.play();
+        assertTrue(service.isPlaying());
+        assertEquals(42000, service.getCurrentPosition());
+    }
+
+    @Test
+    public void smartPlaylist_playsAQueueThatOutlivesARestartAndKeepsTheLibrary() {
+        Application context = RuntimeEnvironment.getApplication();
+        List<String> paths = Arrays.asList("/music/queue/a.mp3", "/music/queue/b1.mp3", "/music/queue/b2.mp3");
+        for (String path : paths) {
+            ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(path), new ShadowMediaPlayer.MediaInfo(180000, 0));
+        }
+        TrackLibrary library = TrackLibrary.get(context);
+        library.seed(paths.get(1), 0, "B1", "Queue Artist", null, 0);
+        library.seed(paths.get(2), 0, "B2", "Queue Artist", null, 0);
+        PreferencesManager prefs = new PreferencesManager(context);
+        prefs.savePlaylist(paths);
+        prefs.saveShuffleOrder(0, 0);
+        prefs.saveTrackIndex(0);
+
+        serviceController = Robolectric.buildService(MusicService.class);
+        MusicService service = serviceController.create().get();
+        service.addSmartPlaylist(SmartPlaylist.byArtist("Queue Artist"));
+        assertTrue(service.playSmartPlaylist(service.getSmartPlaylists().size() - 1));
+        assertTrue(service.isPlayingQueue());
+        assertEquals(paths.subList(1, 3), service.getPlaylist());
+        service.next();
+        // The library behind the queue is untouched
+        assertEquals(paths, new ArrayList<>(prefs.loadPlaylist()));
+
+        serviceController.destroy();
+        serviceController = Robolectric.buildService(MusicService.class);
+        service = serviceController.create().get();
+        assertEquals(paths.subList(1, 3), service.getPlaylist());
+        assertEquals(1, service.getCurrentIndex());
+
+        // Back to the library on the same track
+        service.playLibrary();
+        assertFalse(service.isPlayingQueue());
+        assertEquals(paths, service.getPlaylist());
+        assertEquals(2, service.getCurrentIndex());
+        assertTrue(prefs.loadQueue().isEmpty());
+    }
+}
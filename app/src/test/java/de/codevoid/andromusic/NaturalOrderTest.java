@@ -0,0 +1,97 @@
+package de.codevoid.andromusic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NaturalOrderTest {
+
+    private static List<String> sorted(String... paths) {
+        List<String> list = new ArrayList<>(Arrays.asList(paths));
+        new NaturalOrder(Locale.ENGLISH).sort(list);
+        return list;
+    }
+
+    @Test
+    public void sort_comparesNumbersByValue() {
+        assertEquals(Arrays.asList("/m/Track 1.mp3", "/m/Track 2.mp3", "/m/Track 02b.mp3", "/m/Track 10.mp3"),
+                sorted("/m/Track 10.mp3", "/m/Track 2.mp3", "/m/Track 02b.mp3", "/m/Track 1.mp3"));
+        assertEquals(Arrays.asList("/m/CD2/01.mp3", "/m/CD10/01.mp3"), sorted("/m/CD10/01.mp3", "/m/CD2/01.mp3"));
+    }
+
+    @Test
+    public void sort_followsCollationForAccentsAndCase() {
+        assertEquals(Arrays.asList("/m/abba/a.mp3", "/m/Émilie Simon/a.mp3", "/m/Eno/a.mp3", "/m/zappa/a.mp3"),
+                sorted("/m/zappa/a.mp3", "/m/Eno/a.mp3", "/m/Émilie Simon/a.mp3", "/m/abba/a.mp3"));
+        // Decomposed names (as copied from macOS) sort like their composed form
+        assertEquals(Arrays.asList("/m/Émilie/a.mp3", "/m/Eno/a.mp3"),
+                sorted("/m/Eno/a.mp3", "/m/Émilie/a.mp3"));
+    }
+
+    @Test
+    public void sort_keepsDirectoryContentsTogether() {
+        // Raw string order would put "a b/x" between "a/" and "a/z" ('  ' < '/')
+        assertEquals(Arrays.asList("/m/a/x.mp3", "/m/a/z.mp3", "/m/a b/x.mp3", "/m/b.mp3"),
+                sorted("/m/b.mp3", "/m/a b/x.mp3", "/m/a/z.mp3", "/m/a/x.mp3"));
+        NaturalOrder order = new NaturalOrder(Locale.ENGLISH);
+        assertTrue(order.compare("/m/Rock/b.mp3", "/m/rock/a.mp3") != 0);
+        assertEquals(0, order.compare("/m/a.mp3", "/m/a.mp3"));
+    }
+
+    @Test
+    public void sort_largeLibraryStaysOrderedAndCloseToStringSort() {
+        Random random = new Random(42);
+        String[] words = {"Live", "Demo", "Remaster", "Été", "Ölfarben", "Disc", "Track", "Album", "Köln", "Ñu"};
+        // 100k tracks in 10k album folders
+        List<List<String>> albums = new ArrayList<>();
+        for (int a = 0; a < 10000; a++) {
+            String album = "/storage/emulated/0/Music/" + words[random.nextInt(words.length)] + " " + (a % 500)
+                    + "/" + words[random.nextInt(words.length)] + " " + a;
+            List<String> tracks = new ArrayList<>();
+            for (int t = 1; t <= 10; t++) {
+                tracks.add(album + "/" + t + " " + words[random.nextInt(words.length)] + " " + (a * 10 + t) + ".mp3");
+            }
+            albums.add(tracks);
+        }
+        long naturalNanos = Long.MAX_VALUE;
+        long plainNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            // Like a parallel scan: each directory's tracks together, directories in arbitrary order
+            Collections.shuffle(albums, new Random(round));
+            List<String> scanned = new ArrayList<>();
+            for (List<String> tracks : albums) {
+                scanned.addAll(tracks);
+            }
+            // A fresh order per round, as each scan creates one, so every name is keyed again
+            NaturalOrder order = new NaturalOrder(Locale.ENGLISH);
+            List<String> natural = new ArrayList<>(scanned);
+            long start = System.nanoTime();
+            order.sort(natural);
+            naturalNanos = Math.min(naturalNanos, System.nanoTime() - start);
+            // The plain string sort the scanner used before
+            List<String> plain = new ArrayList<>(scanned);
+            start = System.nanoTime();
+            Collections.sort(plain);
+            plainNanos = Math.min(plainNanos, System.nanoTime() - start);
+
+            for (int i = 1; i < natural.size(); i++) {
+                assertTrue(order.compare(natural.get(i - 1), natural.get(i)) < 0);
+            }
+            // Names keyed already, as when a library change is merged into a scanned playlist
+            List<String> again = new ArrayList<>(scanned);
+            order.sort(again);
+            assertEquals(natural, again);
+        }
+        // Best of five rounds each; keying every name cold costs about 4x the string sort, 8x leaves room for noise
+        assertTrue("Natural sort " + naturalNanos / 1000000 + " ms, string sort " + plainNanos / 1000000 + " ms",
+                naturalNanos < plainNanos * 8);
+    }
+}
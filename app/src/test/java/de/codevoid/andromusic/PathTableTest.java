@@ -0,0 +1,79 @@
+package de.codevoid.andromusic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PathTableTest {
+
+    @Test
+    public void build_mapsEveryInputToItsPath() {
+        List<String> paths = new ArrayList<>();
+        Random random = new Random(17);
+        for (int i = 0; i < 500; i++) {
+            paths.add("/storage/emulated/0/Music/Artist " + random.nextInt(40) + "/Album/" + i + " Ünïcode.mp3");
+        }
+        int[] indices = new int[paths.size()];
+        PathTable table = new PathTable(paths, indices);
+
+        assertEquals(500, table.size());
+        for (int i = 0; i < paths.size(); i++) {
+            assertEquals(paths.get(i), table.get(indices[i]));
+            assertEquals(indices[i], table.indexOf(paths.get(i)));
+        }
+        assertEquals(paths, table.view(indices));
+        assertEquals(-1, table.indexOf("/storage/emulated/0/Music/Artist 3/Album/missing.mp3"));
+        assertEquals(-1, table.indexOf("/a"));
+        assertEquals(-1, table.indexOf("/zzz"));
+    }
+
+    @Test
+    public void build_storesDuplicatesOnce() {
+        List<String> paths = Arrays.asList("/m/b.mp3", "/m/a.mp3", "/m/b.mp3");
+        int[] indices = new int[3];
+        PathTable table = new PathTable(paths, indices);
+
+        assertEquals(2, table.size());
+        assertEquals(indices[0], indices[2]);
+        assertEquals(paths, table.view(indices));
+    }
+
+    @Test
+    public void append_addsAfterTheSortedPaths() {
+        PathTable table = new PathTable(Arrays.asList("/m/b.mp3", "/m/a.mp3"), null);
+        int added = table.append("/m/0.mp3");
+
+        assertEquals(2, added);
+        assertEquals("/m/0.mp3", table.get(added));
+        assertEquals(added, table.indexOf("/m/0.mp3"));
+        assertEquals(table.indexOf("/m/a.mp3"), table.append("/m/a.mp3"));
+        assertEquals(3, table.size());
+        assertEquals(-1, new PathTable().indexOf("/m/a.mp3"));
+    }
+
+    @Test
+    public void indicesOf_findsEveryListedPathInOnePass() {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            paths.add("/m/Artist " + (i / 10) + "/" + i + ".mp3");
+        }
+        PathTable table = new PathTable(paths, null);
+        int late = table.append("/m/late.mp3");
+
+        List<String> wanted = Arrays.asList("/m/late.mp3", "/m/Artist 9/99.mp3", "/m/missing.mp3", "/m/Artist 0/0.mp3",
+                "/m/Artist 3/37.mp3", "/m/Artist 3/37.mp3");
+        int[] found = table.indicesOf(wanted);
+        Arrays.sort(found);
+        int[] expected = {table.indexOf("/m/Artist 0/0.mp3"), table.indexOf("/m/Artist 3/37.mp3"),
+                table.indexOf("/m/Artist 9/99.mp3"), late};
+        Arrays.sort(expected);
+        assertArrayEquals(expected, found);
+        assertEquals(0, new PathTable().indicesOf(wanted).length);
+    }
+}
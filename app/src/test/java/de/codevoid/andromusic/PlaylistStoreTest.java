@@ -0,0 +1,83 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaylistStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void save_roundTripsThroughTheFile() throws Exception {
+        File file = new File(tmp.getRoot(), "playlist.bin");
+        PlaylistStore store = new PlaylistStore(file);
+        assertNull(store.load());
+
+        List<String> paths = Arrays.asList("/m/Björk/Jóga.flac", "/m/a/1.mp3", "", "/m/日本/曲.ogg");
+        store.save(paths);
+        // Visible before the write lands
+        assertEquals(paths, store.load());
+        store.flush();
+        assertTrue(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        List<String> loaded = new PlaylistStore(file).load();
+        assertEquals(4, loaded.size());
+        assertEquals("/m/日本/曲.ogg", loaded.get(3));
+        assertEquals(paths, loaded);
+
+        store.save(Collections.<String>emptyList());
+        store.flush();
+        assertEquals(0, new PlaylistStore(file).load().size());
+    }
+
+    @Test
+    public void load_rejectsADamagedFile() throws Exception {
+        File file = new File(tmp.getRoot(), "playlist.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("[\"/m/a/1.mp3\"]".getBytes("UTF-8"));
+        }
+        assertNull(new PlaylistStore(file).load());
+
+        // A header that promises more entries than the file holds
+        byte[] data = PlaylistStore.encode(Arrays.asList("/m/a/1.mp3", "/m/a/2.mp3"));
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data, 0, 14);
+        }
+        assertNull(new PlaylistStore(file).load());
+    }
+
+    @Test
+    public void load_largePlaylistIsNotDecodedUpFront() throws Exception {
+        File file = new File(tmp.getRoot(), "playlist.bin");
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            paths.add("/storage/emulated/0/Music/Artist " + (i / 100) + "/Album " + (i / 10) + "/" + i + ".mp3");
+        }
+        PlaylistStore store = new PlaylistStore(file);
+        store.save(paths);
+        store.flush();
+
+        long start = System.nanoTime();
+        List<String> loaded = new PlaylistStore(file).load();
+        long micros = (System.nanoTime() - start) / 1000;
+        assertEquals(100000, loaded.size());
+        assertEquals(paths.get(54321), loaded.get(54321));
+        // Loading maps the file without decoding a path; the bound leaves room for a slow machine
+        assertTrue("Loaded in " + micros + " us", micros < 50000);
+    }
+}
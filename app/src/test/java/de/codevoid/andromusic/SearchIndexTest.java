@@ -0,0 +1,84 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private TrackLibrary library() {
+        return new TrackLibrary(new File(tmp.getRoot(), "library.bin"));
+    }
+
+    @Test
+    public void normalize_foldsCaseAccentsAndPunctuation() {
+        assertEquals("emilie simon", SearchIndex.normalize("  Émilie  SIMON! "));
+        assertEquals("ac dc", SearchIndex.normalize("AC/DC"));
+        assertEquals("koln 2", SearchIndex.normalize("Köln (2)"));
+        assertEquals("", SearchIndex.normalize(null));
+    }
+
+    @Test
+    public void search_matchesEveryWordAndRanksWordStartsInTitlesFirst() {
+        TrackLibrary library = library();
+        library.seed("/m/a.mp3", 0, "Teardrop", "Massive Attack", "Mezzanine", 0);
+        library.seed("/m/b.mp3", 0, "Angel", "Massive Attack", "Mezzanine", 0);
+        library.seed("/m/c.mp3", 0, "Attack Decay", "Someone", "Synths", 0);
+        library.seed("/m/d.mp3", 0, "Counterattack", "Other", "Live", 0);
+        List<String> paths = Arrays.asList("/m/a.mp3", "/m/b.mp3", "/m/c.mp3", "/m/d.mp3", "/m/Untagged Éclair.mp3");
+        SearchIndex index = SearchIndex.build(paths, library);
+
+        assertEquals(5, index.size());
+        // Word start in the title, then word starts elsewhere, then inside a word
+        assertArrayEquals(new int[]{2, 0, 1, 3}, index.search("attack"));
+        assertArrayEquals(new int[]{1}, index.search("massive ANGEL"));
+        assertArrayEquals(new int[]{0, 1}, index.search("mezz"));
+        assertArrayEquals(new int[]{4}, index.search("eclair"));
+        // One and two letter words match word starts only
+        assertArrayEquals(new int[]{0, 1}, index.search("ma"));
+        assertArrayEquals(new int[0], index.search("ttackz"));
+        // "tac" and "ack" are both in "attack", but "tack dec" needs the words next to each other
+        assertArrayEquals(new int[]{2}, index.search("attack dec"));
+        assertArrayEquals(new int[0], index.search("!?"));
+    }
+
+    @Test
+    public void search_answersALargeLibraryWithinAKeystroke() {
+        TrackLibrary library = library();
+        Random random = new Random(7);
+        String[] words = {"Live", "Demo", "Remaster", "Été", "Ölfarben", "Disc", "Track", "Album", "Köln", "Ñu"};
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            String path = "/storage/emulated/0/Music/" + (i / 100) + "/" + i + ".mp3";
+            library.seed(path, 0, words[random.nextInt(words.length)] + " " + i,
+                    "Artist " + random.nextInt(2000), words[random.nextInt(words.length)] + " " + (i / 10), 0);
+            paths.add(path);
+        }
+        SearchIndex index = SearchIndex.build(paths, library);
+        String[] queries = {"k", "ko", "kol", "koln", "koln 4", "koln 42", "artist 1", "remaster 123"};
+        long queryStart = System.nanoTime();
+        int found = 0;
+        for (int round = 0; round < 20; round++) {
+            for (String query : queries) {
+                found += index.search(query).length;
+            }
+        }
+        long perQueryMillis = (System.nanoTime() - queryStart) / 1000000 / (20 * queries.length);
+        assertTrue(found > 0);
+        // A query runs on every keystroke; the bound is loose so slow machines don't fail it
+        assertTrue("Took " + perQueryMillis + " ms per query", perQueryMillis < 50);
+    }
+}
@@ -0,0 +1,39 @@
+package de.codevoid.andromusic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShuffleOrderTest {
+
+    @Test
+    public void order_isAPermutationWithItsInverse() {
+        ShuffleOrder order = new ShuffleOrder(1000, 42L, 317);
+        assertEquals(317, order.libraryPosition(0));
+        boolean[] seen = new boolean[1000];
+        boolean moved = false;
+        for (int position = 0; position < 1000; position++) {
+            int library = order.libraryPosition(position);
+            assertFalse(seen[library]);
+            seen[library] = true;
+            assertEquals(position, order.position(library));
+            if (library != position) moved = true;
+        }
+        assertTrue(moved);
+    }
+
+    @Test
+    public void order_isRestoredFromSeedAndFirstTrack() {
+        int[] library = {10, 11, 12, 13, 14, 15, 16, 17};
+        long seed = ShuffleOrder.newSeed();
+        int[] shuffled = new ShuffleOrder(library.length, seed, 5).apply(library);
+        assertEquals(15, shuffled[0]);
+        assertArrayEquals(shuffled, new ShuffleOrder(library.length, seed, 5).apply(library));
+
+        ShuffleOrder single = new ShuffleOrder(1, seed, 0);
+        assertEquals(0, single.libraryPosition(0));
+    }
+}
@@ -0,0 +1,90 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SmartPlaylistsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final long NOW = System.currentTimeMillis();
+    private static final long OLD = NOW - TimeUnit.DAYS.toMillis(90);
+
+    private static Set<String> members(String... paths) {
+        return new HashSet<>(Arrays.asList(paths));
+    }
+
+    @Test
+    public void changes_updateOnlyTheTracksTheyTouch() throws IOException {
+        TrackLibrary library = new TrackLibrary(new File(tmp.getRoot(), "library.bin"));
+        PlayHistory history = new PlayHistory(tmp.newFile("history.bin"));
+        library.seed("/m/a/1.mp3", NOW, "One", "Moby", "Play", 0);
+        library.seed("/m/a/2.mp3", OLD, "Two", "Moby", "Play", 0);
+        library.seed("/m/b/3.mp3", OLD, "Three", "Air", "Moon Safari", 0);
+        history.markPlayed("/m/a/2.mp3");
+
+        SmartPlaylists playlists = new SmartPlaylists(library, history, Arrays.asList(
+                SmartPlaylist.byArtist("moby"), SmartPlaylist.addedWithin(30), SmartPlaylist.neverPlayed()));
+        playlists.rebuild(Arrays.asList("/m/a/1.mp3", "/m/a/2.mp3", "/m/b/3.mp3"));
+        assertEquals(members("/m/a/1.mp3", "/m/a/2.mp3"), playlists.members(0, NOW));
+        assertEquals(members("/m/a/1.mp3"), playlists.members(1, NOW));
+        assertEquals(members("/m/a/1.mp3", "/m/b/3.mp3"), playlists.members(2, NOW));
+
+        // A new track that isn't indexed yet is only known to be unplayed
+        playlists.onTracksAdded(Collections.singletonList("/m/b/4.mp3"));
+        assertEquals(2, playlists.get(0).size());
+        assertEquals(3, playlists.get(2).size());
+        // Its tags arrive
+        library.seed("/m/b/4.mp3", NOW, "Four", "Moby", "18", 0);
+        playlists.onTracksChanged(Collections.singletonList("/m/b/4.mp3"));
+        assertEquals(members("/m/a/1.mp3", "/m/a/2.mp3", "/m/b/4.mp3"), playlists.members(0, NOW));
+        assertEquals(2, playlists.get(1).size());
+
+        playlists.onPlayed("/m/a/1.mp3");
+        assertEquals(members("/m/b/3.mp3", "/m/b/4.mp3"), playlists.members(2, NOW));
+
+        playlists.onTracksRemoved(Collections.singletonList("/m/a/2.mp3"), Collections.singletonList("/m/b/"));
+        assertEquals(members("/m/a/1.mp3"), playlists.members(0, NOW));
+        assertEquals(0, playlists.get(2).size());
+
+        // Time moves on without any change to the library
+        assertEquals(0, playlists.members(1, NOW + TimeUnit.DAYS.toMillis(31)).size());
+    }
+
+    @Test
+    public void playHistory_survivesReloadAndACutOffRecord() throws IOException {
+        File file = new File(tmp.getRoot(), "history.bin");
+        PlayHistory history = new PlayHistory(file);
+        assertTrue(history.markPlayed("/m/1.mp3"));
+        assertFalse(history.markPlayed("/m/1.mp3"));
+        history.append("/m/1.mp3");
+        history.markPlayed("/m/2.mp3");
+        history.append("/m/2.mp3");
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 40, 'x'});
+        }
+
+        PlayHistory reloaded = new PlayHistory(file);
+        assertTrue(reloaded.wasPlayed("/m/1.mp3"));
+        assertTrue(reloaded.wasPlayed("/m/2.mp3"));
+        assertFalse(reloaded.wasPlayed("/m/3.mp3"));
+        reloaded.markPlayed("/m/3.mp3");
+        reloaded.append("/m/3.mp3");
+        assertTrue(new PlayHistory(file).wasPlayed("/m/3.mp3"));
+    }
+}
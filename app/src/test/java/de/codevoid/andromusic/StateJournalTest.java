@@ -0,0 +1,94 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StateJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void recover_takesTheLastIntactRecord() throws Exception {
+        File file = new File(tmp.getRoot(), "state.journal");
+        StateJournal journal = new StateJournal(file);
+        assertFalse(journal.hasState());
+        journal.setTrackIndex(3);
+        journal.flush();
+        journal.setShuffle(true);
+        journal.flush();
+        journal.setShuffleOrder(-77L, 5);
+        journal.flush();
+        for (int i = 1; i <= 10; i++) {
+            journal.setPosition(i * 1000);
+            journal.flush();
+        }
+        long size = file.length();
+
+        StateJournal reloaded = new StateJournal(file);
+        assertTrue(reloaded.hasState());
+        assertEquals(3, reloaded.getTrackIndex());
+        assertEquals(10000, reloaded.getPosition());
+        assertTrue(reloaded.getShuffle());
+        assertEquals(-77L, reloaded.getShuffleSeed());
+        assertEquals(5, reloaded.getShuffleFirst());
+        // Records are written into the preallocated file, never past it
+        assertEquals(size, file.length());
+
+        // A crash halfway through the last record leaves the one before it
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Header, then the index, the shuffle flag, the shuffle order and ten positions
+            long last = 8 + 32L * 12;
+            raf.seek(last + 8);
+            raf.writeInt(99999);
+        }
+        StateJournal torn = new StateJournal(file);
+        assertEquals(9000, torn.getPosition());
+        assertEquals(3, torn.getTrackIndex());
+    }
+
+    @Test
+    public void fullJournal_isCompactedToTheCurrentState() throws Exception {
+        File file = new File(tmp.getRoot(), "state.journal");
+        StateJournal journal = new StateJournal(file);
+        journal.setTrackIndex(7);
+        for (int i = 1; i <= StateJournal.CAPACITY * 2 + 5; i++) {
+            journal.setPosition(i);
+            journal.flush();
+        }
+        long size = file.length();
+        StateJournal reloaded = new StateJournal(file);
+        assertEquals(7, reloaded.getTrackIndex());
+        assertEquals(StateJournal.CAPACITY * 2 + 5, reloaded.getPosition());
+        assertFalse(reloaded.getShuffle());
+        assertEquals(size, file.length());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // Writing again from a reloaded journal carries on from the recovered state
+        reloaded.setShuffle(true);
+        reloaded.flush();
+        StateJournal again = new StateJournal(file);
+        assertEquals(7, again.getTrackIndex());
+        assertTrue(again.getShuffle());
+    }
+
+    @Test
+    public void load_ignoresAForeignFile() throws Exception {
+        File file = tmp.newFile("state.journal");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(0x12345678);
+            raf.write(new byte[100]);
+        }
+        StateJournal journal = new StateJournal(file);
+        assertFalse(journal.hasState());
+        assertEquals(0, journal.getTrackIndex());
+    }
+}
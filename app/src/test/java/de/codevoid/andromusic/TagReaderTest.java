@@ -0,0 +1,384 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TagReaderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final byte[] PICTURE = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 1, 2, 3, 4, 5};
+    // MPEG-1 layer III, 128 kbit/s, 44.1 kHz, joint stereo
+    private static final byte[] MPEG_FRAME = {(byte) 0xff, (byte) 0xfb, (byte) 0x90, 0x44};
+
+    private static class Bytes extends ByteArrayOutputStream {
+        Bytes put(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Bytes text(String text, Charset charset) {
+            return put(text.getBytes(charset));
+        }
+
+        Bytes u8(int value) {
+            write(value);
+            return this;
+        }
+
+        Bytes u16(int value) {
+            return u8(value >> 8).u8(value);
+        }
+
+        Bytes u24(int value) {
+            return u8(value >> 16).u16(value);
+        }
+
+        Bytes u32(int value) {
+            return u16(value >>> 16).u16(value);
+        }
+
+        Bytes le32(int value) {
+            return u8(value).u8(value >> 8).u8(value >> 16).u8(value >>> 24);
+        }
+
+        Bytes le64(long value) {
+            return le32((int) value).le32((int) (value >>> 32));
+        }
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = tmp.newFile(name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    private static byte[] syncsafe(int value) {
+        return new byte[]{(byte) ((value >> 21) & 0x7f), (byte) ((value >> 14) & 0x7f),
+                (byte) ((value >> 7) & 0x7f), (byte) (value & 0x7f)};
+    }
+
+    private static byte[] id3Frame(int major, String id, byte[] body) {
+        Bytes frame = new Bytes().text(id, StandardCharsets.ISO_8859_1);
+        if (major == 4) {
+            frame.put(syncsafe(body.length));
+        } else {
+            frame.u32(body.length);
+        }
+        return frame.u16(0).put(body).toByteArray();
+    }
+
+    private static byte[] id3Text(int encoding, String text) {
+        Charset charset = encoding == 1 ? StandardCharsets.UTF_16 : encoding == 3 ? StandardCharsets.UTF_8
+                : StandardCharsets.ISO_8859_1;
+        return new Bytes().u8(encoding).text(text, charset).toByteArray();
+    }
+
+    private static byte[] id3Tag(int major, int padding, byte[]... frames) {
+        Bytes body = new Bytes();
+        for (byte[] frame : frames) {
+            body.put(frame);
+        }
+        body.put(new byte[padding]);
+        return new Bytes().text("ID3", StandardCharsets.ISO_8859_1).u8(major).u8(0).u8(0)
+                .put(syncsafe(body.size())).put(body.toByteArray()).toByteArray();
+    }
+
+    private static byte[] apic(int encoding, int type, String description) {
+        Charset charset = encoding == 1 ? StandardCharsets.UTF_16 : StandardCharsets.ISO_8859_1;
+        Bytes body = new Bytes().u8(encoding).text("image/jpeg", StandardCharsets.ISO_8859_1).u8(0).u8(type)
+                .text(description, charset).u8(0);
+        if (encoding == 1) body.u8(0);
+        return body.put(PICTURE).toByteArray();
+    }
+
+    @Test
+    public void read_id3v23WithUtf16AndFrontCover() throws IOException {
+        byte[] tag = id3Tag(3, 32,
+                id3Frame(3, "TIT2", id3Text(1, "Für Elise")),
+                id3Frame(3, "TPE1", id3Text(0, "Beethoven")),
+                id3Frame(3, "TALB", id3Text(0, "Bagatellen")),
+                id3Frame(3, "TRCK", id3Text(0, "7/12")),
+                id3Frame(3, "TCON", id3Text(0, "(32)")),
+                id3Frame(3, "APIC", apic(0, 4, "back")),
+                id3Frame(3, "APIC", apic(1, 3, "front")));
+        // 10 CBR frames' worth of data at 128 kbit/s is 16000 bytes per second
+        File file = write("a.mp3", new Bytes().put(tag).put(MPEG_FRAME).put(new byte[15996]).toByteArray());
+
+        TagReader.Tags tags = TagReader.read(file);
+        assertNotNull(tags);
+        assertEquals("Für Elise", tags.getTitle());
+        assertEquals("Beethoven", tags.getArtist());
+        assertEquals("Bagatellen", tags.getAlbum());
+        assertEquals(7, tags.getTrackNumber());
+        assertEquals("Classical", tags.getGenre());
+        assertEquals(1000, tags.getDurationMs());
+        assertTrue(tags.hasPicture());
+        assertEquals("image/jpeg", tags.getPictureMime());
+        assertArrayEquals(PICTURE, TagReader.readPicture(file, tags));
+    }
+
+    @Test
+    public void read_id3v24WithSyncsafeFramesAndXingHeader() throws IOException {
+        byte[] tag = id3Tag(4, 0,
+                id3Frame(4, "TIT2", id3Text(3, "Ça plane pour moi\0Other value")),
+                id3Frame(4, "TPE1", id3Text(3, "Plastic Bertrand")),
+                id3Frame(4, "TCON", id3Text(0, "(17)Rock & Roll")),
+                id3Frame(4, "APIC", apic(3, 3, "")));
+        Bytes frame = new Bytes().put(MPEG_FRAME).put(new byte[32]).text("Xing", StandardCharsets.ISO_8859_1)
+                .u32(1).u32(383);
+        File file = write("b.mp3", new Bytes().put(tag).put(frame.toByteArray()).put(new byte[400]).toByteArray());
+
+        TagReader.Tags tags = TagReader.read(file);
+        assertNotNull(tags);
+        assertEquals("Ça plane pour moi", tags.getTitle());
+        assertEquals("Plastic Bertrand", tags.getArtist());
+        assertEquals("Rock & Roll", tags.getGenre());
+        // 383 frames of 1152 samples at 44.1 kHz
+        assertEquals(10004, tags.getDurationMs());
+        assertArrayEquals(PICTURE, TagReader.readPicture(file, tags));
+    }
+
+    @Test
+    public void read_id3v1Fallback() throws IOException {
+        Bytes v1 = new Bytes().text("TAG", StandardCharsets.ISO_8859_1);
+        v1.put(Arrays.copyOf("Old Song".getBytes(StandardCharsets.ISO_8859_1), 30));
+        v1.put(Arrays.copyOf("Old Band".getBytes(StandardCharsets.ISO_8859_1), 30));
+        v1.put(new byte[30 + 4 + 28]).u8(0).u8(5).u8(13);
+        File file = write("c.mp3", new Bytes().put(MPEG_FRAME).put(new byte[2000]).put(v1.toByteArray()).toByteArray());
+
+        TagReader.Tags tags = TagReader.read(file);
+        assertNotNull(tags);
+        assertEquals("Old Song", tags.getTitle());
+        assertEquals("Old Band", tags.getArtist());
+        assertNull(tags.getAlbum());
+        assertEquals(5, tags.getTrackNumber());
+        assertEquals("Pop", tags.getGenre());
+    }
+
+    private static byte[] vorbisComments(String... comments) {
+        Bytes body = new Bytes().le32(6).text("vendor", StandardCharsets.UTF_8).le32(comments.length);
+        for (String comment : comments) {
+            byte[] bytes = comment.getBytes(StandardCharsets.UTF_8);
+            body.le32(bytes.length).put(bytes);
+        }
+        return body.toByteArray();
+    }
+
+    @Test
+    public void read_flacStreamInfoCommentsAndPicture() throws IOException {
+        // 44.1 kHz, 2 channels, 16 bit, 441000 samples
+        Bytes streamInfo = new Bytes().u16(4096).u16(4096).u24(0).u24(0)
+                .u8(0x0a).u8(0xc4).u8(0x42).u8(0xf0).u32(441000).put(new byte[16]);
+        byte[] comments = vorbisComments("title=Blue Monday", "ARTIST=New Order", "Album=Power",
+                "TRACKNUMBER=1", "GENRE=Synth-pop");
+        Bytes picture = new Bytes().u32(3).u32(9).text("image/png", StandardCharsets.US_ASCII).u32(0)
+                .u32(1).u32(1).u32(24).u32(0).u32(PICTURE.length).put(PICTURE);
+        Bytes flac = new Bytes().text("fLaC", StandardCharsets.ISO_8859_1)
+                .u8(0).u24(streamInfo.size()).put(streamInfo.toByteArray())
+                .u8(4).u24(comments.length).put(comments)
+                .u8(0x80 | 6).u24(picture.size()).put(picture.toByteArray())
+                .put(new byte[1000]);
+        File file = write("d.flac", flac.toByteArray());
+
+        TagReader.Tags tags = TagReader.read(file);
+        assertNotNull(tags);
+        assertEquals("Blue Monday", tags.getTitle());
+        assertEquals("New Order", tags.getArtist());
+        assertEquals("Power", tags.getAlbum());
+        assertEquals("Synth-pop", tags.getGenre());
+        assertEquals(1, tags.getTrackNumber());
+        assertEquals(10000, tags.getDurationMs());
+        assertEquals("image/png", tags.getPictureMime());
+        assertArrayEquals(PICTURE, TagReader.readPicture(file, tags));
+    }
+
+    // Splits the packets into pages of at most pageSize bytes so packets cross page boundaries
+    private static byte[] ogg(int pageSize, long lastGranule, byte[]... packets) {
+        Bytes lacedData = new Bytes();
+        Bytes lacing = new Bytes();
+        for (byte[] packet : packets) {
+            int remaining = packet.length;
+            while (remaining >= 255) {
+                lacing.u8(255);
+                remaining -= 255;
+            }
+            lacing.u8(remaining);
+            lacedData.put(packet);
+        }
+        byte[] lacingValues = lacing.toByteArray();
+        byte[] data = lacedData.toByteArray();
+        Bytes out = new Bytes();
+        int segment = 0;
+        int dataPos = 0;
+        int sequence = 0;
+        while (segment < lacingValues.length) {
+            int count = 0;
+            int bytes = 0;
+            while (segment + count < lacingValues.length && count < 255
+                    && bytes + (lacingValues[segment + count] & 0xff) <= pageSize) {
+                bytes += lacingValues[segment + count] & 0xff;
+                count++;
+            }
+            if (count == 0) count = 1;
+            boolean last = segment + count == lacingValues.length;
+            out.text("OggS", StandardCharsets.ISO_8859_1).u8(0).u8(0).le64(last ? lastGranule : 0)
+                    .le32(1).le32(sequence++).le32(0).u8(count);
+            int pageBytes = 0;
+            for (int i = 0; i < count; i++) {
+                out.u8(lacingValues[segment + i] & 0xff);
+                pageBytes += lacingValues[segment + i] & 0xff;
+            }
+            out.write(data, dataPos, pageBytes);
+            dataPos += pageBytes;
+            segment += count;
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void read_oggVorbisCommentsAcrossPages() throws IOException {
+        byte[] identification = new Bytes().u8(1).text("vorbis", StandardCharsets.ISO_8859_1).le32(0).u8(2)
+                .le32(44100).put(new byte[13]).toByteArray();
+        char[] lyrics = new char[6000];
+        Arrays.fill(lyrics, 'x');
+        byte[] comments = new Bytes().u8(3).text("vorbis", StandardCharsets.ISO_8859_1)
+                .put(vorbisComments("LYRICS=" + new String(lyrics), "TITLE=Strandbad", "ARTIST=Fräulein",
+                        "METADATA_BLOCK_PICTURE=AAAA"))
+                .u8(1).toByteArray();
+        File file = write("e.ogg", ogg(1024, 44100 * 3, identification, comments, new byte[500]));
+
+        TagReader.Tags tags = TagReader.read(file);
+        assertNotNull(tags);
+        assertEquals("Strandbad", tags.getTitle());
+        assertEquals("Fräulein", tags.getArtist());
+        assertEquals(3000, tags.getDurationMs());
+        assertFalse(tags.hasPicture());
+        assertTrue(tags.hasEncodedPicture());
+    }
+
+    @Test
+    public void read_opusSubtractsPreSkip() throws IOException {
+        byte[] head = new Bytes().text("OpusHead", StandardCharsets.ISO_8859_1).u8(1).u8(2).u8(0x38).u8(0x01)
+                .le32(44100).u16(0).u8(0).toByteArray();
+        byte[] comments = new Bytes().text("OpusTags", StandardCharsets.ISO_8859_1)
+                .put(vorbisComments("title=Opus One", "tracknumber=02")).toByteArray();
+        File file = write("f.opus", ogg(4096, 312 + 48000 * 2, head, comments, new byte[100]));
+
+        TagReader.Tags tags = TagReader.read(file);
+        assertNotNull(tags);
+        assertEquals("Opus One", tags.getTitle());
+        assertEquals(2, tags.getTrackNumber());
+        assertEquals(2000, tags.getDurationMs());
+    }
+
+    private static byte[] atom(String type, byte[]... children) {
+        Bytes body = new Bytes();
+        for (byte[] child : children) {
+            body.put(child);
+        }
+        return new Bytes().u32(8 + body.size()).text(type, StandardCharsets.ISO_8859_1).put(body.toByteArray())
+                .toByteArray();
+    }
+
+    private static byte[] dataAtom(int type, byte[] value) {
+        return atom("data", new Bytes().u32(type).u32(0).put(value).toByteArray());
+    }
+
+    @Test
+    public void read_mp4Atoms() throws IOException {
+        byte[] mvhd = atom("mvhd", new Bytes().u32(0).u32(0).u32(0).u32(600).u32(600 * 95).put(new byte[80])
+                .toByteArray());
+        byte[] ilst = atom("ilst",
+                atom("\u00a9nam", dataAtom(1, "Around the World".getBytes(StandardCharsets.UTF_8))),
+                atom("aART", dataAtom(1, "Daft Punk".getBytes(StandardCharsets.UTF_8))),
+                atom("\u00a9alb", dataAtom(1, "Homework".getBytes(StandardCharsets.UTF_8))),
+                atom("trkn", dataAtom(0, new byte[]{0, 0, 0, 7, 0, 16, 0, 0})),
+                atom("gnre", dataAtom(0, new byte[]{0, 36})),
+                atom("covr", dataAtom(13, PICTURE)));
+        byte[] meta = atom("meta", new byte[4], atom("hdlr", new byte[25]), ilst);
+        byte[] moov = atom("moov", mvhd, atom("udta", meta));
+        byte[] ftyp = atom("ftyp", "M4A \0\0\0\0isom".getBytes(StandardCharsets.ISO_8859_1));
+        // moov after mdat, as written by encoders that don't optimise for streaming
+        File file = write("g.m4a", new Bytes().put(ftyp).put(atom("mdat", new byte[5000])).put(moov).toByteArray());
+
+        TagReader.Tags tags = TagReader.read(file);
+        assertNotNull(tags);
+        assertEquals("Around the World", tags.getTitle());
+        assertEquals("Daft Punk", tags.getArtist());
+        assertEquals("Homework", tags.getAlbum());
+        assertEquals(7, tags.getTrackNumber());
+        assertEquals("House", tags.getGenre());
+        assertEquals(95000, tags.getDurationMs());
+        assertEquals("image/jpeg", tags.getPictureMime());
+        assertArrayEquals(PICTURE, TagReader.readPicture(file, tags));
+    }
+
+    @Test
+    public void read_malformedFilesReturnNull() throws IOException {
+        assertNull(TagReader.read(write("empty.mp3", new byte[0])));
+        assertNull(TagReader.read(write("text.mp3", "not audio at all".getBytes(StandardCharsets.US_ASCII))));
+        assertNull(TagReader.read(new File(tmp.getRoot(), "missing.flac")));
+        // FLAC block that claims more bytes than the file holds
+        byte[] truncated = new Bytes().text("fLaC", StandardCharsets.ISO_8859_1).u8(0x84).u24(1 << 20)
+                .put(new byte[64]).toByteArray();
+        TagReader.Tags tags = TagReader.read(write("truncated.flac", truncated));
+        assertTrue(tags == null || tags.getTitle() == null);
+        // Ogg stream cut off inside its comment packet
+        byte[] ogg = ogg(4096, 0, new Bytes().u8(1).text("vorbis", StandardCharsets.ISO_8859_1)
+                .put(new byte[23]).toByteArray(), new Bytes().u8(3).text("vorbis", StandardCharsets.ISO_8859_1)
+                .put(vorbisComments("TITLE=x")).toByteArray());
+        assertNull(TagReader.read(write("cut.ogg", Arrays.copyOf(ogg, ogg.length - 10))));
+    }
+
+    @Test
+    public void read_skipsLargePicturesAcrossManyFiles() throws IOException {
+        File dir = tmp.newFolder("many");
+        int count = 500;
+        byte[] body = new byte[8192];
+        for (int i = 0; i < count; i++) {
+            byte[] tag = id3Tag(4, 256,
+                    id3Frame(4, "TIT2", id3Text(3, "Track " + i)),
+                    id3Frame(4, "TPE1", id3Text(3, "Artist " + (i % 50))),
+                    id3Frame(4, "TALB", id3Text(3, "Album " + (i % 200))),
+                    id3Frame(4, "TRCK", id3Text(0, String.valueOf(i % 12 + 1))),
+                    id3Frame(4, "APIC", new Bytes().put(apic(0, 3, "")).put(new byte[30000]).toByteArray()));
+            try (FileOutputStream out = new FileOutputStream(new File(dir, "t" + i + ".mp3"))) {
+                out.write(tag);
+                out.write(MPEG_FRAME);
+                out.write(body);
+            }
+        }
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        long start = System.nanoTime();
+        int parsed = 0;
+        for (File file : files) {
+            TagReader.Tags tags = TagReader.read(file);
+            if (tags != null && tags.getTitle() != null && tags.hasPicture()) parsed++;
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertEquals(count, parsed);
+        // A generous bound that still catches a reader pulling in every picture
+        assertTrue("Read " + count + " files in " + millis + " ms", millis < 5000);
+    }
+}
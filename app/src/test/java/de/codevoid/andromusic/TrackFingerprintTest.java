@@ -0,0 +1,58 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TrackFingerprintTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File writeRandom(String name, int length, long seed) throws IOException {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        File file = new File(tmp.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    @Test
+    public void compute_dependsOnContentNotName() throws IOException {
+        File a = writeRandom("a.mp3", 300 * 1024, 1);
+        File b = writeRandom("b.mp3", 300 * 1024, 1);
+        File other = writeRandom("c.mp3", 300 * 1024, 2);
+        assertEquals(TrackFingerprint.compute(a), TrackFingerprint.compute(b));
+        assertNotEquals(TrackFingerprint.compute(a), TrackFingerprint.compute(other));
+        assertEquals(0, TrackFingerprint.compute(new File(tmp.getRoot(), "missing.mp3")));
+    }
+
+    @Test
+    public void compute_seesChangesToHeadTailAndSize() throws IOException {
+        File file = writeRandom("song.mp3", 300 * 1024, 3);
+        long original = TrackFingerprint.compute(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // The tail sample covers the last 64 KB, where ID3v1 and APE tags live
+            raf.seek(raf.length() - 10);
+            raf.write(0x55 ^ raf.readByte());
+        }
+        long retagged = TrackFingerprint.compute(file);
+        assertNotEquals(original, retagged);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() + 1);
+        }
+        assertNotEquals(retagged, TrackFingerprint.compute(file));
+        assertNotEquals(0, TrackFingerprint.compute(writeRandom("empty.mp3", 0, 4)));
+    }
+}
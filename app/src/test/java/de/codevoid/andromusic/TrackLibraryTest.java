@@ -0,0 +1,148 @@
+package de.codevoid.andromusic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TrackLibraryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // A minimal FLAC file: STREAMINFO for 2 s at 44.1 kHz and a Vorbis comment block
+    private File writeFlac(String name, String title, String artist) throws IOException {
+        byte[] title8 = ("TITLE=" + title).getBytes(StandardCharsets.UTF_8);
+        byte[] artist8 = ("ARTIST=" + artist).getBytes(StandardCharsets.UTF_8);
+        int commentLength = 4 + 4 + 4 + title8.length + 4 + artist8.length;
+        File file = new File(tmp.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("fLaC".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[]{0, 0, 0, 34});
+            out.write(new byte[10]);
+            out.write(new byte[]{0x0a, (byte) 0xc4, 0x42, (byte) 0xf0, 0, 1, 0x58, (byte) 0x88});
+            out.write(new byte[16]);
+            out.write(new byte[]{(byte) 0x84, 0, 0, (byte) commentLength});
+            writeLe(out, 0);
+            writeLe(out, 2);
+            writeLe(out, title8.length);
+            out.write(title8);
+            writeLe(out, artist8.length);
+            out.write(artist8);
+        }
+        return file;
+    }
+
+    private static void writeLe(FileOutputStream out, int value) throws IOException {
+        out.write(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+    }
+
+    @Test
+    public void refresh_recordsTagsAndSurvivesReload() throws IOException {
+        File store = new File(tmp.getRoot(), "library.bin");
+        File song = writeFlac("song.flac", "Teardrop", "Massive Attack");
+        File untagged = new File(tmp.getRoot(), "noise.mp3");
+        assertTrue(untagged.createNewFile());
+
+        TrackLibrary library = new TrackLibrary(store);
+        assertNull(library.get(song.getPath()));
+        assertEquals("song", library.displayName(song.getPath()));
+        TrackLibrary.Track track = library.refresh(song.getPath());
+        assertNotNull(track);
+        assertEquals("Teardrop", track.getTitle());
+        assertEquals(2000, track.getDurationMs());
+        assertSame(track, library.refresh(song.getPath()));
+        assertFalse(library.refresh(untagged.getPath()).hasTags());
+        assertNull(library.refresh(new File(tmp.getRoot(), "gone.mp3").getPath()));
+
+        TrackLibrary reloaded = new TrackLibrary(store);
+        assertEquals(2, reloaded.size());
+        assertEquals("Massive Attack — Teardrop", reloaded.displayName(song.getPath()));
+        assertEquals("noise", reloaded.displayName(untagged.getPath()));
+    }
+
+    @Test
+    public void refresh_reparsesChangedFiles() throws IOException {
+        File store = new File(tmp.getRoot(), "library.bin");
+        File song = writeFlac("song.flac", "Old Title", "Artist");
+        TrackLibrary library = new TrackLibrary(store);
+        library.refresh(song.getPath());
+
+        writeFlac("song.flac", "New Title", "Artist");
+        assertTrue(song.setLastModified(song.lastModified() + 2000));
+        assertEquals("New Title", library.refresh(song.getPath()).getTitle());
+        // The superseding record wins when the appended file is read back
+        assertEquals("New Title", new TrackLibrary(store).get(song.getPath()).getTitle());
+    }
+
+    @Test
+    public void load_dropsRecordCutShortByCrash() throws IOException {
+        File store = new File(tmp.getRoot(), "library.bin");
+        File first = writeFlac("a.flac", "First", "Artist");
+        File second = writeFlac("b.flac", "Second", "Artist");
+        TrackLibrary library = new TrackLibrary(store);
+        library.refresh(first.getPath());
+        library.refresh(second.getPath());
+        try (RandomAccessFile raf = new RandomAccessFile(store, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        TrackLibrary recovered = new TrackLibrary(store);
+        assertEquals(1, recovered.size());
+        assertEquals("First", recovered.get(first.getPath()).getTitle());
+        // The damaged tail was rewritten away, so new records append cleanly
+        recovered.refresh(second.getPath());
+        assertEquals(2, new TrackLibrary(store).size());
+    }
+
+    @Test
+    public void refresh_relinksMovedFileByFingerprint() throws IOException {
+        File store = new File(tmp.getRoot(), "library.bin");
+        File song = writeFlac("song.flac", "Teardrop", "Massive Attack");
+        TrackLibrary library = new TrackLibrary(store);
+        long fingerprint = library.refresh(song.getPath()).getFingerprint();
+
+        File moved = new File(tmp.newFolder("moved"), "renamed.flac");
+        assertTrue(song.renameTo(moved));
+        TrackLibrary.Track track = library.refresh(moved.getPath());
+        assertEquals("Teardrop", track.getTitle());
+        assertEquals(fingerprint, track.getFingerprint());
+        assertNull(library.get(song.getPath()));
+        assertEquals(moved.getPath(), library.movedPath(song.getPath()));
+        assertEquals(1, library.moveCount());
+        assertEquals(Collections.singletonList(song.getPath()), library.movesSince(0));
+        assertTrue(library.movesSince(1).isEmpty());
+
+        TrackLibrary reloaded = new TrackLibrary(store);
+        assertEquals(1, reloaded.size());
+        assertEquals(moved.getPath(), reloaded.movedPath(song.getPath()));
+        assertNull(reloaded.movedPath(moved.getPath()));
+    }
+
+    @Test
+    public void refresh_doesNotRelinkCopies() throws IOException {
+        File store = new File(tmp.getRoot(), "library.bin");
+        File song = writeFlac("song.flac", "Teardrop", "Massive Attack");
+        File copy = writeFlac("copy.flac", "Teardrop", "Massive Attack");
+        TrackLibrary library = new TrackLibrary(store);
+        library.refresh(song.getPath());
+        library.refresh(copy.getPath());
+
+        assertEquals(2, library.size());
+        assertNull(library.movedPath(song.getPath()));
+        assertEquals(library.get(song.getPath()).getFingerprint(), library.get(copy.getPath()).getFingerprint());
+    }
+}